@@ -18,6 +18,7 @@ public abstract class Constants {
     
     public static final String ENV_CEYLON_HOME_DIR = "CEYLON_HOME";
     public static final String ENV_CEYLON_VERSION = "CEYLON_VERSION";
+    public static final String ENV_CEYLON_DAEMON = "CEYLON_DAEMON";
 
     public static final String PROP_CEYLON_SYSTEM_VERSION = "ceylon.system.version";
 
@@ -26,6 +27,7 @@ public abstract class Constants {
     public static final String PROP_CEYLON_CONFIG_FILE = "ceylon.config";
     public static final String PROP_CEYLON_USER_DIR = "ceylon.user.dir";
     public static final String PROP_CEYLON_SYSLIBS_DIR = "ceylon.system.libs";
+    public static final String PROP_CEYLON_TOOL_INDEX = "ceylon.tool.index";
     
     public static final String PROP_CEYLON_SYSTEM_REPO = "ceylon.system.repo";
     public static final String PROP_CEYLON_USER_REPO = "ceylon.user.repo";
@@ -13,15 +13,44 @@ import java.security.UnrecoverableKeyException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.redhat.ceylon.common.config.Keystores.Store;
 import com.redhat.ceylon.common.config.Proxies.Proxy;
+import com.redhat.ceylon.common.tools.PerThreadPrintStream;
 
 /**
  * Utility class for making use of {@link Credentials} and {@link Proxies}
+ * <p>
+ * Passwords that have to be prompted for or read from a keystore are
+ * remembered for the whole process for a limited time (see
+ * {@link #setPasswordCacheTime(long, TimeUnit)}), so users get asked
+ * only once and keystores get decrypted only once. When several threads
+ * need the same password at the same time only one of them does the
+ * prompting or decrypting, the others wait for it. Remembered passwords
+ * get forgotten and overwritten with zeros as soon as they expire, when
+ * they get rejected (see {@link UsernamePassword#passwordRejected()}),
+ * and passwords read from a keystore also when that keystore gets changed.
  */
 public class Authentication {
 
+    private static final long DEFAULT_PASSWORD_CACHE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    
+    // Passwords by the keystore and alias or the user and prompt they're for
+    private static final ConcurrentHashMap<String, CachedPassword> passwords = new ConcurrentHashMap<String, CachedPassword>();
+    private static volatile long passwordCacheMillis = DEFAULT_PASSWORD_CACHE_MILLIS;
+    // Forgets passwords when they expire, its thread only lives while
+    // there are passwords to forget
+    private static ScheduledThreadPoolExecutor expirer;
+
     public static class UsernamePassword {
 
         private final String username;
@@ -39,6 +68,17 @@ public class Authentication {
         public char[] getPassword() {
             return password.getPassword();
         }
+        
+        /**
+         * Tells that authenticating with the password failed, so that if
+         * it was remembered it gets forgotten and the user gets asked 
+         * for it again instead of it being used until it expires
+         */
+        public void passwordRejected() {
+            if (password instanceof CachingPassword) {
+                ((CachingPassword)password).forget();
+            }
+        }
     }
     
     /**
@@ -123,7 +163,6 @@ public class Authentication {
         private final String passwordKeystore;
         private final Keystores.Store store;
         private final String alias;
-        private char[] password = null;
 
         private StoredPassword(String passwordKeystore, Keystores.Store store,
                 String alias) {
@@ -140,10 +179,6 @@ public class Authentication {
 
         @Override
         public char[] getPassword() {
-            if (password != null) {
-                // Only prompt for store/entry password once
-                return password;
-            }
             char[] storePass = null;
             char[] entryPass = null;
             try {
@@ -167,7 +202,7 @@ public class Authentication {
                 if ("both".equals(protection)) {
                     entryPass = storePass;
                 }
-                password = store.getPassword(alias, storePass, entryPass);
+                char[] password = store.getPassword(alias, storePass, entryPass);
                 if (password == null) {
                     throw new RuntimeException(msg("no.alias", store.getFilename(), passwordKeystore, alias));
                 }
@@ -189,6 +224,131 @@ public class Authentication {
         }
     }
     
+    /**
+     * Implementation of {@link Password} which only asks another
+     * {@link Password} if the password isn't remembered yet, see
+     * {@link Authentication} 
+     */
+    private static final class CachingPassword implements Password {
+        private final String key;
+        private final Password password;
+        // What we last handed out, so that forgetting it can't forget
+        // a password that got remembered since
+        private volatile CachedPassword last;
+        
+        private CachingPassword(String key, Password password) {
+            this.key = key;
+            this.password = password;
+        }
+        
+        void forget() {
+            CachedPassword cached = last;
+            if (cached != null && passwords.remove(key, cached)) {
+                cached.clear();
+            }
+        }
+        
+        @Override
+        public char[] getPassword() {
+            if (passwordCacheMillis <= 0) {
+                return password.getPassword();
+            }
+            while (true) {
+                CachedPassword cached = passwords.get(key);
+                if (cached == null) {
+                    CachedPassword created = new CachedPassword(key, password);
+                    cached = passwords.putIfAbsent(key, created);
+                    if (cached == null) {
+                        cached = created;
+                        created.task.run();
+                    }
+                }
+                if (cached.isExpired()) {
+                    if (passwords.remove(key, cached)) {
+                        cached.clear();
+                    }
+                    continue;
+                }
+                try {
+                    char[] result = cached.task.get();
+                    // Callers are free to zero what they get
+                    result = result != null ? result.clone() : null;
+                    if (cached.cleared) {
+                        // Might have copied it while it was being zeroed
+                        continue;
+                    }
+                    last = cached;
+                    return result;
+                } catch (ExecutionException e) {
+                    // Don't remember failures, the next attempt might work
+                    passwords.remove(key, cached);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    throw new RuntimeException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+    
+    private static final class CachedPassword {
+        final FutureTask<char[]> task;
+        // Only starts counting once the password is known
+        private volatile long expires = Long.MAX_VALUE;
+        private volatile ScheduledFuture<?> expiry;
+        volatile boolean cleared;
+        
+        CachedPassword(final String key, final Password password) {
+            task = new FutureTask<char[]>(new Callable<char[]>() {
+                @Override
+                public char[] call() {
+                    char[] result = password.getPassword();
+                    long millis = passwordCacheMillis;
+                    expires = System.currentTimeMillis() + millis;
+                    expiry = expirer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (passwords.remove(key, CachedPassword.this)) {
+                                clear();
+                            }
+                        }
+                    }, millis, TimeUnit.MILLISECONDS);
+                    return result;
+                }
+            });
+        }
+        
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+        
+        void clear() {
+            cleared = true;
+            ScheduledFuture<?> expiry = this.expiry;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            if (task.isDone()) {
+                try {
+                    char[] password = task.get();
+                    if (password != null) {
+                        Arrays.fill(password, '\0');
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // Nothing to clear
+                }
+            }
+        }
+    }
+    
     /**
      * <p>Configures {@code java.net} according to the given Proxy's 
      * settings.</p>
@@ -295,9 +455,11 @@ public class Authentication {
         if (credentials.getAlias() != null) {
             final String passwordKeystore = credentials.getKeystore();
             final Store store = keystores.getStore(passwordKeystore);
-            p = new StoredPassword(passwordKeystore, store, credentials.getAlias());
+            p = new CachingPassword(storedPasswordKey(store.getFilename()) + passwordKeystore + "\0" + credentials.getAlias(),
+                    new StoredPassword(passwordKeystore, store, credentials.getAlias()));
         } else if (credentials.getUser() != null && credentials.getPassword() == null) {
-             p = new PromptedPassword(credentials.getCredentialPrompt());
+             p = new CachingPassword("prompt\0" + credentials.getUser() + "\0" + credentials.getCredentialPrompt(),
+                     new PromptedPassword(credentials.getCredentialPrompt()));
         } else {
             // else no password, or plain text password
             p = new PlaintextPassword(credentials.getPassword());
@@ -320,11 +482,79 @@ public class Authentication {
     }
     
     /**
-     * Sets the password prompt
+     * Sets the password prompt, which also forgets all remembered passwords
      * @param passwordPrompt
      */
     public static synchronized void setPasswordPrompt(PasswordPrompt passwordPrompt) {
         Authentication.passwordPrompt = passwordPrompt;
+        clearPasswordCache();
+    }
+    
+    /**
+     * Sets for how long passwords are remembered after they were prompted
+     * for or read from a keystore, zero means they aren't remembered at all.
+     * Only affects passwords that get remembered from now on.
+     */
+    public static void setPasswordCacheTime(long time, TimeUnit unit) {
+        passwordCacheMillis = unit.toMillis(time);
+        if (passwordCacheMillis <= 0) {
+            clearPasswordCache();
+        }
+    }
+    
+    /**
+     * Forgets all remembered passwords
+     */
+    public static void clearPasswordCache() {
+        for (String key : passwords.keySet()) {
+            CachedPassword cached = passwords.remove(key);
+            if (cached != null) {
+                cached.clear();
+            }
+        }
+    }
+    
+    /**
+     * Forgets the remembered passwords that were read from the keystore
+     * with the given file name, called when the keystore gets changed
+     */
+    static void clearPasswordCache(String keystoreFilename) {
+        String prefix = storedPasswordKey(keystoreFilename);
+        for (String key : passwords.keySet()) {
+            if (key.startsWith(prefix)) {
+                CachedPassword cached = passwords.remove(key);
+                if (cached != null) {
+                    cached.clear();
+                }
+            }
+        }
+    }
+    
+    private static String storedPasswordKey(String keystoreFilename) {
+        return "keystore\0" + keystoreFilename + "\0";
+    }
+    
+    private static synchronized ScheduledExecutorService expirer() {
+        if (expirer == null) {
+            expirer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            PerThreadPrintStream.detachCurrentThread();
+                            r.run();
+                        }
+                    }, "ceylon-password-expirer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            expirer.setKeepAliveTime(1, TimeUnit.SECONDS);
+            expirer.allowCoreThreadTimeOut(true);
+            expirer.setRemoveOnCancelPolicy(true);
+        }
+        return expirer;
     }
 
     private Keystores keystores;
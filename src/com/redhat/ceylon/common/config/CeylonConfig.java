@@ -3,10 +3,17 @@ package com.redhat.ceylon.common.config;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class to hold, retrieve and set Ceylon configuration values (options).
@@ -34,15 +41,24 @@ import java.util.LinkedHashSet;
  * Several static helper methods exists for easy access to the default
  * Ceylon configuration.
  * 
+ * Internally the options are kept in an immutable {@link Snapshot} made
+ * of layers that are shared between configurations, so reading never
+ * needs a lock, merging just stacks the layers of the other configuration
+ * on top of ours and copying is free. Writers never lock either, they
+ * create a new snapshot and publish it with a compare-and-set, trying
+ * again if another writer got there first.
+ * 
  * @author Tako Schotanus (tako@ceylon-lang.org)
  */
 public class CeylonConfig {
-    private HashMap<String, String[]> options;
-    private HashMap<String, HashSet<String>> sectionNames;
-    private HashMap<String, HashSet<String>> optionNames;
+    private final AtomicReference<Snapshot> snapshot;
     
     private static final ThreadLocal<CeylonConfig> localInstance = new InheritableThreadLocal<CeylonConfig>();
     
+    // Objects belonging to this configuration, like its Repositories,
+    // by type, created when first needed
+    private final ConcurrentHashMap<Class<?>, Object> attachments = new ConcurrentHashMap<Class<?>, Object>();
+    
     /**
      * Retrieves the default configuration for the current thread.
      * @return Default CeylonConfig object
@@ -95,10 +111,23 @@ public class CeylonConfig {
     }
     
     public CeylonConfig() {
-        options = new LinkedHashMap<String, String[]>();
-        sectionNames = new LinkedHashMap<String, HashSet<String>>();
-        sectionNames.put("", new LinkedHashSet<String>());
-        optionNames = new LinkedHashMap<String, HashSet<String>>();
+        this(Snapshot.EMPTY);
+    }
+    
+    private CeylonConfig(Snapshot snapshot) {
+        this.snapshot = new AtomicReference<Snapshot>(snapshot);
+    }
+    
+    /**
+     * Creates a configuration holding the given options, in the given
+     * order, in one go. The map is not copied so it must not be
+     * modified afterwards.
+     */
+    static CeylonConfig fromOptions(LinkedHashMap<String, String[]> options) {
+        for (Map.Entry<String, String[]> entry : options.entrySet()) {
+            checkOption(entry.getKey(), entry.getValue());
+        }
+        return new CeylonConfig(Snapshot.EMPTY.push(new Layer(options)));
     }
     
     static class Key {
@@ -151,39 +180,13 @@ public class CeylonConfig {
         }
     }
     
-    private void initLookupKey(String key) {
-        Key k = new Key(key);
-
-        if (!k.getParentSectionName().isEmpty()) {
-            initLookupKey(k.getParentSectionName() + ".#");
-        }
-        
-        HashSet<String> psn = sectionNames.get(k.getParentSectionName());
-        psn.add(k.getSubsectionName());
-        
-        HashSet<String> sn = sectionNames.get(k.getSectionName());
-        if (sn == null) {
-            sn = new LinkedHashSet<String>();
-            sectionNames.put(k.getSectionName(), sn);
-        }
-        
-        if (!"#".equals(k.getOptionName())) {
-            HashSet<String> on = optionNames.get(k.getSectionName());
-            if (on == null) {
-                on = new LinkedHashSet<String>();
-                optionNames.put(k.getSectionName(), on);
-            }
-            on.add(k.getOptionName());
-        }
-    }
-    
     /**
      * Returns the "size" of the configuration which is defined
      * as the number of unique option names
      * @return The size of the configuration
      */
-    public synchronized int size() {
-        return options.size();
+    public int size() {
+        return snapshot.get().index().options.size();
     }
     
     /**
@@ -191,8 +194,8 @@ public class CeylonConfig {
      * @param key The name of the option to check for
      * @return Boolean indicating if the option exists
      */
-    public synchronized boolean isOptionDefined(String key) {
-        return options.containsKey(key);
+    public boolean isOptionDefined(String key) {
+        return snapshot.get().get(key) != null;
     }
 
     /**
@@ -200,8 +203,10 @@ public class CeylonConfig {
      * @param key The name of the option to retrieve
      * @return The array of values or "null" if the option didn't exist
      */
-    public synchronized String[] getOptionValues(String key) {
-        return options.get(key);
+    public String[] getOptionValues(String key) {
+        // The arrays are shared with copies of this configuration
+        String[] values = snapshot.get().get(key);
+        return (values != null) ? values.clone() : null;
     }
 
     /**
@@ -210,19 +215,29 @@ public class CeylonConfig {
      * @param key The name of the option to define
      * @param values Array of values to use or "null"
      */
-    public synchronized void setOptionValues(String key, String[] values) {
+    public void setOptionValues(String key, String[] values) {
         if (values != null && values.length > 0) {
-            for (String val : values) {
-                if (val == null) {
-                    throw new IllegalArgumentException("Option value cannot be null");
-                }
-            }
-            options.put(key, values);
-            initLookupKey(key);
+            // The caller keeps its array, ours gets shared with copies
+            values = values.clone();
+            checkOption(key, values);
+            Snapshot current;
+            do {
+                current = snapshot.get();
+            } while (!snapshot.compareAndSet(current, current.with(key, values)));
         } else {
             removeOption(key);
         }
     }
+    
+    private static void checkOption(String key, String[] values) {
+        // Makes sure the key has a section
+        new Key(key);
+        for (String val : values) {
+            if (val == null) {
+                throw new IllegalArgumentException("Option value cannot be null");
+            }
+        }
+    }
 
     /**
      * Retrieves a single value for the given option. If more than one
@@ -231,7 +246,7 @@ public class CeylonConfig {
      * @return The (first) value of the option or "null" if the option didn't exist 
      */
     public String getOption(String key) {
-        String[] result = getOptionValues(key);
+        String[] result = snapshot.get().get(key);
         return (result != null) ? result[0] : null;
     }
     
@@ -247,6 +262,16 @@ public class CeylonConfig {
         return (result != null) ? result : defaultValue;
     }
     
+    /**
+     * Retrieves the typed value of the given option. The value is only
+     * parsed once for as long as the configuration doesn't change
+     * @param key The option to retrieve
+     * @return The value of the option as determined by the key
+     */
+    public <T> T getOption(ConfigKey<T> key) {
+        return snapshot.get().value(key);
+    }
+    
     /**
      * Defines a sinlge value for the given option, if passing
      * "null" the option will be removed from the configuration
@@ -370,35 +395,15 @@ public class CeylonConfig {
      * Removes the given option (does nothing if it doesn't exist)
      * @param key The name of the option to remove
      */
-    public synchronized void removeOption(String key) {
-        Key k = new Key(key);
-        options.remove(key);
-        HashSet<String> on = optionNames.get(k.getSectionName());
-        if (on != null) {
-            on.remove(k.getOptionName());
-            if (on.isEmpty()) {
-                cleanupSection(k.getSectionName());
+    public void removeOption(String key) {
+        new Key(key);
+        Snapshot current;
+        do {
+            current = snapshot.get();
+            if (current.get(key) == null) {
+                return;
             }
-        }
-    }
-    
-    private void cleanupSection(String sectionName) {
-        HashSet<String> on = optionNames.get(sectionName);
-        if (on != null && on.isEmpty()) {
-            optionNames.remove(sectionName);
-        }
-        HashSet<String> sn = sectionNames.get(sectionName);
-        if (sn != null && sn.isEmpty()) {
-            sectionNames.remove(sectionName);
-        }
-        if (!optionNames.containsKey(sectionName) && !sectionNames.containsKey(sectionName)) {
-            Key k = new Key(sectionName + ".dummy");
-            HashSet<String> psn = sectionNames.get(k.getParentSectionName());
-            psn.remove(k.getSubsectionName());
-            if (!k.getParentSectionName().isEmpty()) {
-                cleanupSection(k.getParentSectionName());
-            }
-        }
+        } while (!snapshot.compareAndSet(current, current.without(key)));
     }
 
     /**
@@ -406,8 +411,8 @@ public class CeylonConfig {
      * @param section The name of the section to check for
      * @return Boolean indicating if the section exists
      */
-    public synchronized boolean isSectionDefined(String section) {
-        return sectionNames.containsKey(section);
+    public boolean isSectionDefined(String section) {
+        return snapshot.get().index().sections.containsKey(section);
     }
 
     /**
@@ -415,16 +420,17 @@ public class CeylonConfig {
      * (does nothing if it doesn't exist)
      * @param key The name of the option to remove
      */
-    public synchronized void removeSection(String section) {
-        String sectionDot = section + ".";
-        if (isSectionDefined(section)) {
-            LinkedHashSet<String> keys = new LinkedHashSet<String>(options.keySet());
-            for (String key : keys) {
-                if (key.startsWith(sectionDot)) {
-                    removeOption(key);
-                }
+    public void removeSection(String section) {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+            // Only checked when that's cheap, removing a section that
+            // doesn't exist does no harm
+            Index index = current.index;
+            if (index != null && !index.sections.containsKey(section)) {
+                return;
             }
-        }
+        } while (!snapshot.compareAndSet(current, current.withoutSection(section)));
     }
     
     /**
@@ -436,12 +442,17 @@ public class CeylonConfig {
      * And will return all section names if being passed null.
      * @return An array of the requested section names
      */
-    public synchronized String[] getSectionNames(String section) {
-        HashSet<String> sn;
+    public String[] getSectionNames(String section) {
+        Index index = snapshot.get().index();
+        Set<String> sn;
         if (section != null) {
-            sn = sectionNames.get(section);
+            Node node = index.sections.get(section);
+            if (node == null) {
+                return null;
+            }
+            sn = node.sections.keySet();
         } else {
-            sn = new LinkedHashSet<String>(sectionNames.keySet());
+            sn = new LinkedHashSet<String>(index.sections.keySet());
             sn.remove("");
         }
         String[] res = new String[sn.size()];
@@ -454,27 +465,38 @@ public class CeylonConfig {
      * @param section The name of the section or "null"
      * @return An array of option names or "null" if the section doesn't exist
      */
-    public synchronized String[] getOptionNames(String section) {
+    public String[] getOptionNames(String section) {
+        Index index = snapshot.get().index();
         if (section == null) {
-            String[] res = new String[options.keySet().size()];
-            return options.keySet().toArray(res);
+            String[] res = new String[index.options.size()];
+            return index.options.keySet().toArray(res);
         } else {
-            if (isSectionDefined(section)) {
-                HashSet<String> on = optionNames.get(section);
-                if (on != null) {
-                    String[] res = new String[on.size()];
-                    return on.toArray(res);
-                } else {
-                    // A section can have only subsections and
-                    // no options of its own
-                    return new String[0];
-                }
+            Node node = index.sections.get(section);
+            if (node != null) {
+                // A section can have only subsections and
+                // no options of its own
+                String[] res = new String[node.options.size()];
+                return node.options.keySet().toArray(res);
             } else {
                 return null;
             }
         }
     }
 
+    /**
+     * Returns a view of the given section as it is right now, later
+     * changes to the configuration aren't visible through it. Looking
+     * up options through the view doesn't involve putting together
+     * their full names, which makes it the cheapest way to read several
+     * options from the same section.
+     * @param section The name of the section
+     * @return A view of the section, which is empty if the section
+     * doesn't exist
+     */
+    public Section section(String section) {
+        return new Section(section, snapshot.get().index().sections.get(section));
+    }
+
     /**
      * Merges the options from the given configuration with the current
      * one where duplicate options that exist locally will be overwritten
@@ -482,22 +504,56 @@ public class CeylonConfig {
      * @param local
      * @return
      */
-    public synchronized CeylonConfig merge(CeylonConfig other) {
-        for (String key : other.getOptionNames(null)) {
-            String[] values = other.getOptionValues(key);
-            setOptionValues(key, values);
-        }
+    public CeylonConfig merge(CeylonConfig other) {
+        Snapshot others = other.snapshot.get();
+        Snapshot current;
+        do {
+            current = snapshot.get();
+        } while (!snapshot.compareAndSet(current, current.merge(others)));
         return this;
     }
 
+    /**
+     * Replaces the entire contents of this configuration with that
+     * of the given one in a single step
+     */
+    void replaceWith(CeylonConfig other) {
+        snapshot.set(other.snapshot.get());
+    }
+
+    /*
+     * Returns the object of the given type belonging to this
+     * configuration or "null" if there is none yet
+     */
+    <T> T getAttachment(Class<T> type) {
+        return type.cast(attachments.get(type));
+    }
+
+    /*
+     * Makes the given object the one of the given type belonging to
+     * this configuration unless there already is one, returns the one
+     * that ends up belonging to it
+     */
+    <T> T attach(Class<T> type, T value) {
+        Object old = attachments.putIfAbsent(type, value);
+        return (old != null) ? type.cast(old) : value;
+    }
+
+    /*
+     * Returns an object that stays the same for as long as the contents
+     * of this configuration don't change, for caching things derived
+     * from them
+     */
+    Object version() {
+        return snapshot.get();
+    }
+
     /**
      * Returns an exact and safe copy of the current configuration
      * @return A clone of the current configuration
      */
     public CeylonConfig copy() {
-        CeylonConfig cfg = new CeylonConfig();
-        cfg.merge(this);
-        return cfg;
+        return new CeylonConfig(snapshot.get());
     }
 
     @Override
@@ -510,4 +566,406 @@ public class CeylonConfig {
             return super.toString();
         }
     }
+
+    /**
+     * A read-only view of a single section of a configuration
+     * @see CeylonConfig#section(String)
+     */
+    public static final class Section {
+        private final String name;
+        private final Node node;
+        
+        private Section(String name, Node node) {
+            this.name = name;
+            this.node = node;
+        }
+        
+        /**
+         * Returns the full name of the section
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Determines if the section exists
+         */
+        public boolean isDefined() {
+            return node != null;
+        }
+        
+        /**
+         * Returns the values of the given option of this section
+         * @param option The name of the option, without the section
+         * @return The values or "null" if the option doesn't exist
+         */
+        public String[] getOptionValues(String option) {
+            String[] values = (node != null) ? node.options.get(option) : null;
+            return (values != null) ? values.clone() : null;
+        }
+        
+        /**
+         * Returns the first value of the given option of this section
+         * @param option The name of the option, without the section
+         * @return The value or "null" if the option doesn't exist
+         */
+        public String getOption(String option) {
+            String[] values = (node != null) ? node.options.get(option) : null;
+            return (values != null) ? values[0] : null;
+        }
+        
+        /**
+         * Returns the first value of the given option of this section
+         * @param option The name of the option, without the section
+         * @param defaultValue The value to return if the option doesn't exist
+         */
+        public String getOption(String option, String defaultValue) {
+            String result = getOption(option);
+            return (result != null) ? result : defaultValue;
+        }
+        
+        /**
+         * Returns the names of the options of this section
+         * @return An array of option names, empty if the section doesn't exist
+         */
+        public String[] getOptionNames() {
+            if (node == null) {
+                return new String[0];
+            }
+            String[] res = new String[node.options.size()];
+            return node.options.keySet().toArray(res);
+        }
+        
+        /**
+         * Returns the names (without this section's name) of the
+         * subsections of this section
+         * @return An array of section names, empty if the section doesn't exist
+         */
+        public String[] getSectionNames() {
+            if (node == null) {
+                return new String[0];
+            }
+            String[] res = new String[node.sections.size()];
+            return node.sections.keySet().toArray(res);
+        }
+        
+        /**
+         * Returns a view of the given subsection of this section
+         * @param subsection The name of the subsection, without this
+         * section's name
+         */
+        public Section section(String subsection) {
+            Node sub = (node != null) ? node.sections.get(subsection) : null;
+            return new Section(name + "." + subsection, sub);
+        }
+        
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /*
+     * An immutable stack of option layers, upper layers override the
+     * values of lower ones and can hide options and whole sections of
+     * lower ones, which makes removing things as cheap as adding them.
+     * Layers are never modified once they're part of a snapshot so they
+     * can be shared between snapshots (and thus between configurations).
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new Layer[0]);
+        
+        // Beyond this many layers lookups get slow enough to flatten them
+        private static final int MAX_LAYERS = 8;
+        // Up to this size the top layer is copied to add an option to it,
+        // beyond it a new layer is started
+        private static final int MAX_COPY = 32;
+        
+        private static final Object NULL = new Object();
+        
+        private final Layer[] layers;
+        private volatile Index index;
+        // The parsed values of typed options
+        private volatile ConcurrentHashMap<ConfigKey<?>, Object> values;
+        
+        private Snapshot(Layer[] layers) {
+            this.layers = layers;
+        }
+        
+        String[] get(String key) {
+            for (int i = layers.length - 1; i >= 0; i--) {
+                Layer layer = layers[i];
+                String[] values = layer.options.get(key);
+                if (values != null) {
+                    return (values != Layer.REMOVED) ? values : null;
+                }
+                if (layer.hidesSectionOf(key)) {
+                    return null;
+                }
+            }
+            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        <T> T value(ConfigKey<T> key) {
+            ConcurrentHashMap<ConfigKey<?>, Object> vals = values;
+            if (vals == null) {
+                // Losing a race here only means something gets parsed twice
+                vals = new ConcurrentHashMap<ConfigKey<?>, Object>();
+                values = vals;
+            }
+            Object value = vals.get(key);
+            if (value == null) {
+                T parsed = key.parse(get(key.getKey()));
+                vals.putIfAbsent(key, (parsed != null) ? parsed : NULL);
+                return parsed;
+            }
+            return (value != NULL) ? (T)value : null;
+        }
+        
+        Snapshot with(String key, String[] values) {
+            Layer top = top();
+            // An option that was removed in the top layer gets added in a
+            // new one, so it ends up last like any newly added option
+            if (top != null
+                    && top.options.size() < MAX_COPY
+                    && top.options.get(key) != Layer.REMOVED
+                    && !top.hidesSectionOf(key)) {
+                LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>(top.options);
+                options.put(key, values);
+                return withTop(new Layer(options, top.removedSections, top.removes));
+            } else {
+                return push(new Layer(Collections.singletonMap(key, values)));
+            }
+        }
+        
+        /*
+         * Removes the given option
+         */
+        Snapshot without(String key) {
+            Layer top = top();
+            if (top != null && top.options.size() < MAX_COPY) {
+                LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>(top.options);
+                if (layers.length == 1 && top.removedSections == null) {
+                    // Nothing below to hide
+                    options.remove(key);
+                    return options.isEmpty() ? EMPTY : withTop(new Layer(options, null, top.removes));
+                }
+                options.put(key, Layer.REMOVED);
+                return withTop(new Layer(options, top.removedSections, true));
+            } else {
+                return push(new Layer(Collections.singletonMap(key, Layer.REMOVED), null, true));
+            }
+        }
+        
+        /*
+         * Removes all options of the given section and its subsections
+         */
+        Snapshot withoutSection(String section) {
+            Layer top = top();
+            if (top != null && top.options.size() < MAX_COPY) {
+                // The options of the top layer must not be hidden by its
+                // own removed sections, so they go
+                LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>();
+                for (Map.Entry<String, String[]> entry : top.options.entrySet()) {
+                    if (!isInSection(entry.getKey(), section)) {
+                        options.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                HashSet<String> sections = (top.removedSections != null) 
+                        ? new HashSet<String>(top.removedSections) : new HashSet<String>();
+                sections.add(section);
+                return withTop(new Layer(options, sections, true));
+            } else {
+                Map<String, String[]> none = Collections.emptyMap();
+                return push(new Layer(none, Collections.singleton(section), true));
+            }
+        }
+        
+        Snapshot push(Layer layer) {
+            if (layer.options.isEmpty() && !layer.removes) {
+                return this;
+            }
+            Layer[] newLayers = Arrays.copyOf(layers, layers.length + 1);
+            newLayers[layers.length] = layer;
+            return flattenIfNeeded(newLayers);
+        }
+        
+        Snapshot merge(Snapshot other) {
+            if (other.layers.length == 0) {
+                return this;
+            } else if (layers.length == 0) {
+                return other;
+            }
+            Layer[] others = other.layers;
+            for (Layer layer : others) {
+                if (layer.removes) {
+                    // Its removals only apply to its own options, not ours
+                    others = new Layer[] { new Layer(other.index().options) };
+                    break;
+                }
+            }
+            Layer[] newLayers = Arrays.copyOf(layers, layers.length + others.length);
+            System.arraycopy(others, 0, newLayers, layers.length, others.length);
+            return flattenIfNeeded(newLayers);
+        }
+        
+        private Layer top() {
+            return (layers.length > 0) ? layers[layers.length - 1] : null;
+        }
+        
+        private Snapshot withTop(Layer top) {
+            Layer[] newLayers = layers.clone();
+            newLayers[newLayers.length - 1] = top;
+            return new Snapshot(newLayers);
+        }
+        
+        private static Snapshot flattenIfNeeded(Layer[] layers) {
+            if (layers.length > MAX_LAYERS) {
+                Map<String, String[]> options = flatten(layers);
+                return options.isEmpty() ? EMPTY : new Snapshot(new Layer[] { new Layer(options) });
+            }
+            return new Snapshot(layers);
+        }
+        
+        /*
+         * Options appear in the order they were first defined in, which is
+         * the order of the lowest layer they appear in, except for options
+         * that were removed and added again which appear where they were
+         * added the last time
+         */
+        private static Map<String, String[]> flatten(Layer[] layers) {
+            if (layers.length == 1 && !layers[0].removes) {
+                return layers[0].options;
+            }
+            LinkedHashMap<String, String[]> result = new LinkedHashMap<String, String[]>();
+            // Only needed to find the options of removed sections quickly
+            TreeSet<String> sorted = null;
+            for (Layer layer : layers) {
+                if (layer.removedSections != null) {
+                    if (sorted == null) {
+                        sorted = new TreeSet<String>(result.keySet());
+                    }
+                    for (String section : layer.removedSections) {
+                        // All keys starting with "section." ('/' follows '.')
+                        SortedSet<String> keys = sorted.subSet(section + ".", section + "/");
+                        result.keySet().removeAll(keys);
+                        keys.clear();
+                    }
+                }
+                for (Map.Entry<String, String[]> entry : layer.options.entrySet()) {
+                    if (entry.getValue() == Layer.REMOVED) {
+                        result.remove(entry.getKey());
+                        if (sorted != null) {
+                            sorted.remove(entry.getKey());
+                        }
+                    } else {
+                        result.put(entry.getKey(), entry.getValue());
+                        if (sorted != null) {
+                            sorted.add(entry.getKey());
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+        
+        Index index() {
+            Index idx = index;
+            if (idx == null) {
+                idx = new Index(flatten(layers));
+                index = idx;
+            }
+            return idx;
+        }
+    }
+    
+    private static boolean isInSection(String key, String section) {
+        return key.length() > section.length() 
+                && key.charAt(section.length()) == '.' 
+                && key.startsWith(section);
+    }
+    
+    /*
+     * A map of options that is never modified once it's part of a
+     * snapshot, possibly hiding options and sections of the layers below
+     */
+    private static final class Layer {
+        // Marks options hidden by this layer
+        static final String[] REMOVED = new String[0];
+        
+        final Map<String, String[]> options;
+        // Sections hidden by this layer, or "null". They never contain
+        // any of the options of this layer.
+        final Set<String> removedSections;
+        // Whether this layer hides anything at all
+        final boolean removes;
+        
+        Layer(Map<String, String[]> options) {
+            this(options, null, false);
+        }
+        
+        Layer(Map<String, String[]> options, Set<String> removedSections, boolean removes) {
+            this.options = options;
+            this.removedSections = removedSections;
+            this.removes = removes;
+        }
+        
+        boolean hidesSectionOf(String key) {
+            if (removedSections != null) {
+                for (int p = key.indexOf('.'); p >= 0; p = key.indexOf('.', p + 1)) {
+                    if (removedSections.contains(key.substring(0, p))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+    
+    /*
+     * The sections of a snapshot as a tree, worked out the first time
+     * it's needed
+     */
+    private static final class Index {
+        final Map<String, String[]> options;
+        // All sections by their full name, parents come before their subsections
+        final LinkedHashMap<String, Node> sections;
+        
+        Index(Map<String, String[]> options) {
+            this.options = options;
+            sections = new LinkedHashMap<String, Node>();
+            sections.put("", new Node(""));
+            for (Map.Entry<String, String[]> entry : options.entrySet()) {
+                String key = entry.getKey();
+                int p = key.lastIndexOf('.');
+                node(key.substring(0, p)).options.put(key.substring(p + 1), entry.getValue());
+            }
+        }
+        
+        private Node node(String section) {
+            Node node = sections.get(section);
+            if (node == null) {
+                Key k = new Key(section + ".#");
+                Node parent = node(k.getParentSectionName());
+                node = new Node(section);
+                parent.sections.put(k.getSubsectionName(), node);
+                sections.put(section, node);
+            }
+            return node;
+        }
+    }
+    
+    /*
+     * A section with its options and its subsections
+     */
+    private static final class Node {
+        final String name;
+        final LinkedHashMap<String, Node> sections = new LinkedHashMap<String, Node>();
+        final LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>();
+        
+        Node(String name) {
+            this.name = name;
+        }
+    }
 }
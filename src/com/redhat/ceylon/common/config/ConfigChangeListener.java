@@ -0,0 +1,16 @@
+package com.redhat.ceylon.common.config;
+
+/**
+ * Gets notified by a {@link ConfigWatcher} each time the configuration
+ * it watches has been reloaded.
+ */
+public interface ConfigChangeListener {
+
+    /**
+     * Called after the contents of the given configuration have been
+     * replaced by the ones just loaded from disk. Called on the
+     * watcher's own thread.
+     */
+    void configChanged(CeylonConfig config);
+
+}
@@ -0,0 +1,297 @@
+package com.redhat.ceylon.common.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes {@link CeylonConfig} instances in a compact binary format, for
+ * passing configurations between processes or caching them on disk,
+ * and decodes them again.
+ * <p>
+ * The format starts with a magic number and a version, followed by a
+ * table of all the distinct strings used by the configuration (section
+ * name parts, option names and values), a table of sections and then
+ * the options themselves. Each section consists of the index of its
+ * parent section plus one (or zero if it has none) and the index of the
+ * last part of its name in the string table, so sections with the same
+ * prefix share it. Each option consists of the index of its section,
+ * the index of its name in the string table, the number of values and
+ * the index of each value. All numbers
+ * except the magic number are written as unsigned variable length
+ * integers, 7 bits per byte with the high bit set on all but the last
+ * byte, and all strings are UTF-8.
+ * <p>
+ * Decoding works directly on the given buffer, strings are created from
+ * the buffer's contents without any intermediate copies.
+ */
+public class ConfigCodec {
+    private static final int MAGIC = 0x43434647; // "CCFG"
+    private static final int VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ConfigCodec() {
+    }
+
+    /**
+     * Returns the given configuration in binary form
+     */
+    public static byte[] encode(CeylonConfig config) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(config, out);
+        } catch (IOException e) {
+            // Can't happen
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the given configuration in binary form to the given stream
+     */
+    public static void encode(CeylonConfig config, OutputStream out) throws IOException {
+        String[] keys = config.getOptionNames(null);
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        Map<String, Integer> sectionIndexes = new HashMap<String, Integer>();
+        // Pairs of parent and name per section
+        List<Integer> sections = new ArrayList<Integer>();
+        // Enough for options with a single value, grown when needed
+        int[] entries = new int[keys.length * 4];
+        int n = 0;
+        for (String key : keys) {
+            String[] values = config.getOptionValues(key);
+            int p = key.lastIndexOf('.');
+            int section = sectionIndex(key.substring(0, p), sectionIndexes, sections, indexes, strings);
+            int name = index(key.substring(p + 1), indexes, strings);
+            if (n + 3 + values.length > entries.length) {
+                int[] tmp = new int[Math.max(entries.length * 2, n + 3 + values.length)];
+                System.arraycopy(entries, 0, tmp, 0, n);
+                entries = tmp;
+            }
+            entries[n++] = section;
+            entries[n++] = name;
+            entries[n++] = values.length;
+            for (String value : values) {
+                entries[n++] = index(value, indexes, strings);
+            }
+        }
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(256 + n * 2);
+        buf.write(MAGIC >>> 24);
+        buf.write(MAGIC >>> 16);
+        buf.write(MAGIC >>> 8);
+        buf.write(MAGIC);
+        writeVarint(buf, VERSION);
+        writeVarint(buf, strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarint(buf, bytes.length);
+            buf.write(bytes, 0, bytes.length);
+        }
+        writeVarint(buf, sections.size() / 2);
+        for (int section : sections) {
+            writeVarint(buf, section);
+        }
+        writeVarint(buf, keys.length);
+        for (int i = 0; i < n; i++) {
+            writeVarint(buf, entries[i]);
+        }
+        buf.writeTo(out);
+    }
+
+    /**
+     * Reads a configuration from the given binary data
+     * @throws IOException If the data isn't a valid encoded configuration
+     */
+    public static CeylonConfig decode(byte[] data) throws IOException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Reads a configuration from the bytes between the given buffer's
+     * position and its limit, leaving the position right after the
+     * configuration
+     * @throws IOException If the data isn't a valid encoded configuration
+     */
+    public static CeylonConfig decode(ByteBuffer buf) throws IOException {
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Not an encoded configuration");
+            }
+            int version = readVarint(buf);
+            if (version != VERSION) {
+                throw new IOException("Unsupported encoded configuration version " + version);
+            }
+            // Counts are checked against the bytes left before anything
+            // gets allocated, so corrupt data can't make us run out of memory
+            String[] strings = new String[readCount(buf, 1)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(buf, readVarint(buf));
+            }
+            String[] sections = new String[readCount(buf, 2)];
+            for (int i = 0; i < sections.length; i++) {
+                int parent = readVarint(buf);
+                String name = strings[readVarint(buf)];
+                if (parent > i) {
+                    throw new IOException("Corrupt encoded configuration");
+                }
+                sections[i] = (parent == 0) ? name : sections[parent - 1] + "." + name;
+            }
+            int count = readCount(buf, 3);
+            LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String section = sections[readVarint(buf)];
+                String name = strings[readVarint(buf)];
+                String[] values = new String[readCount(buf, 1)];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = strings[readVarint(buf)];
+                }
+                options.put(section + "." + name, values);
+            }
+            return CeylonConfig.fromOptions(options);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated encoded configuration");
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt encoded configuration");
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Corrupt encoded configuration: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the given configuration in binary form to the given file.
+     * The data is written to a temporary file first which then replaces
+     * the destination, so concurrent readers never see a partial file.
+     */
+    public static void write(CeylonConfig config, File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmpFile = File.createTempFile("." + file.getName() + "-", ".tmp", dir);
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                encode(config, out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Reads a configuration written by {@link #write(CeylonConfig, File)}
+     * @throws IOException If the file couldn't be read or doesn't contain
+     * a valid encoded configuration
+     */
+    public static CeylonConfig read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() >= ConfigParser.MAP_THRESHOLD) {
+                return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } else {
+                byte[] data = new byte[(int)channel.size()];
+                raf.readFully(data);
+                return decode(data);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int index(String s, Map<String, Integer> indexes, List<String> strings) {
+        Integer idx = indexes.get(s);
+        if (idx == null) {
+            idx = strings.size();
+            strings.add(s);
+            indexes.put(s, idx);
+        }
+        return idx;
+    }
+
+    private static int sectionIndex(String section, Map<String, Integer> sectionIndexes, 
+            List<Integer> sections, Map<String, Integer> indexes, List<String> strings) {
+        Integer idx = sectionIndexes.get(section);
+        if (idx == null) {
+            int p = section.lastIndexOf('.');
+            int parent = 0;
+            if (p >= 0) {
+                parent = sectionIndex(section.substring(0, p), sectionIndexes, sections, indexes, strings) + 1;
+            }
+            idx = sections.size() / 2;
+            sections.add(parent);
+            sections.add(index(section.substring(p + 1), indexes, strings));
+            sectionIndexes.put(section, idx);
+        }
+        return idx;
+    }
+
+    private static String readString(ByteBuffer buf, int length) {
+        if (length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String result;
+        if (buf.hasArray()) {
+            result = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF8);
+            buf.position(buf.position() + length);
+        } else {
+            ByteBuffer slice = buf.slice();
+            slice.limit(length);
+            result = UTF8.decode(slice).toString();
+            buf.position(buf.position() + length);
+        }
+        return result;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Reads the number of items that follow, each taking at least the given number of bytes
+    private static int readCount(ByteBuffer buf, int minBytes) throws IOException {
+        int count = readVarint(buf);
+        if (count > buf.remaining() / minBytes) {
+            throw new IOException("Corrupt encoded configuration");
+        }
+        return count;
+    }
+
+    private static int readVarint(ByteBuffer buf) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (result < 0) {
+                    break;
+                }
+                return result;
+            }
+        }
+        throw new IOException("Corrupt encoded configuration");
+    }
+}
@@ -0,0 +1,483 @@
+package com.redhat.ceylon.common.config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Makes changes to a single configuration file while leaving everything
+ * that wasn't changed exactly as it was.
+ * <p>
+ * When the file is opened the position of every section header and every
+ * option in it is recorded. Any number of changes can then be made, and
+ * when the editor is saved only the text of the options whose values
+ * actually changed gets replaced, removed or added. Saving when nothing
+ * changed doesn't touch the file at all.
+ * <p>
+ * Unlike {@link ConfigWriter} the editor always works with the values as
+ * they are written in the file, no variables get replaced.
+ * <p>
+ * The new contents are written to a temporary file which is then renamed
+ * over the original, a copy of the original is kept with an added
+ * ".old" extension.
+ */
+public class ConfigEditor {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final String text;
+    private final String lineSeparator;
+    private final List<Span> sections;
+    private final Map<String, List<Span>> options;
+    private final CeylonConfig original;
+    private final CeylonConfig config;
+    private final List<String> removedSections = new ArrayList<String>();
+
+    private ConfigEditor(File file, String text) throws IOException {
+        this.file = file;
+        this.text = text;
+        this.lineSeparator = detectLineSeparator(text);
+        this.sections = new ArrayList<Span>();
+        this.options = new LinkedHashMap<String, List<Span>>();
+        final LinkedHashMap<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+        ConfigReader reader = new ConfigReader(CharBuffer.wrap(text), new ConfigReaderListener() {
+            private int offset = 0;
+
+            @Override
+            public void setup() throws IOException {
+            }
+
+            @Override
+            public void onSection(String section, String txt) throws IOException {
+                sections.add(new Span(section, null, offset, offset + txt.length()));
+                offset += txt.length();
+            }
+
+            @Override
+            public void onOption(String name, String value, String txt) throws IOException {
+                List<Span> spans = options.get(name);
+                List<String> vals = values.get(name);
+                if (spans == null) {
+                    spans = new ArrayList<Span>(1);
+                    options.put(name, spans);
+                    vals = new ArrayList<String>(1);
+                    values.put(name, vals);
+                }
+                spans.add(new Span(name, value, offset, offset + txt.length()));
+                vals.add(value);
+                offset += txt.length();
+                sections.get(sections.size() - 1).last = offset;
+            }
+
+            @Override
+            public void onComment(String txt) throws IOException {
+                offset += txt.length();
+            }
+
+            @Override
+            public void onWhitespace(String txt) throws IOException {
+                offset += txt.length();
+            }
+
+            @Override
+            public void cleanup() throws IOException {
+            }
+        });
+        reader.process();
+        LinkedHashMap<String, String[]> opts = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            opts.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        this.original = CeylonConfig.fromOptions(opts);
+        this.config = original.copy();
+    }
+
+    /**
+     * Opens the given configuration file for editing. A file that doesn't
+     * exist yet is treated as an empty file and will be created when the
+     * editor gets saved.
+     * @throws IOException If the file couldn't be read or if it isn't
+     * a valid configuration file
+     */
+    public static ConfigEditor open(File file) throws IOException {
+        String text;
+        if (file.isFile()) {
+            text = new String(Files.readAllBytes(file.toPath()), UTF8);
+        } else {
+            text = "";
+        }
+        return new ConfigEditor(file, text);
+    }
+
+    /** Returns the file being edited */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the values of the given option as they are now, including
+     * any changes that weren't saved yet
+     */
+    public String[] getOptionValues(String key) {
+        return config.getOptionValues(key);
+    }
+
+    /**
+     * Defines the array of values for the given option, if passing
+     * "null" or an empty array the option will be removed
+     * @see CeylonConfig#setOptionValues(String, String[])
+     */
+    public void setOptionValues(String key, String[] values) {
+        config.setOptionValues(key, values);
+    }
+
+    /**
+     * @see CeylonConfig#removeOption(String)
+     */
+    public void removeOption(String key) {
+        config.removeOption(key);
+    }
+
+    /**
+     * @see CeylonConfig#removeSection(String)
+     */
+    public void removeSection(String section) {
+        config.removeSection(section);
+        removedSections.add(section);
+    }
+
+    /**
+     * Returns true if there are changes that haven't been saved yet
+     */
+    public boolean isModified() {
+        for (String key : allKeys()) {
+            if (!Arrays.equals(original.getOptionValues(key), config.getOptionValues(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the changes to the file, returning false if there were none
+     * and the file was left alone
+     */
+    public boolean save() throws IOException {
+        String result = apply();
+        if (result == null) {
+            return false;
+        }
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            File tmpFile = File.createTempFile("." + file.getName() + "-", ".tmp", dir);
+            try {
+                OutputStream out = new FileOutputStream(tmpFile);
+                try {
+                    out.write(result.getBytes(UTF8));
+                } finally {
+                    out.close();
+                }
+                if (file.isFile()) {
+                    File backup = new File(dir, file.getName() + ".old");
+                    Files.copy(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                try {
+                    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        } finally {
+            ConfigFinder.invalidate(file);
+        }
+        return true;
+    }
+
+    /*
+     * Works out the edits that turn the original text into one that
+     * holds the current configuration, returns null if there are none
+     */
+    String apply() {
+        List<Edit> edits = new ArrayList<Edit>();
+
+        // Sections that are gone completely get removed with all their contents,
+        // sections that were empty to begin with are left alone
+        List<int[]> removed = new ArrayList<int[]>();
+        for (int i = 0; i < sections.size(); i++) {
+            Span header = sections.get(i);
+            if (!config.isSectionDefined(header.name)
+                    && (original.isSectionDefined(header.name) || isRemovedSection(header.name))) {
+                int[] range = new int[] { lineStart(header.start), blockEnd(i) };
+                removed.add(range);
+                edits.add(new Edit(range[0], range[1], ""));
+            }
+        }
+
+        TreeMap<String, StringBuilder> newSections = new TreeMap<String, StringBuilder>();
+        for (String key : allKeys()) {
+            String[] oldValues = original.getOptionValues(key);
+            String[] newValues = config.getOptionValues(key);
+            if (Arrays.equals(oldValues, newValues)) {
+                continue;
+            }
+            if (newValues == null) {
+                newValues = new String[0];
+            }
+            CeylonConfig.Key k = new CeylonConfig.Key(key);
+            List<Span> spans = options.get(key);
+            if (spans == null) {
+                spans = Collections.emptyList();
+            }
+            int insertAt = -1;
+            for (int i = 0; i < spans.size(); i++) {
+                Span span = spans.get(i);
+                if (isRemoved(removed, span.start)) {
+                    continue;
+                }
+                if (i < newValues.length) {
+                    if (!span.value.equals(newValues[i])) {
+                        edits.add(new Edit(span.start, span.end, optionText(k, newValues[i])));
+                    }
+                    insertAt = lineEnd(span.end);
+                } else {
+                    edits.add(new Edit(lineStart(span.start), lineEnd(span.end), ""));
+                }
+            }
+            if (newValues.length > spans.size()) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = spans.size(); i < newValues.length; i++) {
+                    sb.append(optionText(k, newValues[i])).append(lineSeparator);
+                }
+                if (insertAt < 0) {
+                    insertAt = sectionEnd(k.getSectionName(), removed);
+                }
+                if (insertAt >= 0) {
+                    edits.add(new Edit(insertAt, insertAt, sb.toString()));
+                } else {
+                    StringBuilder section = newSections.get(k.getSectionName());
+                    if (section == null) {
+                        section = new StringBuilder();
+                        newSections.put(k.getSectionName(), section);
+                    }
+                    section.append(sb);
+                }
+            }
+        }
+
+        // Sections that didn't exist yet get appended at the end
+        if (!newSections.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, StringBuilder> entry : newSections.entrySet()) {
+                sb.append(lineSeparator).append(sectionText(entry.getKey())).append(lineSeparator);
+                sb.append(entry.getValue());
+            }
+            edits.add(new Edit(text.length(), text.length(), sb.toString()));
+        }
+
+        if (edits.isEmpty()) {
+            return null;
+        }
+
+        // Edits are applied in order of position. At the same position
+        // insertions go before replacements and removals, so they don't
+        // end up inside the range being removed. Insertions made at the
+        // same position stay in the order they were added in
+        Collections.sort(edits, new Comparator<Edit>() {
+            @Override
+            public int compare(Edit e1, Edit e2) {
+                int result = Integer.compare(e1.start, e2.start);
+                if (result == 0) {
+                    result = Boolean.compare(!e1.isInsertion(), !e2.isInsertion());
+                }
+                return result;
+            }
+        });
+        StringBuilder result = new StringBuilder(text.length() + 64);
+        int pos = 0;
+        for (Edit edit : edits) {
+            if (edit.start < pos) {
+                if (!edit.isInsertion()) {
+                    // Falls within a range that was already removed
+                    continue;
+                }
+                // Never lose an insertion, it goes right after the
+                // range that was removed instead
+                result.append(edit.replacement);
+                continue;
+            }
+            result.append(text, pos, edit.start);
+            if (edit.start == text.length() && edit.start > 0
+                    && !edit.replacement.isEmpty() && !endsWithNewline(result)) {
+                result.append(lineSeparator);
+            }
+            result.append(edit.replacement);
+            pos = edit.end;
+        }
+        result.append(text, pos, text.length());
+        return result.toString();
+    }
+
+    private LinkedHashSet<String> allKeys() {
+        LinkedHashSet<String> keys = new LinkedHashSet<String>();
+        keys.addAll(Arrays.asList(original.getOptionNames(null)));
+        keys.addAll(Arrays.asList(config.getOptionNames(null)));
+        return keys;
+    }
+
+    private boolean isRemovedSection(String section) {
+        for (String removedSection : removedSections) {
+            if (section.equals(removedSection) || section.startsWith(removedSection + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRemoved(List<int[]> removed, int pos) {
+        for (int[] range : removed) {
+            if (pos >= range[0] && pos < range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the position right after the last line of the last
+     * remaining occurrence of the given section, or -1 if there is none
+     */
+    private int sectionEnd(String section, List<int[]> removed) {
+        for (int i = sections.size() - 1; i >= 0; i--) {
+            Span header = sections.get(i);
+            if (header.name.equals(section) && !isRemoved(removed, header.start)) {
+                return blockEnd(i);
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Returns the end of the line holding the last option of the
+     * section with the given index (or of its header if it's empty)
+     */
+    private int blockEnd(int index) {
+        return lineEnd(sections.get(index).last);
+    }
+
+    // The start of the line if there's only whitespace before the given position
+    private int lineStart(int pos) {
+        int p = pos;
+        while (p > 0 && (text.charAt(p - 1) == ' ' || text.charAt(p - 1) == '\t')) {
+            p--;
+        }
+        if (p == 0 || text.charAt(p - 1) == '\n' || text.charAt(p - 1) == '\r') {
+            return p;
+        }
+        return pos;
+    }
+
+    // The start of the next line if there's only whitespace or a comment after the given position
+    private int lineEnd(int pos) {
+        int p = pos;
+        while (p < text.length() && (text.charAt(p) == ' ' || text.charAt(p) == '\t')) {
+            p++;
+        }
+        if (p < text.length() && text.charAt(p) != ';' && text.charAt(p) != '#'
+                && text.charAt(p) != '\n' && text.charAt(p) != '\r') {
+            return pos;
+        }
+        while (p < text.length() && text.charAt(p) != '\n' && text.charAt(p) != '\r') {
+            p++;
+        }
+        if (p < text.length() && text.charAt(p) == '\r') {
+            p++;
+        }
+        if (p < text.length() && text.charAt(p) == '\n') {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean endsWithNewline(CharSequence txt) {
+        char c = txt.length() > 0 ? txt.charAt(txt.length() - 1) : '\n';
+        return c == '\n' || c == '\r';
+    }
+
+    private static String detectLineSeparator(String text) {
+        int p = text.indexOf('\n');
+        if (p > 0 && text.charAt(p - 1) == '\r') {
+            return "\r\n";
+        } else if (p >= 0) {
+            return "\n";
+        }
+        return System.lineSeparator();
+    }
+
+    private static String optionText(CeylonConfig.Key key, String value) {
+        return key.getOptionName() + "=" + ConfigWriter.quote(value);
+    }
+
+    private static String sectionText(String section) {
+        int p = section.lastIndexOf('.');
+        if (p >= 0) {
+            return "[" + section.substring(0, p) + " \"" + section.substring(p + 1) + "\"]";
+        }
+        return "[" + section + "]";
+    }
+
+    /*
+     * The position of a section header or option in the text
+     */
+    private static class Span {
+        final String name;
+        final String value;
+        final int start;
+        final int end;
+        // For section headers: the end of the last option in the section
+        int last;
+
+        Span(String name, String value, int start, int end) {
+            this.name = name;
+            this.value = value;
+            this.start = start;
+            this.end = end;
+            this.last = end;
+        }
+    }
+
+    private static class Edit {
+        final int start;
+        final int end;
+        final String replacement;
+
+        Edit(int start, int end, String replacement) {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+        
+        boolean isInsertion() {
+            return start == end;
+        }
+    }
+}
@@ -3,6 +3,17 @@ package com.redhat.ceylon.common.config;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.redhat.ceylon.common.Constants;
 import com.redhat.ceylon.common.FileUtil;
@@ -17,6 +28,14 @@ import com.redhat.ceylon.common.FileUtil;
  * 
  * Several static helper functions exist that implement several of Ceylon's
  * configuration lookup strategies.
+ * <p>
+ * Parsed configuration files are cached for the whole process and reused
+ * for as long as their modification time and size stay the same, callers
+ * always get their own copy. Directories that were found not to contain
+ * a configuration file are remembered in the same way, as are a limited
+ * number of canonical paths. The configuration made from the system properties is kept until
+ * the system properties change. Use {@link #clearCache()} to forget
+ * everything.
  * 
  * @author Tako Schotanus (tako@ceylon-lang.org)
  */
@@ -25,6 +44,18 @@ public class ConfigFinder {
     private String systemPropertyOverride;
     private ConfigTransformer transformer;
     
+    private static final long RACY_MILLIS = 2000;
+    private static final String PROPERTY_PREFIX = "ceylon.config.";
+    private static final ConcurrentHashMap<FileKey, ParsedConfig> parsedConfigs = new ConcurrentHashMap<FileKey, ParsedConfig>();
+    // Config file locations that didn't exist, with the modification
+    // time their directory had at the time
+    private static final ConcurrentHashMap<File, Long> missingConfigs = new ConcurrentHashMap<File, Long>();
+    // Canonical paths by absolute path, forgotten all at once when full
+    private static final int MAX_CANONICAL_FILES = 256;
+    private static final ConcurrentHashMap<File, File> canonicalFiles = new ConcurrentHashMap<File, File>();
+    private static volatile PropertiesConfig propertiesConfig;
+    private static final AtomicLong fileSystemProbes = new AtomicLong();
+    
     public static interface ConfigTransformer {
         CeylonConfig transform(File file, CeylonConfig config);
     }
@@ -60,6 +91,10 @@ public class ConfigFinder {
         this.transformer = transformer;
     }
     
+    String getConfigName() {
+        return configName;
+    }
+    
     /**
      * Returns the configuration using the default lookup strategy in reverse,
      * which is: first the system configuration, then the user's, and then in
@@ -198,24 +233,43 @@ public class ConfigFinder {
      * or "null" of no such file was found.
      */
     public File findLocalConfig(File dir) throws IOException {
+        List<LocalConfig> found = findLocalConfigs(dir, false);
+        if (!found.isEmpty()) {
+            return found.get(0).file;
+        }
+        // We didn't find any local config file
+        return null;
+    }
+    
+    /*
+     * Walks up the file system hierarchy once starting with the given
+     * directory, returning the local configuration files found (deepest
+     * first) together with their attributes. Only returns the first one
+     * if "all" is false.
+     */
+    private List<LocalConfig> findLocalConfigs(File dir, boolean all) throws IOException {
+        List<LocalConfig> found = new ArrayList<LocalConfig>();
         if (dir != null) {
-            File userConfig1 = (new File(FileUtil.getDefaultUserDir(), configName)).getCanonicalFile();
-            File userConfig2 = (new File(FileUtil.getUserDir(), configName)).getCanonicalFile();
-            dir = dir.getCanonicalFile();
+            File userConfig1 = canonicalFile(new File(FileUtil.getDefaultUserDir(), configName));
+            File userConfig2 = canonicalFile(new File(FileUtil.getUserDir(), configName));
+            dir = canonicalFile(dir);
             while (dir != null) {
                 File configFile = new File(new File(dir, Constants.CEYLON_CONFIG_DIR), configName);
                 if (configFile.equals(userConfig1) || configFile.equals(userConfig2)) {
                     // We stop if we reach $HOME/.ceylon/{configName} or whatever is defined by -Dceylon.user.config
                     break;
                 }
-                if (configFile.isFile()) {
-                    return configFile;
+                BasicFileAttributes attrs = configFileAttributes(dir, configFile);
+                if (attrs != null) {
+                    found.add(new LocalConfig(configFile, attrs));
+                    if (!all) {
+                        break;
+                    }
                 }
                 dir = dir.getParentFile();
             }
         }
-        // We didn't find any local config file
-        return null;
+        return found;
     }
     
     /**
@@ -233,15 +287,15 @@ public class ConfigFinder {
      * are detected
      */
     public CeylonConfig loadLocalConfig(File dir) throws IOException {
-        File configFile = findLocalConfig(dir);
-        if (configFile != null) {
-            CeylonConfig parentConfig = loadLocalConfig(dir.getCanonicalFile().getParentFile());
-            CeylonConfig localConfig = loadConfigFromFile(configFile);
-            return merge(parentConfig, localConfig);
-        } else {
-            // No config file, just return an empty CeylonConfig
-            return new CeylonConfig();
+        List<LocalConfig> found = findLocalConfigs(dir, true);
+        // No config file means an empty CeylonConfig
+        CeylonConfig config = new CeylonConfig();
+        for (int i = found.size() - 1; i >= 0; i--) {
+            LocalConfig local = found.get(i);
+            CeylonConfig localConfig = transformer.transform(local.file, parse(local.file, true, local.attrs));
+            merge(config, localConfig);
         }
+        return config;
     }
     
     /**
@@ -254,7 +308,7 @@ public class ConfigFinder {
      * are detected
      */
     public CeylonConfig loadConfigFromFile(File configFile) throws IOException {
-        return transformer.transform(configFile, (new ConfigParser(configFile)).parse(true));
+        return transformer.transform(configFile, parse(configFile, true, null));
     }
     
     /**
@@ -268,7 +322,7 @@ public class ConfigFinder {
      * are detected
      */
     public CeylonConfig loadOriginalConfigFromFile(File configFile) throws IOException {
-        return (new ConfigParser(configFile)).parse(false);
+        return parse(configFile, false, null);
     }
     
     /**
@@ -297,17 +351,260 @@ public class ConfigFinder {
      * encountered in the System properties
      */
     public CeylonConfig loadConfigFromProperties() {
-        CeylonConfig cfg = new CeylonConfig();
-        for (String key : System.getProperties().stringPropertyNames()) {
-            if (key.startsWith("ceylon.config.")) {
-                String nm = key.substring(14);
-                cfg.setOption(nm, System.getProperty(key));
+        // The properties are compared with the ones the cached
+        // configuration was made from as they're enumerated, without
+        // taking a copy, and the configuration only gets built again 
+        // when the relevant properties actually changed
+        Properties props = System.getProperties();
+        PropertiesConfig cached = propertiesConfig;
+        if (cached == null || !cached.matches(props)) {
+            LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+            Enumeration<Object> keys = props.keys();
+            while (keys.hasMoreElements()) {
+                Object key = keys.nextElement();
+                String value = configProperty(props, key);
+                if (value != null) {
+                    entries.put(((String)key).substring(PROPERTY_PREFIX.length()), value);
+                }
+            }
+            LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                options.put(entry.getKey(), new String[] { entry.getValue() });
             }
+            cached = new PropertiesConfig(CeylonConfig.fromOptions(options), entries);
+            propertiesConfig = cached;
         }
-        return cfg;
+        // Copies share the options of the cached configuration
+        return cached.config.copy();
+    }
+    
+    // The value of the given property if it's a "ceylon.config." one
+    private static String configProperty(Properties props, Object key) {
+        if (key instanceof String && ((String)key).startsWith(PROPERTY_PREFIX)) {
+            return props.getProperty((String)key);
+        }
+        return null;
     }
     
     private CeylonConfig merge(CeylonConfig pool, CeylonConfig config) {
         return pool.merge(config);
     }
+    
+    /**
+     * Forgets all cached configuration files, missing configuration
+     * files and canonical paths
+     */
+    public static void clearCache() {
+        parsedConfigs.clear();
+        missingConfigs.clear();
+        canonicalFiles.clear();
+        propertiesConfig = null;
+    }
+    
+    /**
+     * Returns the number of times the file system was queried while
+     * looking for and loading configuration files (canonicalizing paths
+     * and checking for the existence, modification time or size of files
+     * and directories) since the start of the process. Useful for
+     * checking how effective the caches are.
+     */
+    public static long getFileSystemProbes() {
+        return fileSystemProbes.get();
+    }
+    
+    /**
+     * Forgets anything cached about the given configuration file,
+     * called when it gets written
+     */
+    static void invalidate(File configFile) {
+        File file = configFile.getAbsoluteFile();
+        forget(file);
+        try {
+            forget(file.getCanonicalFile());
+        } catch (IOException e) {
+            // Nothing else to forget then
+        }
+    }
+    
+    private static void forget(File file) {
+        parsedConfigs.remove(new FileKey(file, true));
+        parsedConfigs.remove(new FileKey(file, false));
+        missingConfigs.remove(file);
+        // Writing the file might have created its directory
+        forgetCanonicalFile(file);
+        forgetCanonicalFile(file.getParentFile());
+    }
+    
+    private static void forgetCanonicalFile(File file) {
+        if (file != null) {
+            canonicalFiles.remove(file);
+            canonicalFiles.values().removeAll(Collections.singleton(file));
+        }
+    }
+    
+    private static CeylonConfig parse(File configFile, boolean replaceVars, BasicFileAttributes attrs) throws IOException {
+        File file = configFile.getAbsoluteFile();
+        if (attrs == null) {
+            try {
+                fileSystemProbes.incrementAndGet();
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                // Doesn't exist, the parser will deal with it
+            }
+        }
+        long lastModified = (attrs != null) ? attrs.lastModifiedTime().toMillis() : 0;
+        long length = (attrs != null) ? attrs.size() : 0;
+        // The values of the variables can change while we're running
+        String vars = replaceVars ? variables() : null;
+        FileKey key = new FileKey(file, replaceVars);
+        ParsedConfig cached = parsedConfigs.get(key);
+        if (cached != null && cached.isValid(lastModified, length, vars)) {
+            return cached.config.copy();
+        }
+        CeylonConfig config = (new ConfigParser(configFile)).parse(replaceVars);
+        // Like git we don't trust modification times that are so recent
+        // that the file could still change without them changing
+        if (lastModified != 0 && System.currentTimeMillis() - lastModified > RACY_MILLIS) {
+            parsedConfigs.put(key, new ParsedConfig(config, lastModified, length, vars));
+        }
+        return config.copy();
+    }
+    
+    private static String variables() {
+        return FileUtil.getUserDir() + File.pathSeparator
+                + FileUtil.getSystemConfigDir() + File.pathSeparator
+                + FileUtil.getInstallDir();
+    }
+    
+    /*
+     * Returns the attributes of the given configuration file in the given
+     * directory or "null" if there is no such file
+     */
+    private static BasicFileAttributes configFileAttributes(File dir, File configFile) {
+        Long missing = missingConfigs.get(configFile);
+        if (missing != null) {
+            fileSystemProbes.incrementAndGet();
+            if (missing.longValue() == dir.lastModified()) {
+                return null;
+            }
+            missingConfigs.remove(configFile);
+        }
+        try {
+            fileSystemProbes.incrementAndGet();
+            BasicFileAttributes attrs = Files.readAttributes(configFile.toPath(), BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                return attrs;
+            }
+        } catch (IOException e) {
+            // Doesn't exist (or can't be read, which amounts to the same)
+        }
+        // Only when there's no config dir at all can we be sure
+        // that nothing changed just by looking at the directory
+        fileSystemProbes.incrementAndGet();
+        long lastModified = dir.lastModified();
+        if (lastModified != 0 
+                && System.currentTimeMillis() - lastModified > RACY_MILLIS) {
+            fileSystemProbes.incrementAndGet();
+            if (!configFile.getParentFile().exists()) {
+                missingConfigs.put(configFile, lastModified);
+            }
+        }
+        return null;
+    }
+    
+    private static File canonicalFile(File file) throws IOException {
+        File absFile = file.getAbsoluteFile();
+        File result = canonicalFiles.get(absFile);
+        if (result == null) {
+            fileSystemProbes.incrementAndGet();
+            result = absFile.getCanonicalFile();
+            if (canonicalFiles.size() >= MAX_CANONICAL_FILES) {
+                canonicalFiles.clear();
+            }
+            canonicalFiles.put(absFile, result);
+        }
+        return result;
+    }
+    
+    private static final class FileKey {
+        private final File file;
+        private final boolean replaceVars;
+        
+        FileKey(File file, boolean replaceVars) {
+            this.file = file;
+            this.replaceVars = replaceVars;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileKey)) {
+                return false;
+            }
+            FileKey other = (FileKey)obj;
+            return file.equals(other.file) && replaceVars == other.replaceVars;
+        }
+        
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + (replaceVars ? 1 : 0);
+        }
+    }
+    
+    private static final class ParsedConfig {
+        final CeylonConfig config;
+        private final long lastModified;
+        private final long length;
+        private final String vars;
+        
+        ParsedConfig(CeylonConfig config, long lastModified, long length, String vars) {
+            this.config = config;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.vars = vars;
+        }
+        
+        boolean isValid(long lastModified, long length, String vars) {
+            return this.lastModified == lastModified
+                    && this.length == length
+                    && (this.vars == null ? vars == null : this.vars.equals(vars));
+        }
+    }
+    
+    private static final class LocalConfig {
+        final File file;
+        final BasicFileAttributes attrs;
+        
+        LocalConfig(File file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.attrs = attrs;
+        }
+    }
+    
+    private static final class PropertiesConfig {
+        final CeylonConfig config;
+        // The "ceylon.config." properties the configuration was made from
+        final Map<String, String> entries;
+        
+        PropertiesConfig(CeylonConfig config, Map<String, String> entries) {
+            this.config = config;
+            this.entries = entries;
+        }
+        
+        // Whether the given properties hold exactly our entries
+        boolean matches(Properties props) {
+            int found = 0;
+            Enumeration<Object> keys = props.keys();
+            while (keys.hasMoreElements()) {
+                Object key = keys.nextElement();
+                String value = configProperty(props, key);
+                if (value != null) {
+                    if (!value.equals(entries.get(((String)key).substring(PROPERTY_PREFIX.length())))) {
+                        return false;
+                    }
+                    found++;
+                }
+            }
+            return found == entries.size();
+        }
+    }
 }
@@ -0,0 +1,144 @@
+package com.redhat.ceylon.common.config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.redhat.ceylon.common.FileUtil;
+
+/**
+ * A configuration option together with the way its values get turned
+ * into a value of type {@code T}.
+ * <p>
+ * The parsed value is remembered by the configuration it was read from
+ * for as long as that configuration doesn't change, so asking for the
+ * same key again is about as cheap as a map lookup. Values are
+ * remembered per key instance, keys are therefore meant to be kept in
+ * constants. Because parsed values are shared they must not be
+ * modified, which is why the lists returned by the keys created here
+ * are unmodifiable.
+ */
+public abstract class ConfigKey<T> {
+    private final String key;
+
+    /**
+     * @param key The name of the option
+     */
+    protected ConfigKey(String key) {
+        // Makes sure the key has a section
+        new CeylonConfig.Key(key);
+        this.key = key;
+    }
+
+    /**
+     * Returns the name of the option
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the value of this option in the given configuration
+     */
+    public T get(CeylonConfig config) {
+        return config.getOption(this);
+    }
+
+    /**
+     * Returns the value of this option in the configuration returned
+     * by {@link CeylonConfig#get()}
+     */
+    public T get() {
+        return get(CeylonConfig.get());
+    }
+
+    /**
+     * Turns the values of the option into the value returned by
+     * {@link #get(CeylonConfig)}
+     * @param values The values of the option or "null" if the option
+     * isn't defined
+     */
+    protected abstract T parse(String[] values);
+
+    @Override
+    public String toString() {
+        return key;
+    }
+
+    /**
+     * The first value of the option or the default value if it isn't defined
+     */
+    public static ConfigKey<String> ofString(String key, final String defaultValue) {
+        return new ConfigKey<String>(key) {
+            @Override
+            protected String parse(String[] values) {
+                return (values != null) ? values[0] : defaultValue;
+            }
+        };
+    }
+
+    /**
+     * The first value of the option as a boolean or the default value if
+     * it isn't defined
+     * @see CeylonConfig#getBoolOption(String, boolean)
+     */
+    public static ConfigKey<Boolean> ofBoolean(String key, final boolean defaultValue) {
+        return new ConfigKey<Boolean>(key) {
+            @Override
+            protected Boolean parse(String[] values) {
+                return (values != null) ? CeylonConfig.isTrueish(values[0]) : defaultValue;
+            }
+        };
+    }
+
+    /**
+     * The first value of the option as a number or the default value if
+     * it isn't defined or isn't a valid number
+     * @see CeylonConfig#getNumberOption(String, long)
+     */
+    public static ConfigKey<Long> ofLong(String key, final long defaultValue) {
+        return new ConfigKey<Long>(key) {
+            @Override
+            protected Long parse(String[] values) {
+                if (values != null) {
+                    try {
+                        return Long.valueOf(values[0]);
+                    } catch (NumberFormatException e) {
+                        // Do nothing (logging would spam in case of a user configuration error)
+                    }
+                }
+                return defaultValue;
+            }
+        };
+    }
+
+    /**
+     * All values of the option or "null" if it isn't defined
+     */
+    public static ConfigKey<List<String>> ofStrings(String key) {
+        return new ConfigKey<List<String>>(key) {
+            @Override
+            protected List<String> parse(String[] values) {
+                return (values != null) ? Collections.unmodifiableList(Arrays.asList(values.clone())) : null;
+            }
+        };
+    }
+
+    /**
+     * All values of the option as files or a list with just the
+     * default path if it isn't defined
+     */
+    public static ConfigKey<List<File>> ofFiles(String key, final String defaultPath) {
+        return new ConfigKey<List<File>>(key) {
+            @Override
+            protected List<File> parse(String[] values) {
+                if (values != null) {
+                    return Collections.unmodifiableList(Arrays.asList(FileUtil.pathsToFileArray(values)));
+                } else {
+                    return Collections.singletonList(new File(defaultPath));
+                }
+            }
+        };
+    }
+}
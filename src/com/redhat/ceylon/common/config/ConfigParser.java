@@ -5,7 +5,19 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.redhat.ceylon.common.FileUtil;
 
@@ -13,10 +25,22 @@ import com.redhat.ceylon.common.FileUtil;
  * This class' main function is to parse configuration files.
  * It reads them using ConfigReader and returns CeylonConfig objects
  * containing the information stored in those files.
+ * <p>
+ * Files of at least {@link #MAP_THRESHOLD} bytes are memory mapped and
+ * decoded in one go into a buffer. A single spare buffer is kept for
+ * reuse by later parses, whichever thread they run on. Be aware that on Windows a mapped file can't be replaced
+ * or deleted until the mapping has been garbage collected.
  * 
  * @author Tako Schotanus (tako@ceylon-lang.org)
  */
 public class ConfigParser {
+    /** The size from which configuration files get memory mapped */
+    public static final long MAP_THRESHOLD = 256 * 1024;
+    // Decode buffers bigger than this are not kept around
+    private static final int MAX_SPARE_CHARS = 1024 * 1024;
+    // The decode buffer not in use by any parse, if any
+    private static final AtomicReference<CharBuffer> spareBuffer = new AtomicReference<CharBuffer>();
+    
     private File configFile;
     private File currentDir;
     private CeylonConfig config;
@@ -35,10 +59,10 @@ public class ConfigParser {
     public CeylonConfig parse(final boolean replaceVars) throws IOException {
         config = new CeylonConfig();
         if (configFile == null || configFile.isFile()) {
-            if (configFile != null) {
-                in = new FileInputStream(configFile);
-            }
-            ConfigReader reader = new ConfigReader(in, new ConfigReaderListener() {
+            // Values are collected first so options with many values
+            // don't have their value arrays copied for each of them
+            final Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+            ConfigReaderListener listener = new ConfigReaderListener() {
 
                 @Override
                 public void setup() throws IOException {
@@ -68,14 +92,12 @@ public class ConfigParser {
                         }
                     }
                     
-                    String[] oldval = config.getOptionValues(name);
-                    if (oldval == null) {
-                        config.setOption(name, value);
-                    } else {
-                        String[] newVal = Arrays.copyOf(oldval, oldval.length + 1);
-                        newVal[oldval.length] = value;
-                        config.setOptionValues(name, newVal);
+                    List<String> vals = values.get(name);
+                    if (vals == null) {
+                        vals = new ArrayList<String>(1);
+                        values.put(name, vals);
                     }
+                    vals.add(value);
                 }
 
                 @Override
@@ -93,8 +115,20 @@ public class ConfigParser {
                     // We ignore the cleanup
                 }
                 
-            });
+            };
+            CharBuffer chars = null;
             try {
+                ConfigReader reader;
+                if (configFile != null && configFile.length() >= MAP_THRESHOLD) {
+                    chars = decode(configFile);
+                    reader = new ConfigReader(chars, listener);
+                } else {
+                    if (configFile != null) {
+                        in = new FileInputStream(configFile);
+                    }
+                    reader = new ConfigReader(in, listener);
+                }
+                reader.setReportText(false);
                 reader.process();
             } catch (IOException ex) {
                 System.err.print("Error parsing configuration");
@@ -102,11 +136,67 @@ public class ConfigParser {
                     System.err.print(" '" + FileUtil.relativeFile(configFile).getPath() + "'");
                 }
                 System.err.println(": " + ex.getMessage());
+            } finally {
+                if (chars != null) {
+                    releaseBuffer(chars);
+                }
+            }
+            // Whatever was read before any error is still used
+            LinkedHashMap<String, String[]> options = new LinkedHashMap<String, String[]>(values.size() * 4 / 3 + 1);
+            for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                List<String> vals = entry.getValue();
+                options.put(entry.getKey(), vals.toArray(new String[vals.size()]));
             }
+            config = CeylonConfig.fromOptions(options);
         } else {
             throw new FileNotFoundException("Couldn't open configuration file");
         }
 
         return config;
     }
+
+    /*
+     * Maps the file and decodes it with a single sequential read into
+     * the spare decode buffer, or a new one if it's in use or too small.
+     * The buffer should be given back using releaseBuffer() once the
+     * caller is done with it.
+     */
+    private static CharBuffer decode(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Configuration file too large: " + file);
+            }
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // UTF-8 never decodes to more chars than there are bytes
+            CharBuffer chars = spareBuffer.getAndSet(null);
+            if (chars == null || chars.capacity() < size) {
+                chars = CharBuffer.allocate((int)size);
+            }
+            chars.clear();
+            CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CoderResult result = decoder.decode(bytes, chars, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            decoder.flush(chars);
+            chars.flip();
+            return chars;
+        } catch (CharacterCodingException ex) {
+            throw new IOException("Could not decode configuration file " + file, ex);
+        } finally {
+            channel.close();
+        }
+    }
+    
+    // Keeps the given buffer as the spare one, unless it's too big
+    // or another parse has already put one back
+    private static void releaseBuffer(CharBuffer chars) {
+        if (chars.capacity() <= MAX_SPARE_CHARS) {
+            spareBuffer.compareAndSet(null, chars);
+        }
+    }
 }
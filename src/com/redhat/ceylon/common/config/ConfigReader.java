@@ -1,30 +1,42 @@
 package com.redhat.ceylon.common.config;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.LineNumberReader;
-import java.io.PushbackReader;
 import java.io.Reader;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.InvalidPropertiesFormatException;
+import java.util.regex.Pattern;
 
 /**
  * A "push reader" for git-like Ceylon configuration files.
- *  
+ * <p>
+ * The whole input is read into memory first and then scanned in place,
+ * the text passed to the listener for each event is simply the slice
+ * of the input between the end of the previous event and the current
+ * position.
+ *
  * @author Tako Schotanus (tako@ceylon-lang.org)
  */
 public class ConfigReader {
+    private static final Pattern SECTION_NAME = Pattern.compile("[\\p{L}\\p{Nd}]+(\\.[\\p{L}\\p{Nd}]+)*");
+
     private ConfigReaderListener listener;
     private InputStream in;
-    private LineNumberReader counterdr;
-    private MemoPushbackReader reader;
+    private char[] buf;
+    private int start;
+    private int pos;
+    private int end;
+    // Start of the text read since the last event
+    private int memo;
+    private final StringBuilder value = new StringBuilder();
+    private boolean reportText = true;
     private String section;
-    
+
     private enum Token { section, option, assign, comment, eol, error, eof }
-    
+
     /**
      * Creates a new ConfigReader
      * @param in The InputStream to read the actual file data from
@@ -35,6 +47,36 @@ public class ConfigReader {
         this.listener = listener;
     }
 
+    /**
+     * Creates a new ConfigReader for text that has already been decoded.
+     * The characters between the buffer's position and its limit will
+     * be processed, the buffer itself is left untouched.
+     * @param chars The buffer holding the actual file data
+     * @param listener The listener to call when specific data items have been read and parsed
+     */
+    public ConfigReader(CharBuffer chars, ConfigReaderListener listener) {
+        if (chars.hasArray()) {
+            this.buf = chars.array();
+            this.start = chars.arrayOffset() + chars.position();
+            this.end = chars.arrayOffset() + chars.limit();
+        } else {
+            this.buf = new char[chars.remaining()];
+            chars.duplicate().get(buf);
+            this.start = 0;
+            this.end = buf.length;
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * When turned off, which is useful for listeners only interested
+     * in the option values, the listener gets {@code null} instead of
+     * the text for each event and whitespace isn't reported at all
+     */
+    void setReportText(boolean reportText) {
+        this.reportText = reportText;
+    }
+
     /**
      * Starts the actual processing of the input
      * @throws IOException Either actual file-related IO exceptions or
@@ -43,67 +85,84 @@ public class ConfigReader {
      */
     public void process() throws IOException {
         section = null;
-        try {
-            counterdr = new LineNumberReader(new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8"))));
-            reader = new MemoPushbackReader(counterdr);
+        if (in != null) {
+            readAll();
+        }
+        pos = start;
+        memo = start;
 
-            listener.setup();
-            
-            Token tok;
+        listener.setup();
+
+        Token tok;
+        skipWhitespace(true);
+        flushWhitespace();
+        while ((tok = peekToken()) != Token.eof) {
+            switch (tok) {
+            case section:
+                handleSection();
+                break;
+            case option:
+                if (section != null) {
+                    handleOption();
+                } else {
+                    throw new InvalidPropertiesFormatException("Option without section in configuration file at line " + lineNumber());
+                }
+                break;
+            case comment:
+                skipToNextLine();
+                listener.onComment(getAndClearMemo());
+                break;
+            case eol:
+                skipToNextLine();
+                listener.onWhitespace(getAndClearMemo());
+                break;
+            default:
+                throw new InvalidPropertiesFormatException("Unexpected token in configuration file at line " + lineNumber());
+            }
             skipWhitespace(true);
             flushWhitespace();
-            while ((tok = peekToken()) != Token.eof) {
-                switch (tok) {
-                case section:
-                    handleSection();
-                    break;
-                case option:
-                    if (section != null) {
-                        handleOption();
-                    } else {
-                        throw new InvalidPropertiesFormatException("Option without section in configuration file at line " + (counterdr.getLineNumber() + 1));
-                    }
-                    break;
-                case comment:
-                    skipToNextLine();
-                    listener.onComment(reader.getAndClearMemo());
-                    break;
-                case eol:
-                    skipToNextLine();
-                    listener.onWhitespace(reader.getAndClearMemo());
-                    break;
-                default:
-                    throw new InvalidPropertiesFormatException("Unexpected token in configuration file at line " + (counterdr.getLineNumber() + 1));
+        }
+
+        listener.cleanup();
+    }
+
+    private void readAll() throws IOException {
+        Reader reader = new InputStreamReader(in, Charset.forName("UTF-8"));
+        try {
+            char[] chars = new char[8192];
+            int len = 0;
+            int n;
+            while ((n = reader.read(chars, len, chars.length - len)) != -1) {
+                len += n;
+                if (len == chars.length) {
+                    chars = Arrays.copyOf(chars, chars.length * 2);
                 }
-                skipWhitespace(true);
-                flushWhitespace();
             }
-            
-            listener.cleanup();
+            buf = chars;
+            start = 0;
+            end = len;
         } finally {
-            if (reader != null) {
-                reader.close();
-            }
+            reader.close();
         }
     }
 
     private void handleSection() throws IOException {
         expect('[');
         section = readName(true);
-        if (!section.matches("[\\p{L}\\p{Nd}]+(\\.[\\p{L}\\p{Nd}]+)*")) {
-            throw new InvalidPropertiesFormatException("Invalid section name in configuration file at line " + (counterdr.getLineNumber() + 1));
+        if (!SECTION_NAME.matcher(section).matches()) {
+            throw new InvalidPropertiesFormatException("Invalid section name in configuration file at line " + lineNumber());
         }
         skipWhitespace(false);
-        if (reader.peek() == '\"') {
+        if (peek() == '\"') {
             String subSection = readString();
             expect('"');
             section += "." + subSection;
             skipWhitespace(false);
         }
         expect(']');
-        listener.onSection(section, reader.getAndClearMemo());
+        listener.onSection(section, getAndClearMemo());
     }
-    
+
     private void handleOption() throws IOException {
         String option = readName(false);
         String optName = section + "." + option;
@@ -113,42 +172,42 @@ public class ConfigReader {
             expect('=');
             handleOptionValue(optName);
         } else if (tok == Token.error) {
-            throw new InvalidPropertiesFormatException("Unexpected token in configuration file at line " + (counterdr.getLineNumber() + 1));
+            throw new InvalidPropertiesFormatException("Unexpected token in configuration file at line " + lineNumber());
         } else {
-            listener.onOption(optName, "true", reader.getAndClearMemo());
+            listener.onOption(optName, "true", getAndClearMemo());
         }
     }
 
-    private String readName(boolean forSection) throws IOException {
-        StringBuilder str = new StringBuilder();
-        int c;
-        while ((c = reader.read()) != -1) {
+    private String readName(boolean forSection) {
+        int from = pos;
+        while (pos < end) {
+            char c = buf[pos];
             if ((!forSection && isOptionNameChar(c)) || (forSection && isSectionNameChar(c))) {
-                str.append((char)c);
+                pos++;
             } else {
-                reader.unread(c);
                 break;
             }
         }
-        return str.toString();
+        return new String(buf, from, pos - from);
     }
 
     private String readString() throws IOException {
-        StringBuilder str = new StringBuilder();
+        StringBuilder str = value;
+        str.setLength(0);
         gobble('\"');
         int c;
-        while ((c = reader.read()) != -1) {
+        while ((c = read()) != -1) {
             if (c == '"') {
-                reader.unread(c);
+                unread();
                 break;
             } else if (c == '\\') {
-                int c2 = reader.read();
+                int c2 = read();
                 if (c2 == '\\') {
                     // Do nothing
                 } else if (c2 == '\"') {
                     c = c2;
                 } else {
-                    throw new InvalidPropertiesFormatException("Illegal escape character in configuration file at line " + (counterdr.getLineNumber() + 1));
+                    throw new InvalidPropertiesFormatException("Illegal escape character in configuration file at line " + lineNumber());
                 }
             }
             str.append((char)c);
@@ -157,22 +216,23 @@ public class ConfigReader {
     }
 
     private void handleOptionValue(String optName) throws IOException {
-        StringBuilder str = new StringBuilder();
+        StringBuilder str = value;
+        str.setLength(0);
         skipWhitespace(false);
         boolean hasQuote = gobble('\"');
         int c;
-        while ((c = reader.read()) != -1) {
+        while ((c = read()) != -1) {
             if (c == '"') {
-                reader.unread(c);
+                unread();
                 break;
             } else if (isNewLineChar(c)) {
-                reader.unread(c);
+                unread();
                 break;
             } else if (isCommentChar(c) && !hasQuote) {
-                reader.unread(c);
+                unread();
                 break;
             } else if (c == '\\') {
-                int c2 = reader.read();
+                int c2 = read();
                 if (c2 == '\\') {
                     // Do nothing
                 } else if (c2 == '\"') {
@@ -185,7 +245,7 @@ public class ConfigReader {
                     skipNewLine(c2);
                     c = '\n';
                 } else {
-                    throw new InvalidPropertiesFormatException("Illegal escape character in configuration file at line " + (counterdr.getLineNumber() + 1));
+                    throw new InvalidPropertiesFormatException("Illegal escape character in configuration file at line " + lineNumber());
                 }
             }
             str.append((char)c);
@@ -193,12 +253,12 @@ public class ConfigReader {
         String res = str.toString();
         if (hasQuote) {
             expect('\"');
-            listener.onOption(optName, res, reader.getAndClearMemo());
+            listener.onOption(optName, res, getAndClearMemo());
         } else {
-            String memo = reader.getAndClearMemo();
+            String memo = getAndClearMemo();
             // Is there still some whitespace?
             String ws = rightTrimmings(res);
-            if (!ws.isEmpty()) {
+            if (!ws.isEmpty() && memo != null) {
                 listener.onOption(optName, res.trim(), memo.trim());
                 listener.onWhitespace(ws);
             } else {
@@ -209,9 +269,7 @@ public class ConfigReader {
 
     private String rightTrimmings(String txt) {
         int st = txt.length();
-        char[] val = txt.toCharArray();
-
-        while ((st > 0) && (val[st - 1] <= ' ')) {
+        while ((st > 0) && (txt.charAt(st - 1) <= ' ')) {
             st--;
         }
         return (st > 0) ? txt.substring(st) : txt;
@@ -219,24 +277,24 @@ public class ConfigReader {
 
     private void expect(int expected) throws IOException {
         int c;
-        if ((c = reader.read()) != expected) {
-            throw new InvalidPropertiesFormatException("Unexpected token in configuration file at line " + (counterdr.getLineNumber() + 1) + ", expected '" + Character.valueOf((char)expected) + "' but got '" + Character.valueOf((char)c) + "'");
+        if ((c = read()) != expected) {
+            throw new InvalidPropertiesFormatException("Unexpected token in configuration file at line " + lineNumber() + ", expected '" + Character.valueOf((char)expected) + "' but got '" + Character.valueOf((char)c) + "'");
         }
     }
-    
-    private void skipWhitespace(boolean multiline) throws IOException {
-        int c;
-        while ((c = reader.read()) != -1) {
+
+    private void skipWhitespace(boolean multiline) {
+        while (pos < end) {
+            char c = buf[pos];
             if (!Character.isWhitespace(c) || (!multiline && isNewLineChar(c))) {
-                reader.unread(c);
                 break;
             }
+            pos++;
         }
     }
-    
-    private void skipToNextLine() throws IOException {
+
+    private void skipToNextLine() {
         int c;
-        while ((c = reader.read()) != -1) {
+        while ((c = read()) != -1) {
             if (isNewLineChar(c)) {
                 skipNewLine(c);
                 break;
@@ -244,8 +302,8 @@ public class ConfigReader {
         }
     }
 
-    private Token peekToken() throws IOException {
-        int c = reader.peek();
+    private Token peekToken() {
+        int c = peek();
         if (isCommentChar(c)) {
             return Token.comment;
         } else if (c == '[') {
@@ -262,147 +320,94 @@ public class ConfigReader {
             return Token.error;
         }
     }
-    
-    private boolean gobble(int chr) throws IOException {
-        int c = reader.read();
-        if (c != chr) {
-            reader.unread(c);
-            return false;
+
+    private boolean gobble(int chr) {
+        if (peek() == chr) {
+            pos++;
+            return true;
         }
-        return true;
+        return false;
     }
-    
-    private void skipNewLine(int c) throws IOException {
+
+    private void skipNewLine(int c) {
         if (c == '\r') {
-            c = reader.read();
-            if (c != '\n') {
-                reader.unread(c);
-            }
+            gobble('\n');
         }
     }
-    
+
     private void flushWhitespace() throws IOException {
-        String ws = reader.getAndClearMemo();
-        while (!ws.isEmpty()) {
-            String txt;
-            int p = ws.indexOf('\n');
-            if (p >= 0) {
-                txt = ws.substring(0, p + 1);
-                ws = ws.substring(p + 1);
-            } else {
-                txt = ws;
-                ws = "";
+        if (!reportText) {
+            memo = pos;
+            return;
+        }
+        // Report each line of whitespace separately
+        while (memo < pos) {
+            int p = memo;
+            while (p < pos && buf[p] != '\n') {
+                p++;
             }
-            listener.onWhitespace(txt);
+            int to = (p < pos) ? p + 1 : pos;
+            listener.onWhitespace(new String(buf, memo, to - memo));
+            memo = to;
         }
     }
-    
-    private boolean isOptionNameChar(int c) {
-        return Character.isLetterOrDigit(c) || c == '-';
-    }
-    
-    private boolean isSectionNameChar(int c) {
-        return isOptionNameChar(c) || c == '.';
-    }
-    
-    private boolean isCommentChar(int c) {
-        return c == ';' || c == '#';
-    }
-    
-    private boolean isNewLineChar(int c) {
-        return c == '\n' || c == '\r';
-    }
-}
 
-/*
- * Special "pushback" reader that combines the functionality of
- * pushback (the ability to "peek" at the next character in a
- * stream or pushing back the last character read) with a "memo"
- * feature that records the last string of characters read since
- * the last call to getAndClearMemo().
- * This last feature is used to be able to retrieve the "actual
- * characters read" that activated a certain event in the config
- * reader listener.
- * For example, when reading the string (without []):
- *    [  "true"      ]
- * the actual value is "true" (without the quotes) but the string
- * of characters that was read was actually much longer, most of
- * which was actually discarded. The memo feature exists to be
- * able to easily retrieve that actual string of characters.
- */
-class MemoPushbackReader extends PushbackReader {
-    private StringBuilder memo;
-    
-    public MemoPushbackReader(Reader in) {
-        super(in);
-        memo = new StringBuilder(1024);
+    private int read() {
+        return (pos < end) ? buf[pos++] : -1;
     }
 
-    @Override
-    public int read() throws IOException {
-        int c = super.read();
-        if (c != -1) {
-            memo.append((char)c);
-        }
-        return c;
+    // Only ever called right after a read() that didn't return -1
+    private void unread() {
+        pos--;
     }
 
-    @Override
-    public void unread(int c) throws IOException {
-        super.unread(c);
-        memo.setLength(memo.length() - 1);
+    private int peek() {
+        return (pos < end) ? buf[pos] : -1;
     }
 
-    public int peek() throws IOException {
-        int c = super.read();
-        if (c != -1) {
-            super.unread(c);
+    /*
+     * Returns the characters read since the last call, which is
+     * the actual text that activated a certain event.
+     * For example, when reading the string (without []):
+     *    [  "true"      ]
+     * the actual value is "true" (without the quotes) but the string
+     * of characters that was read was actually much longer.
+     */
+    private String getAndClearMemo() {
+        if (!reportText) {
+            memo = pos;
+            return null;
         }
-        return c;
-    }
-    
-    @Override
-    public void reset() throws IOException {
-        super.reset();
-        memo.setLength(0);
-    }
-
-    public String getAndClearMemo() {
-        String result = memo.toString();
-        memo.setLength(0);
+        String result = new String(buf, memo, pos - memo);
+        memo = pos;
         return result;
     }
-    
-    // All the following methods we don't really need so they aren't implemented
-    // to prevent anybody from accidentally using them they throw an error
-    
-    @Override
-    public int read(char[] cbuf, int off, int len) throws IOException {
-        throw new UnsupportedOperationException();
-    }
 
-    @Override
-    public long skip(long n) throws IOException {
-        throw new UnsupportedOperationException();
+    // Only needed for error messages, so it's worked out when needed
+    private int lineNumber() {
+        int line = 1;
+        for (int i = start; i < pos; i++) {
+            char c = buf[i];
+            if (c == '\n' || (c == '\r' && (i + 1 >= pos || buf[i + 1] != '\n'))) {
+                line++;
+            }
+        }
+        return line;
     }
 
-    @Override
-    public void unread(char[] cbuf, int off, int len) throws IOException {
-        throw new UnsupportedOperationException();
+    private boolean isOptionNameChar(int c) {
+        return Character.isLetterOrDigit(c) || c == '-';
     }
 
-    @Override
-    public void unread(char[] cbuf) throws IOException {
-        throw new UnsupportedOperationException();
+    private boolean isSectionNameChar(int c) {
+        return isOptionNameChar(c) || c == '.';
     }
 
-    @Override
-    public int read(char[] cbuf) throws IOException {
-        throw new UnsupportedOperationException();
+    private boolean isCommentChar(int c) {
+        return c == ';' || c == '#';
     }
 
-    @Override
-    public int read(CharBuffer target) throws IOException {
-        throw new UnsupportedOperationException();
+    private boolean isNewLineChar(int c) {
+        return c == '\n' || c == '\r';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,227 @@
+package com.redhat.ceylon.common.config;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.common.tools.PerThreadPrintStream;
+
+/**
+ * Keeps a configuration up to date with the files it was loaded from,
+ * for processes that run long enough for those files to get changed.
+ * <p>
+ * The system and user configuration files are watched, as are the local
+ * ones in the {@code .ceylon} folders of the local directory and all its
+ * parents. Only {@code .ceylon} folders that exist when the watcher is
+ * started are watched. Whenever any of the files changes the whole
+ * configuration is loaded again, which thanks to the cache in
+ * {@link ConfigFinder} only means parsing the files that actually changed.
+ * The contents of the watched {@link CeylonConfig} are then swapped for the
+ * new ones in one atomic step, so everybody holding on to it, for example
+ * through {@link CeylonConfig#get()}, sees either the old or the new
+ * configuration but never a mix of both. Any changes made to the watched
+ * configuration in memory are lost when it gets reloaded.
+ * <p>
+ * The {@link Repositories}, {@link Proxies} and {@link Keystores}
+ * instances belonging to the watched configuration see the new contents
+ * right away. After each reload the registered
+ * {@link ConfigChangeListener}s are notified.
+ */
+public class ConfigWatcher implements Closeable {
+    // How long the files must have been left alone before reloading
+    private static final long QUIET_MILLIS = 100;
+
+    private final CeylonConfig config;
+    private final File localDir;
+    private final ConfigFinder finder;
+    private final CopyOnWriteArrayList<ConfigChangeListener> listeners = new CopyOnWriteArrayList<ConfigChangeListener>();
+    // The names of the configuration files in each watched folder,
+    // only modified before the watcher thread gets started
+    private final Map<WatchKey, Set<String>> watchedFiles = new HashMap<WatchKey, Set<String>>();
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * Creates a watcher for the given configuration which must have been
+     * created by {@link ConfigFinder#loadDefaultConfig(File)} for the given
+     * local directory
+     */
+    public ConfigWatcher(CeylonConfig config, File localDir, ConfigFinder finder) {
+        this.config = config;
+        this.localDir = localDir;
+        this.finder = finder;
+    }
+
+    /**
+     * Creates a watcher for the given configuration which must have been
+     * created by {@link CeylonConfig#createFromLocalDir(File)} for the given
+     * local directory
+     */
+    public ConfigWatcher(CeylonConfig config, File localDir) {
+        this(config, localDir, CeylonConfigFinder.DEFAULT);
+    }
+
+    /**
+     * Starts watching the configuration returned by {@link CeylonConfig#get()}
+     * (which is the one for the current directory unless a different one
+     * was set for the current thread)
+     */
+    public static ConfigWatcher watch() throws IOException {
+        ConfigWatcher watcher = new ConfigWatcher(CeylonConfig.get(), new File("."));
+        watcher.start();
+        return watcher;
+    }
+
+    public CeylonConfig getConfig() {
+        return config;
+    }
+
+    public void addListener(ConfigChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ConfigChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts watching the configuration files on a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            File systemConfig = finder.findSystemConfig();
+            if (systemConfig != null) {
+                register(systemConfig);
+            }
+            register(finder.findUserConfig());
+            File dir = localDir.getCanonicalFile();
+            while (dir != null) {
+                register(new File(new File(dir, Constants.CEYLON_CONFIG_DIR), finder.getConfigName()));
+                dir = dir.getParentFile();
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PerThreadPrintStream.detachCurrentThread();
+                watchLoop();
+            }
+        }, "ceylon-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the configuration files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Loads the configuration again right away, replacing the contents
+     * of the watched configuration and notifying the listeners
+     */
+    public void reload() {
+        config.replaceWith(finder.loadDefaultConfig(localDir));
+        for (ConfigChangeListener listener : listeners) {
+            listener.configChanged(config);
+        }
+    }
+
+    private void register(File configFile) throws IOException {
+        File dir = configFile.getAbsoluteFile().getParentFile();
+        if (dir != null && dir.isDirectory()) {
+            WatchKey key = dir.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            Set<String> names = watchedFiles.get(key);
+            if (names == null) {
+                names = new HashSet<String>();
+                watchedFiles.put(key, names);
+            }
+            names.add(configFile.getName());
+        }
+    }
+
+    private void watchLoop() {
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        if (service == null) {
+            return;
+        }
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = handle(key);
+                // Wait for things to settle down, editors and tools
+                // often touch a file several times in a row
+                while ((key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= handle(key);
+                }
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (RuntimeException ex) {
+                        // Keep on watching, the next change might fix it
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Done
+        } catch (ClosedWatchServiceException ex) {
+            // Done
+        }
+    }
+
+    // Returns true if the given key has events for configuration files
+    private boolean handle(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else {
+                Path name = (Path)event.context();
+                Set<String> names = watchedFiles.get(key);
+                if (names != null && names.contains(name.toString())) {
+                    changed = true;
+                }
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
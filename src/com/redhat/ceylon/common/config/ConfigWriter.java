@@ -14,6 +14,9 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Serializes {@link CeylonConfig} instances to streams and files.
@@ -27,6 +30,14 @@ public class ConfigWriter {
      * it exists or otherwise creating a new file.
      */
     public static void write(CeylonConfig config, File destination) throws IOException {
+        try {
+            doWrite(config, destination);
+        } finally {
+            ConfigFinder.invalidate(destination);
+        }
+    }
+
+    private static void doWrite(CeylonConfig config, File destination) throws IOException {
         OutputStream out = null;
         if (destination.isFile()) {
             write(config, destination, destination);
@@ -55,6 +66,14 @@ public class ConfigWriter {
      * configuration and writing in to the destination file. 
      */
     public static void write(CeylonConfig config, File source, File destination) throws IOException {
+        try {
+            doWrite(config, source, destination);
+        } finally {
+            ConfigFinder.invalidate(destination);
+        }
+    }
+
+    private static void doWrite(CeylonConfig config, File source, File destination) throws IOException {
         boolean overwriteSource = destination.getCanonicalFile().equals(source.getCanonicalFile());
         if (source.isFile()) {
             InputStream in = null;
@@ -154,7 +173,7 @@ public class ConfigWriter {
      * configuration and writing in to the given output.
      */
     public static void write(CeylonConfig orgconfig, InputStream in, OutputStream out) throws IOException {
-        final CeylonConfig config = orgconfig.copy();
+        final Remaining config = new Remaining(orgconfig);
         final Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
         ConfigReader reader = new ConfigReader(in, new ImprovedConfigReaderListenerAdapter(new ImprovedConfigReaderListener() {
             private boolean skipToNewline = false;
@@ -191,7 +210,7 @@ public class ConfigWriter {
                         CeylonConfig.Key k = new CeylonConfig.Key(name);
                         writeOptionValue(writer, k.getOptionName(), newValues[0]);
                     }
-                    removeOptionValue(name);
+                    config.removeOptionValue(name);
                     skipToNewline = false;
                 } else {
                     skipToNewline = true;
@@ -220,16 +239,6 @@ public class ConfigWriter {
             public void cleanup() throws IOException {
                 // Ignoring cleanup
             }
-
-            private void removeOptionValue(String name) {
-                String[] values = config.getOptionValues(name);
-                if (values.length > 1) {
-                    values = Arrays.copyOfRange(values, 1, values.length);
-                    config.setOptionValues(name, values);
-                } else {
-                    config.removeOption(name);
-                }
-            }
             
         }));
         reader.process();
@@ -243,14 +252,14 @@ public class ConfigWriter {
      * Write the given configuration to the given output stream.
      */
     public static void write(CeylonConfig orgconfig, OutputStream out) throws IOException {
-        final CeylonConfig config = orgconfig.copy();
+        final Remaining config = new Remaining(orgconfig);
         final Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
         writeSections(writer, config, out);
         writer.flush();
     }
 
-    private static void writeSections(Writer writer, CeylonConfig config, OutputStream out) throws IOException {
-        String[] sections = config.getSectionNames(null);
+    private static void writeSections(Writer writer, Remaining config, OutputStream out) throws IOException {
+        String[] sections = config.getSectionNames();
         Arrays.sort(sections);
         for (String section : sections) {
             if (config.getOptionNames(section).length > 0) {
@@ -277,6 +286,19 @@ public class ConfigWriter {
         }
     }
 
+    private static void writeOptions(Writer writer, Remaining config, String section) throws IOException {
+        String[] names = config.getOptionNames(section);
+        if (names != null) {
+            for (int i=0; i < names.length; i++) {
+                String name = names[i];
+                String key = section + "." + name;
+                writeOptionValues(writer, name, config.getOptionValues(key));
+                config.removeOption(key);
+                writer.write(System.lineSeparator());
+            }
+        }
+    }
+    
     protected static void writeOptions(Writer writer, CeylonConfig config, String section) throws IOException {
         String[] names = config.getOptionNames(section);
         if (names != null) {
@@ -290,7 +312,10 @@ public class ConfigWriter {
     }
     
     protected static void writeOption(Writer writer, CeylonConfig config, String section, String name) throws IOException {
-        String[] values = config.getOptionValues(section + "." + name);
+        writeOptionValues(writer, name, config.getOptionValues(section + "." + name));
+    }
+    
+    private static void writeOptionValues(Writer writer, String name, String[] values) throws IOException {
         if (values != null) {
             for (int i=0; i < values.length; i++) {
                 String value = values[i];
@@ -325,6 +350,93 @@ public class ConfigWriter {
             return value;
         }
     }
+
+    /*
+     * Keeps track of the options that still need to be written while
+     * going through a configuration, without touching the configuration
+     * itself (removing options from it one by one would make writing
+     * large configurations slow)
+     */
+    private static final class Remaining {
+        private final CeylonConfig config;
+        private final Map<String, String[]> options;
+        // The number of remaining options per section, including
+        // the options in all its subsections
+        private final Map<String, Integer> counts;
+        
+        Remaining(CeylonConfig config) {
+            this.config = config;
+            String[] keys = config.getOptionNames(null);
+            options = new HashMap<String, String[]>(keys.length * 4 / 3 + 1);
+            counts = new HashMap<String, Integer>();
+            for (String key : keys) {
+                options.put(key, config.getOptionValues(key));
+                count(key, 1);
+            }
+        }
+        
+        private void count(String key, int delta) {
+            int p = key.lastIndexOf('.');
+            while (p > 0) {
+                String section = key.substring(0, p);
+                Integer n = counts.get(section);
+                counts.put(section, (n != null ? n : 0) + delta);
+                p = key.lastIndexOf('.', p - 1);
+            }
+        }
+        
+        boolean isSectionDefined(String section) {
+            Integer n = counts.get(section);
+            return n != null && n > 0;
+        }
+        
+        boolean isOptionDefined(String key) {
+            return options.containsKey(key);
+        }
+        
+        String[] getOptionValues(String key) {
+            return options.get(key);
+        }
+        
+        String[] getSectionNames() {
+            List<String> res = new ArrayList<String>();
+            for (String section : config.getSectionNames(null)) {
+                if (isSectionDefined(section)) {
+                    res.add(section);
+                }
+            }
+            return res.toArray(new String[res.size()]);
+        }
+        
+        String[] getOptionNames(String section) {
+            if (!isSectionDefined(section)) {
+                return null;
+            }
+            String[] names = config.getOptionNames(section);
+            List<String> res = new ArrayList<String>(names.length);
+            for (String name : names) {
+                if (options.containsKey(section + "." + name)) {
+                    res.add(name);
+                }
+            }
+            return res.toArray(new String[res.size()]);
+        }
+        
+        void removeOption(String key) {
+            if (options.remove(key) != null) {
+                count(key, -1);
+            }
+        }
+        
+        void removeOptionValue(String key) {
+            String[] values = options.get(key);
+            if (values.length > 1) {
+                options.put(key, Arrays.copyOfRange(values, 1, values.length));
+            } else {
+                removeOption(key);
+            }
+        }
+    }
 }
 
 interface ImprovedConfigReaderListener extends ConfigReaderListener {
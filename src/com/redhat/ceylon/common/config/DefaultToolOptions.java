@@ -1,12 +1,9 @@
 package com.redhat.ceylon.common.config;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import com.redhat.ceylon.common.Constants;
-import com.redhat.ceylon.common.FileUtil;
 
 public class DefaultToolOptions {
     
@@ -32,6 +29,25 @@ public class DefaultToolOptions {
     public final static String RUNTOOL_COMPILE = "runtool.compile";
     public final static String TESTTOOL_COMPILE = "testtool.compile";
     
+    private static final ConfigKey<String> ENCODING = ConfigKey.ofString(DEFAULTS_ENCODING, null);
+    private static final ConfigKey<Boolean> OFFLINE = ConfigKey.ofBoolean(DEFAULTS_OFFLINE, false);
+    private static final ConfigKey<Long> TIMEOUT = ConfigKey.ofLong(DEFAULTS_TIMEOUT, Constants.DEFAULT_TIMEOUT);
+    private static final ConfigKey<String> MAVENOVERRIDES = ConfigKey.ofString(DEFAULTS_MAVENOVERRIDES, null);
+    private static final ConfigKey<String> OVERRIDES = ConfigKey.ofString(DEFAULTS_OVERRIDES, null);
+    private static final ConfigKey<Boolean> FLAT_CLASSPATH = ConfigKey.ofBoolean(DEFAULTS_FLAT_CLASSPATH, false);
+    private static final ConfigKey<Boolean> AUTO_EXPORT_MAVEN_DEPENDENCIES = ConfigKey.ofBoolean(DEFAULTS_AUTO_EPORT_MAVEN_DEPENDENCIES, false);
+    private static final ConfigKey<List<File>> SOURCE = ConfigKey.ofFiles(COMPILER_SOURCE, Constants.DEFAULT_SOURCE_DIR);
+    private static final ConfigKey<List<File>> RESOURCE = ConfigKey.ofFiles(COMPILER_RESOURCE, Constants.DEFAULT_RESOURCE_DIR);
+    private static final ConfigKey<String> RESOURCE_ROOT = ConfigKey.ofString(COMPILER_RESOURCE_ROOT, Constants.DEFAULT_RESOURCE_ROOT);
+    private static final ConfigKey<List<File>> SCRIPT = ConfigKey.ofFiles(COMPILER_SCRIPT, Constants.DEFAULT_SCRIPT_DIR);
+    private static final ConfigKey<List<File>> DOC = ConfigKey.ofFiles(COMPILER_DOC, Constants.DEFAULT_DOC_DIR);
+    private static final ConfigKey<List<String>> SUPPRESSWARNING = ConfigKey.ofStrings(COMPILER_SUPPRESSWARNING);
+    private static final ConfigKey<Boolean> NOOSGI = ConfigKey.ofBoolean(COMPILER_NOOSGI, false);
+    private static final ConfigKey<Boolean> NOPOM = ConfigKey.ofBoolean(COMPILER_NOPOM, false);
+    private static final ConfigKey<Boolean> PACK200 = ConfigKey.ofBoolean(COMPILER_PACK200, false);
+    private static final ConfigKey<String> RUNTOOL_COMPILE_FLAGS = ConfigKey.ofString(RUNTOOL_COMPILE, Constants.DEFAULT_RUNTOOL_COMPILATION_FLAGS);
+    private static final ConfigKey<String> TESTTOOL_COMPILE_FLAGS = ConfigKey.ofString(TESTTOOL_COMPILE, Constants.DEFAULT_TESTTOOL_COMPILATION_FLAGS);
+    
     private DefaultToolOptions() {
     }
     
@@ -40,7 +56,7 @@ public class DefaultToolOptions {
     }
     
     public static String getDefaultEncoding(CeylonConfig config) {
-        return config.getOption(DEFAULTS_ENCODING);
+        return config.getOption(ENCODING);
     }
     
     public static boolean getDefaultOffline() {
@@ -48,7 +64,7 @@ public class DefaultToolOptions {
     }
     
     public static boolean getDefaultOffline(CeylonConfig config) {
-        return config.getBoolOption(DEFAULTS_OFFLINE, false);
+        return config.getOption(OFFLINE);
     }
     
     public static long getDefaultTimeout() {
@@ -56,7 +72,7 @@ public class DefaultToolOptions {
     }
     
     public static long getDefaultTimeout(CeylonConfig config) {
-        return config.getNumberOption(DEFAULTS_TIMEOUT, Constants.DEFAULT_TIMEOUT);
+        return config.getOption(TIMEOUT);
     }
     
     public static String getDefaultOverrides() {
@@ -64,11 +80,11 @@ public class DefaultToolOptions {
     }
     
     public static String getDefaultOverrides(CeylonConfig config) {
-        String ov = config.getOption(DEFAULTS_OVERRIDES);
+        String ov = config.getOption(OVERRIDES);
         if(ov != null)
             return ov;
         // backwards compat
-        return config.getOption(DEFAULTS_MAVENOVERRIDES);
+        return config.getOption(MAVENOVERRIDES);
     }
 
     public static boolean getDefaultFlatClasspath() {
@@ -76,7 +92,7 @@ public class DefaultToolOptions {
     }
 
     public static boolean getDefaultFlatClasspath(CeylonConfig config) {
-        return config.getBoolOption(DEFAULTS_FLAT_CLASSPATH, false);
+        return config.getOption(FLAT_CLASSPATH);
     }
     
     public static boolean getDefaultAutoExportMavenDependencies() {
@@ -84,7 +100,7 @@ public class DefaultToolOptions {
     }
 
     public static boolean getDefaultAutoExportMavenDependencies(CeylonConfig config) {
-        return config.getBoolOption(DEFAULTS_AUTO_EPORT_MAVEN_DEPENDENCIES, false);
+        return config.getOption(AUTO_EXPORT_MAVEN_DEPENDENCIES);
     }
     
     public static List<File> getCompilerSourceDirs() {
@@ -92,12 +108,7 @@ public class DefaultToolOptions {
     }
     
     public static List<File> getCompilerSourceDirs(CeylonConfig config) {
-        String[] dirs = config.getOptionValues(COMPILER_SOURCE);
-        if (dirs != null) {
-            return Arrays.asList(FileUtil.pathsToFileArray(dirs));
-        } else {
-            return Collections.singletonList(new File(Constants.DEFAULT_SOURCE_DIR));
-        }
+        return config.getOption(SOURCE);
     }
     
     public static List<File> getCompilerResourceDirs() {
@@ -105,12 +116,7 @@ public class DefaultToolOptions {
     }
 
     public static List<File> getCompilerResourceDirs(CeylonConfig config) {
-        String[] dirs = config.getOptionValues(COMPILER_RESOURCE);
-        if (dirs != null) {
-            return Arrays.asList(FileUtil.pathsToFileArray(dirs));
-        } else {
-            return Collections.singletonList(new File(Constants.DEFAULT_RESOURCE_DIR));
-        }
+        return config.getOption(RESOURCE);
     }
 
     public static List<File> getCompilerScriptDirs() {
@@ -118,12 +124,7 @@ public class DefaultToolOptions {
     }
 
     public static List<File> getCompilerScriptDirs(CeylonConfig config) {
-        String[] dirs = config.getOptionValues(COMPILER_SCRIPT);
-        if (dirs != null) {
-            return Arrays.asList(FileUtil.pathsToFileArray(dirs));
-        } else {
-            return Collections.singletonList(new File(Constants.DEFAULT_SCRIPT_DIR));
-        }
+        return config.getOption(SCRIPT);
     }
 
     public static String getCompilerResourceRootName() {
@@ -131,7 +132,7 @@ public class DefaultToolOptions {
     }
 
     public static String getCompilerResourceRootName(CeylonConfig config) {
-        return config.getOption(COMPILER_RESOURCE_ROOT, Constants.DEFAULT_RESOURCE_ROOT);
+        return config.getOption(RESOURCE_ROOT);
     }
 
     public static List<File> getCompilerDocDirs() {
@@ -139,12 +140,7 @@ public class DefaultToolOptions {
     }
 
     public static List<File> getCompilerDocDirs(CeylonConfig config) {
-        String[] dirs = config.getOptionValues(COMPILER_DOC);
-        if (dirs != null) {
-            return Arrays.asList(FileUtil.pathsToFileArray(dirs));
-        } else {
-            return Collections.singletonList(new File(Constants.DEFAULT_DOC_DIR));
-        }
+        return config.getOption(DOC);
     }
 
     public static String getCompilerOutputRepo() {
@@ -160,12 +156,7 @@ public class DefaultToolOptions {
     }
 
     public static List<String> getCompilerSuppressWarnings(CeylonConfig config) {
-        String[] warnings = config.getOptionValues(COMPILER_SUPPRESSWARNING);
-        if (warnings != null) {
-            return Arrays.asList(warnings);
-        } else {
-            return null;
-        }
+        return config.getOption(SUPPRESSWARNING);
     }
     
     public static boolean getCompilerNoOsgi() {
@@ -173,7 +164,7 @@ public class DefaultToolOptions {
     }
     
     public static boolean getCompilerNoOsgi(CeylonConfig config) {
-        return config.getBoolOption(COMPILER_NOOSGI, false);
+        return config.getOption(NOOSGI);
     }
 
     public static boolean getCompilerNoPom() {
@@ -181,7 +172,7 @@ public class DefaultToolOptions {
     }
     
     public static boolean getCompilerNoPom(CeylonConfig config) {
-        return config.getBoolOption(COMPILER_NOPOM, false);
+        return config.getOption(NOPOM);
     }
 
     public static boolean getCompilerPack200() {
@@ -189,7 +180,7 @@ public class DefaultToolOptions {
     }
     
     public static boolean getCompilerPack200(CeylonConfig config) {
-        return config.getBoolOption(COMPILER_PACK200, false);
+        return config.getOption(PACK200);
     }
     
     public static String getRunToolCompileFlags() {
@@ -197,7 +188,7 @@ public class DefaultToolOptions {
     }
 
     public static String getRunToolCompileFlags(CeylonConfig config) {
-        return config.getOption(RUNTOOL_COMPILE, Constants.DEFAULT_RUNTOOL_COMPILATION_FLAGS);
+        return config.getOption(RUNTOOL_COMPILE_FLAGS);
     }
     
     public static String getTestToolCompileFlags() {
@@ -205,6 +196,6 @@ public class DefaultToolOptions {
     }
 
     public static String getTestToolCompileFlags(CeylonConfig config) {
-        return config.getOption(TESTTOOL_COMPILE, Constants.DEFAULT_TESTTOOL_COMPILATION_FLAGS);
+        return config.getOption(TESTTOOL_COMPILE_FLAGS);
     }
 }
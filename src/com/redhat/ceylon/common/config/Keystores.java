@@ -5,11 +5,20 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -20,6 +29,12 @@ import com.redhat.ceylon.common.FileUtil;
 /**
  * Creates {@link Store}s based on {@code [keystore]} sections in the 
  * {@link CeylonConfig} 
+ * <p>
+ * Loaded keystores are kept in memory for as long as their file's
+ * modification time and size stay the same and they're accessed with
+ * the same store password, so looking up several passwords doesn't
+ * mean reading and decrypting the file each time. The store passwords
+ * themselves aren't kept, only salted hashes of them.
  */
 public class Keystores {
 
@@ -67,11 +82,24 @@ public class Keystores {
     private static final String DEFAULT_KEY_FACTORY_PROVIDER = "SunJCE";
 
     /* We need to ensure that multiple threads can't to update the keystore
-     * at the same time. We don't want to corrupt it. Using a class which 
-     * should be loaded by the system classloader should be safe against
-     * multiple class loaders too.
+     * at the same time. We don't want to corrupt it. There's a lock for
+     * each keystore file, so threads using different keystores don't get
+     * in each other's way. The locks are private objects, so nothing 
+     * else can synchronize on them by accident.
      */
-    private static final Object MUTEX = KeyStore.class;
+    private static final ConcurrentHashMap<File, Object> locks = new ConcurrentHashMap<File, Object>();
+    private static final Object NO_FILE_LOCK = new Object();
+    
+    // A keystore that was modified this recently before it got loaded  
+    // might get modified again without its modification time changing
+    private static final long RACY_MILLIS = 2000;
+    
+    // Loaded keystores by canonical file
+    private static final ConcurrentHashMap<File, LoadedKeyStore> loadedKeyStores = new ConcurrentHashMap<File, LoadedKeyStore>();
+    
+    // Makes the hashes of store passwords useless outside this process
+    private static final byte[] SALT = salt();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     private final CeylonConfig config;
     
@@ -79,29 +107,41 @@ public class Keystores {
         return SECTION_KEYSTORE + (keystoreName != null ? "." + keystoreName : "") + "." + itemName;
     }
 
-    private Keystores() {
-        this(CeylonConfig.get());
-    }
-    
     private Keystores(CeylonConfig config) {
         this.config = config;
     }
     
-    private static Keystores instance;
+    // Overrides the instances belonging to the configurations when set
+    private static volatile Keystores instance;
     
+    /**
+     * Returns the instance set by {@link #set(Keystores)} if any, otherwise
+     * the one belonging to the configuration returned by
+     * {@link CeylonConfig#get()}
+     */
     public static Keystores get() {
-        if (instance == null) {
-            instance = new Keystores();
-        }
-        return instance;
+        Keystores result = instance;
+        return (result != null) ? result : withConfig(CeylonConfig.get());
     }
     
+    /**
+     * Sets the instance to be returned by {@link #get()} for all
+     * threads, passing "null" goes back to the instance belonging to
+     * each thread's configuration
+     */
     public static void set(Keystores keystores) {
         instance = keystores;
     }
     
+    /**
+     * Returns the instance belonging to the given configuration
+     */
     public static Keystores withConfig(CeylonConfig config) {
-        return new Keystores(config);
+        Keystores result = config.getAttachment(Keystores.class);
+        if (result == null) {
+            result = config.attach(Keystores.class, new Keystores(config));
+        }
+        return result;
     }
     
     /**
@@ -179,10 +219,39 @@ public class Keystores {
             return protection;
         }
 
-        private KeyStore loadKeyStore(char[] storePassword)
+        private File getCanonicalStoreFile() throws IOException {
+            File file = getStoreFile();
+            return file != null ? file.getCanonicalFile() : null;
+        }
+        
+        // The object to lock on while accessing the given keystore file
+        private Object lock(File file) {
+            if (file == null) {
+                return NO_FILE_LOCK;
+            }
+            Object lock = locks.get(file);
+            if (lock == null) {
+                lock = new Object();
+                Object old = locks.putIfAbsent(file, lock);
+                if (old != null) {
+                    lock = old;
+                }
+            }
+            return lock;
+        }
+        
+        // Must be called while holding the lock for the file
+        private KeyStore loadKeyStore(File file, char[] storePassword)
                 throws GeneralSecurityException, IOException {
+            byte[] passwordHash = hash(storePassword);
+            if (file != null) {
+                LoadedKeyStore loaded = loadedKeyStores.get(file);
+                if (loaded != null && loaded.isValid(this, file, passwordHash)) {
+                    return loaded.keyStore;
+                }
+            }
             KeyStore ks = KeyStore.getInstance(getKeyStoreType(), getKeyStoreProvider());
-            FileInputStream stream = fileExists() ? new FileInputStream(getStoreFile()) : null;
+            FileInputStream stream = file != null && file.exists() ? new FileInputStream(file) : null;
             try {
                 ks.load(stream , storePassword);
             } finally {
@@ -190,20 +259,34 @@ public class Keystores {
                     stream.close();
                 }
             }
+            if (stream != null) {
+                cacheKeyStore(file, new LoadedKeyStore(this, file, passwordHash, ks));
+            }
             return ks;
         }
         
-        private void saveKeystore(KeyStore ks, char[] storePassword)
+        // Must be called while holding the lock for the file
+        private void saveKeystore(File file, KeyStore ks, char[] storePassword)
                 throws FileNotFoundException, KeyStoreException, IOException,
                 NoSuchAlgorithmException, CertificateException {
-            File file = getStoreFile();
             if (file != null) {
+                // The keystore has been modified, so whatever happens
+                // the cached one isn't any good anymore
+                loadedKeyStores.remove(file);
                 FileOutputStream out = new FileOutputStream(file);
                 try {
                     ks.store(out, storePassword);
                 } finally {
                     out.close();
                 }
+                cacheKeyStore(file, new LoadedKeyStore(this, file, hash(storePassword), ks));
+            }
+        }
+        
+        private void cacheKeyStore(File file, LoadedKeyStore loaded) {
+            if (loaded.lastModified != 0 
+                    && System.currentTimeMillis() - loaded.lastModified > RACY_MILLIS) {
+                loadedKeyStores.put(file, loaded);
             }
         }
         
@@ -226,8 +309,9 @@ public class Keystores {
             keystoreAlias = canonicalizeAlias(keystoreAlias);
             SecretKeyFactory keyFac = SecretKeyFactory.getInstance(getKeyFactoryAlgorithm(), getKeyFactoryProvider());
             PBEKeySpec keySpec = null;
-            synchronized (MUTEX) {
-                KeyStore ks = loadKeyStore(storePassword);
+            File file = getCanonicalStoreFile();
+            synchronized (lock(file)) {
+                KeyStore ks = loadKeyStore(file, storePassword);
                 KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry)ks.getEntry(keystoreAlias, new KeyStore.PasswordProtection(entryPassword));
                 if (entry != null) {
                     keySpec = (PBEKeySpec)keyFac.getKeySpec(entry.getSecretKey(), PBEKeySpec.class);
@@ -251,17 +335,9 @@ public class Keystores {
          */
         public void setPassword(String keystoreAlias, char[] storePassword, char[] entryPassword, char[] password) 
                     throws Exception {
-            keystoreAlias = canonicalizeAlias(keystoreAlias);
-            PBEKeySpec pbeKeySpec = new PBEKeySpec(password);
-            SecretKeyFactory keyFac = SecretKeyFactory.getInstance(
-                    keyFactoryAlgorithm, keyFactoryProvider);
-            SecretKey pbeKey = keyFac.generateSecret(pbeKeySpec);
-            KeyStore.SecretKeyEntry credentials = new KeyStore.SecretKeyEntry(pbeKey);
-            synchronized (MUTEX) {
-                KeyStore ks = loadKeyStore(storePassword);
-                ks.setEntry(keystoreAlias, credentials, entryPassword != null ? new KeyStore.PasswordProtection(entryPassword) : null);
-                saveKeystore(ks, storePassword);
-            }
+            Edit edit = edit(storePassword);
+            edit.setPassword(keystoreAlias, entryPassword, password);
+            edit.save();
         }
         
         public void setPassword(String keystoreAlias, char[] accessPassword, char[] password) throws Exception {
@@ -269,13 +345,94 @@ public class Keystores {
         }
         
         public void deletePassword(String keystoreAlias, char[] storePassword) throws Exception {
-            keystoreAlias = canonicalizeAlias(keystoreAlias);
-            synchronized (MUTEX) {
-                KeyStore ks = loadKeyStore(storePassword);
-                if (ks.containsAlias(keystoreAlias)) {
-                    ks.deleteEntry(keystoreAlias);
+            Edit edit = edit(storePassword);
+            edit.deletePassword(keystoreAlias);
+            edit.save();
+        }
+        
+        /**
+         * Starts a set of changes to this store which will all be
+         * written in one go by {@link Edit#save()}
+         * @param storePassword The password for accessing the keystore
+         */
+        public Edit edit(char[] storePassword) {
+            return new Edit(storePassword);
+        }
+        
+        /**
+         * A set of changes to a {@link Store}, nothing gets changed
+         * until {@link #save()} is called
+         */
+        public class Edit {
+            private final char[] storePassword;
+            // Aliases to delete map to null entries
+            private final List<String> aliases = new ArrayList<String>();
+            private final List<KeyStore.SecretKeyEntry> entries = new ArrayList<KeyStore.SecretKeyEntry>();
+            private final List<char[]> entryPasswords = new ArrayList<char[]>();
+            
+            private Edit(char[] storePassword) {
+                this.storePassword = storePassword;
+            }
+            
+            /**
+             * Sets the password with the given alias
+             * @param keystoreAlias The alias in the keystore of this password to set
+             * @param entryPassword The password for accessing the entry
+             * @param password The password
+             */
+            public Edit setPassword(String keystoreAlias, char[] entryPassword, char[] password) 
+                    throws GeneralSecurityException {
+                PBEKeySpec pbeKeySpec = new PBEKeySpec(password);
+                SecretKeyFactory keyFac = SecretKeyFactory.getInstance(
+                        keyFactoryAlgorithm, keyFactoryProvider);
+                SecretKey pbeKey = keyFac.generateSecret(pbeKeySpec);
+                aliases.add(canonicalizeAlias(keystoreAlias));
+                entries.add(new KeyStore.SecretKeyEntry(pbeKey));
+                entryPasswords.add(entryPassword);
+                return this;
+            }
+            
+            /**
+             * Deletes the password with the given alias
+             * @param keystoreAlias The alias in the keystore of this password to delete
+             */
+            public Edit deletePassword(String keystoreAlias) {
+                aliases.add(canonicalizeAlias(keystoreAlias));
+                entries.add(null);
+                entryPasswords.add(null);
+                return this;
+            }
+            
+            /**
+             * Applies all changes, in the order they were made, and
+             * writes the keystore once
+             */
+            public void save() throws GeneralSecurityException, IOException {
+                File file = getCanonicalStoreFile();
+                synchronized (lock(file)) {
+                    KeyStore ks = loadKeyStore(file, storePassword);
+                    try {
+                        for (int i = 0; i < aliases.size(); i++) {
+                            String alias = aliases.get(i);
+                            KeyStore.SecretKeyEntry entry = entries.get(i);
+                            if (entry != null) {
+                                char[] entryPassword = entryPasswords.get(i);
+                                ks.setEntry(alias, entry, entryPassword != null ? new KeyStore.PasswordProtection(entryPassword) : null);
+                            } else if (ks.containsAlias(alias)) {
+                                ks.deleteEntry(alias);
+                            }
+                        }
+                    } catch (GeneralSecurityException e) {
+                        // The cached keystore might be half modified now
+                        if (file != null) {
+                            loadedKeyStores.remove(file);
+                        }
+                        throw e;
+                    }
+                    saveKeystore(file, ks, storePassword);
                 }
-                saveKeystore(ks, storePassword);   
+                // Passwords remembered from before the change might be wrong now
+                Authentication.clearPasswordCache(getFilename());
             }
         }
     }
@@ -296,4 +453,57 @@ public class Keystores {
         return new Store(file, keyStoreType, keyStoreProvider, keyFactoryAlgorithm, keyFactoryProvider, protection);
     }
     
+    private static byte[] salt() {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+    
+    private static byte[] hash(char[] password) {
+        if (password == null) {
+            return null;
+        }
+        ByteBuffer bytes = UTF8.encode(CharBuffer.wrap(password));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(SALT);
+            digest.update(bytes.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new RuntimeException(e);
+        } finally {
+            if (bytes.hasArray()) {
+                Arrays.fill(bytes.array(), (byte)0);
+            }
+        }
+    }
+    
+    private static final class LoadedKeyStore {
+        final KeyStore keyStore;
+        private final long lastModified;
+        private final long length;
+        private final String type;
+        private final String provider;
+        private final byte[] passwordHash;
+        
+        LoadedKeyStore(Store store, File file, byte[] passwordHash, KeyStore keyStore) {
+            this.keyStore = keyStore;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.type = store.getKeyStoreType();
+            this.provider = store.getKeyStoreProvider();
+            this.passwordHash = passwordHash;
+        }
+        
+        boolean isValid(Store store, File file, byte[] passwordHash) {
+            return lastModified != 0
+                    && lastModified == file.lastModified()
+                    && length == file.length()
+                    && type.equals(store.getKeyStoreType())
+                    && provider.equals(store.getKeyStoreProvider())
+                    && (this.passwordHash == null ? passwordHash == null 
+                            : passwordHash != null && MessageDigest.isEqual(this.passwordHash, passwordHash));
+        }
+    }
 }
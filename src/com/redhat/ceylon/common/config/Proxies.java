@@ -43,29 +43,41 @@ public class Proxies {
 
     private final CeylonConfig config;
     
-    private Proxies() {
-        this(CeylonConfig.get());
-    }
-    
     private Proxies(CeylonConfig config) {
         this.config = config;
     }
     
-    private static Proxies instance;
+    // Overrides the instances belonging to the configurations when set
+    private static volatile Proxies instance;
     
+    /**
+     * Returns the instance set by {@link #set(Proxies)} if any, otherwise
+     * the one belonging to the configuration returned by
+     * {@link CeylonConfig#get()}
+     */
     public static Proxies get() {
-        if (instance == null) {
-            instance = new Proxies();
-        }
-        return instance;
+        Proxies result = instance;
+        return (result != null) ? result : withConfig(CeylonConfig.get());
     }
     
+    /**
+     * Sets the instance to be returned by {@link #get()} for all
+     * threads, passing "null" goes back to the instance belonging to
+     * each thread's configuration
+     */
     public static void set(Proxies proxies) {
         instance = proxies;
     }
     
+    /**
+     * Returns the instance belonging to the given configuration
+     */
     public static Proxies withConfig(CeylonConfig config) {
-        return new Proxies(config);
+        Proxies result = config.getAttachment(Proxies.class);
+        if (result == null) {
+            result = config.attach(Proxies.class, new Proxies(config));
+        }
+        return result;
     }
     
     /**
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.redhat.ceylon.common.Constants;
 import com.redhat.ceylon.common.FileUtil;
@@ -100,10 +101,16 @@ import com.redhat.ceylon.common.FileUtil;
  *   REMOTE - By default this is points to the official Ceylon Herd repository. It's normally not advisable
  *            to override this.
  * 
+ * Repositories are only resolved once for as long as the configuration doesn't change, after
+ * that the same Repository objects and arrays are returned each time, so the arrays returned
+ * must not be modified. The system properties and folders that determine the defaults of the
+ * predefined repositories are only looked at when the configuration changes as well.
+ * 
  * @author Tako Schotanus (tako@ceylon-lang.org)
  */
 public class Repositories {
     private CeylonConfig config;
+    private volatile Table table;
     
     private static final String SECTION_REPOSITORY = "repository";
     private static final String SECTION_REPOSITORIES = "repositories";
@@ -128,21 +135,37 @@ public class Repositories {
     private static final String ITEM_USER = "user";
     private static final String ITEM_URL = "url";
     
-    private static Repositories instance;
+    // Overrides the instances belonging to the configurations when set
+    private static volatile Repositories instance;
     
+    /**
+     * Returns the instance set by {@link #set(Repositories)} if any, otherwise
+     * the one belonging to the configuration returned by
+     * {@link CeylonConfig#get()}
+     */
     public static Repositories get() {
-        if (instance == null) {
-            instance = new Repositories();
-        }
-        return instance;
+        Repositories result = instance;
+        return (result != null) ? result : withConfig(CeylonConfig.get());
     }
     
+    /**
+     * Sets the instance to be returned by {@link #get()} for all
+     * threads, passing "null" goes back to the instance belonging to
+     * each thread's configuration
+     */
     public static void set(Repositories repos) {
         instance = repos;
     }
     
+    /**
+     * Returns the instance belonging to the given configuration
+     */
     public static Repositories withConfig(CeylonConfig config) {
-        return new Repositories(config);
+        Repositories result = config.getAttachment(Repositories.class);
+        if (result == null) {
+            result = config.attach(Repositories.class, new Repositories(config));
+        }
+        return result;
     }
     
     public interface Repository {
@@ -199,31 +222,42 @@ public class Repositories {
         }
     }
     
-    private Repositories() {
-        this(CeylonConfig.get());
-    }
-    
     private Repositories(CeylonConfig config) {
         this.config = config;
     }
     
-    private String repoKey(String repoName, String itemName) {
-        return SECTION_REPOSITORY + "." + repoName + "." + itemName;
+    /*
+     * Returns the resolved repositories for the current contents
+     * of the configuration
+     */
+    private Table table() {
+        Table t = table;
+        if (t == null || t.version != config.version()) {
+            // Losing a race here only means resolving things twice
+            t = new Table(config.copy());
+            table = t;
+        }
+        return t;
     }
     
     public Repository getRepository(String repoName) {
-        String url = config.getOption(repoKey(repoName, ITEM_URL));
+        return table().getRepository(repoName);
+    }
+    
+    private static Repository resolveRepository(CeylonConfig config, String repoName) {
+        CeylonConfig.Section repo = config.section(SECTION_REPOSITORY + "." + repoName);
+        String url = repo.getOption(ITEM_URL);
         if (url != null) {
-            String user = config.getOption(repoKey(repoName, ITEM_USER));
-            String password = config.getOption(repoKey(repoName, ITEM_PASSWORD));
-            final String alias = config.getOption(repoKey(repoName, ITEM_PASSWORD_KS_ALIAS));
-            String keystore = config.getOption(repoKey(repoName, ITEM_PASSWORD_KS));
+            String user = repo.getOption(ITEM_USER);
+            String password = repo.getOption(ITEM_PASSWORD);
+            final String alias = repo.getOption(ITEM_PASSWORD_KS_ALIAS);
+            String keystore = repo.getOption(ITEM_PASSWORD_KS);
             String prompt = ConfigMessages.msg("repository.password.prompt", user, url);
             Credentials credentials = Credentials.create(user, password, keystore, alias, prompt);
             return new SimpleRepository(repoName, url, credentials);
         } else {
             if (REPO_NAME_SYSTEM.equals(repoName)) {
-                File dir = getSystemRepoDir();
+                File dir = systemRepoDir();
                 if (dir != null) {
                     // $INSTALLDIR/repo
                     return new SimpleRepository(REPO_NAME_SYSTEM, dir.getAbsolutePath(), null);
@@ -234,11 +268,11 @@ public class Repositories {
                 return new SimpleRepository(REPO_NAME_LOCAL, dir.getPath(), null);
             } else if (REPO_NAME_CACHE.equals(repoName)) {
                 // $HOME/.ceylon/cache
-                File dir = getCacheRepoDir();
+                File dir = cacheRepoDir();
                 return new SimpleRepository(REPO_NAME_CACHE, dir.getAbsolutePath(), null);
             } else if (REPO_NAME_USER.equals(repoName)) {
                 // $HOME/.ceylon/repo
-                File userRepoDir = getUserRepoDir();
+                File userRepoDir = userRepoDir();
                 return new SimpleRepository(REPO_NAME_USER, userRepoDir.getAbsolutePath(), null);
             } else if (REPO_NAME_REMOTE.equals(repoName)) {
                 // http://modules.ceylon-lang.org
@@ -248,12 +282,16 @@ public class Repositories {
         }
     }
     
-    private String reposTypeKey(String repoType) {
+    private static String reposTypeKey(String repoType) {
         return SECTION_REPOSITORIES + "." + repoType;
     }
     
     public Repository[] getRepositoriesByType(String repoType) {
-        String urls[] = config.getOptionValues(reposTypeKey(repoType));
+        return table().getRepositoriesByType(repoType);
+    }
+    
+    private static Repository[] resolveRepositoriesByType(Table table, String repoType) {
+        String urls[] = table.config.getOptionValues(reposTypeKey(repoType));
         if (urls != null) {
             ArrayList<Repository> repos = new ArrayList<Repository>(urls.length);
             for (int i = 0; i < urls.length; i++) {
@@ -261,7 +299,7 @@ public class Repositories {
                 Repository repo;
                 if (url.startsWith("+")) {
                     String name = url.substring(1);
-                    repo = new RepositoryRef(getRepository(name));
+                    repo = new RepositoryRef(table.getRepository(name));
                 } else {
                     String name = "%" + repoType + "-" + (i + 1);
                     repo = new SimpleRepository(name, url, null);
@@ -279,25 +317,39 @@ public class Repositories {
     }
     
     public Repository[] getRepositoriesByTypeWithDefaults(String repoType) {
+        return table().getRepositoriesByTypeWithDefaults(repoType);
+    }
+    
+    private static Repository[] resolveRepositoriesByTypeWithDefaults(Table table, String repoType) {
+        Repository[] repos = table.getRepositoriesByType(repoType);
         if (repoType.equals(REPO_TYPE_SYSTEM)) {
-            return new Repository[] { getSystemRepository() };
+            return new Repository[] { first(repos, table, REPO_NAME_SYSTEM) };
         } else if (repoType.equals(REPO_TYPE_OUTPUT)) {
-            return new Repository[] { getOutputRepository() };
+            return new Repository[] { first(repos, table, REPO_NAME_LOCAL) };
         } else if (repoType.equals(REPO_TYPE_CACHE)) {
-            return new Repository[] { getCacheRepository() };
-        }  else if (repoType.equals(REPO_TYPE_LOCAL_LOOKUP)) {
-            return getLocalLookupRepositories();
-        }  else if (repoType.equals(REPO_TYPE_GLOBAL_LOOKUP)) {
-            return getGlobalLookupRepositories();
-        }  else if (repoType.equals(REPO_TYPE_REMOTE_LOOKUP)) {
-            return getRemoteLookupRepositories();
-        }  else if (repoType.equals(REPO_TYPE_OTHER_LOOKUP)) {
-            return getOtherLookupRepositories();
+            return new Repository[] { first(repos, table, REPO_NAME_CACHE) };
+        } else if (repos != null) {
+            return repos;
+        } else if (repoType.equals(REPO_TYPE_LOCAL_LOOKUP)) {
+            // By default "./modules"
+            return new Repository[] { table.getRepository(REPO_NAME_LOCAL) };
+        } else if (repoType.equals(REPO_TYPE_GLOBAL_LOOKUP)) {
+            // By default "$HOME/.ceylon/repo"
+            return new Repository[] { table.getRepository(REPO_NAME_USER) };
+        } else if (repoType.equals(REPO_TYPE_REMOTE_LOOKUP)) {
+            return new Repository[0];
+        } else if (repoType.equals(REPO_TYPE_OTHER_LOOKUP)) {
+            // By default "http://modules.ceylon-lang.org"
+            return new Repository[] { table.getRepository(REPO_NAME_REMOTE) };
         } else {
-            return getRepositoriesByType(repoType);
+            return null;
         }
     }
     
+    private static Repository first(Repository[] repos, Table table, String defaultName) {
+        return (repos != null) ? repos[0] : table.getRepository(defaultName);
+    }
+    
     public Repository getRepositoryByType(String repoType) {
         Repository[] repos = getRepositoriesByType(repoType);
         if (repos != null) {
@@ -363,6 +415,10 @@ public class Repositories {
     }
     
     public File getSystemRepoDir() {
+        return systemRepoDir();
+    }
+    
+    private static File systemRepoDir() {
         String ceylonSystemRepo = System.getProperty(Constants.PROP_CEYLON_SYSTEM_REPO);
         if (ceylonSystemRepo != null) {
             return new File(ceylonSystemRepo);
@@ -376,6 +432,10 @@ public class Repositories {
     }
     
     public File getUserRepoDir() {
+        return userRepoDir();
+    }
+    
+    private static File userRepoDir() {
         String ceylonUserRepo = System.getProperty(Constants.PROP_CEYLON_USER_REPO);
         if (ceylonUserRepo != null) {
             return new File(ceylonUserRepo);
@@ -386,6 +446,10 @@ public class Repositories {
     }
     
     public File getCacheRepoDir() {
+        return cacheRepoDir();
+    }
+    
+    private static File cacheRepoDir() {
         String ceylonUserRepo = System.getProperty(Constants.PROP_CEYLON_CACHE_REPO);
         if (ceylonUserRepo != null) {
             return new File(ceylonUserRepo);
@@ -396,64 +460,81 @@ public class Repositories {
     }
     
     public Repository getSystemRepository() {
-        Repository repo = getRepositoryByType(REPO_TYPE_SYSTEM);
-        if (repo == null) {
-            repo = getRepository(REPO_NAME_SYSTEM);
-        }
-        return repo;
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_SYSTEM)[0];
     }
     
     public Repository getOutputRepository() {
-        Repository repo = getRepositoryByType(REPO_TYPE_OUTPUT);
-        if (repo == null) {
-            repo = getRepository(REPO_NAME_LOCAL);
-        }
-        return repo;
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_OUTPUT)[0];
     }
     
     public Repository getCacheRepository() {
-        Repository repo = getRepositoryByType(REPO_TYPE_CACHE);
-        if (repo == null) {
-            repo = getRepository(REPO_NAME_CACHE);
-        }
-        return repo;
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_CACHE)[0];
     }
     
     public Repository[] getLocalLookupRepositories() {
-        Repository[] repos = getRepositoriesByType(REPO_TYPE_LOCAL_LOOKUP);
-        if (repos == null) {
-            repos = new Repository[1];
-            // By default "./modules"
-            repos[0] = getRepository(REPO_NAME_LOCAL);
-        }
-        return repos;
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_LOCAL_LOOKUP);
     }
     
     public Repository[] getGlobalLookupRepositories() {
-        Repository[] repos = getRepositoriesByType(REPO_TYPE_GLOBAL_LOOKUP);
-        if (repos == null) {
-            repos = new Repository[1];
-            // By default "$HOME/.ceylon/repo"
-            repos[0] = getRepository(REPO_NAME_USER);
-        }
-        return repos;
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_GLOBAL_LOOKUP);
     }
     
     public Repository[] getRemoteLookupRepositories() {
-        Repository[] repos = getRepositoriesByType(REPO_TYPE_REMOTE_LOOKUP);
-        if (repos == null) {
-            repos = new Repository[0];
-        }
-        return repos;
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_REMOTE_LOOKUP);
     }
     
     public Repository[] getOtherLookupRepositories() {
-        Repository[] repos = getRepositoriesByType(REPO_TYPE_OTHER_LOOKUP);
-        if (repos == null) {
-            repos = new Repository[1];
-            // By default "http://modules.ceylon-lang.org"
-            repos[0] = getRepository(REPO_NAME_REMOTE);
+        return getRepositoriesByTypeWithDefaults(REPO_TYPE_OTHER_LOOKUP);
+    }
+    
+    /*
+     * The repositories resolved for one version of the configuration,
+     * filled in as they get asked for
+     */
+    private static final class Table {
+        private static final Object NULL = new Object();
+        
+        final Object version;
+        final CeylonConfig config;
+        private final ConcurrentHashMap<String, Object> repositories = new ConcurrentHashMap<String, Object>();
+        private final ConcurrentHashMap<String, Object> byType = new ConcurrentHashMap<String, Object>();
+        private final ConcurrentHashMap<String, Object> byTypeWithDefaults = new ConcurrentHashMap<String, Object>();
+        
+        Table(CeylonConfig config) {
+            // A copy that nobody else has access to never changes
+            this.config = config;
+            this.version = config.version();
+        }
+        
+        Repository getRepository(String repoName) {
+            Object repo = repositories.get(repoName);
+            if (repo == null) {
+                repo = remember(repositories, repoName, resolveRepository(config, repoName));
+            }
+            return (repo != NULL) ? (Repository)repo : null;
+        }
+        
+        Repository[] getRepositoriesByType(String repoType) {
+            Object repos = byType.get(repoType);
+            if (repos == null) {
+                repos = remember(byType, repoType, resolveRepositoriesByType(this, repoType));
+            }
+            return (repos != NULL) ? (Repository[])repos : null;
+        }
+        
+        Repository[] getRepositoriesByTypeWithDefaults(String repoType) {
+            Object repos = byTypeWithDefaults.get(repoType);
+            if (repos == null) {
+                repos = remember(byTypeWithDefaults, repoType, resolveRepositoriesByTypeWithDefaults(this, repoType));
+            }
+            return (repos != NULL) ? (Repository[])repos : null;
+        }
+        
+        // Makes sure everybody gets the same object even when racing
+        private static Object remember(ConcurrentHashMap<String, Object> map, String key, Object value) {
+            Object v = (value != null) ? value : NULL;
+            Object old = map.putIfAbsent(key, v);
+            return (old != null) ? old : v;
         }
-        return repos;
     }
 }
@@ -1,12 +1,17 @@
 package com.redhat.ceylon.common.tool;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.List;
 
 public class AnnotatedToolModel<T extends Tool> extends ToolModel<T> {
     private Class<T> toolClass;
-    private boolean loaded;
+    private volatile boolean loaded;
+    private boolean loading;
+    private volatile boolean hooksResolved;
+    private MethodHandle toolLoaderSetter;
+    private MethodHandle toolModelSetter;
     
     public AnnotatedToolModel(String name) {
         super(name);
@@ -22,8 +27,19 @@ public class AnnotatedToolModel<T extends Tool> extends ToolModel<T> {
 
     private void setup() {
         if (!loaded) {
-            loaded = true;
-            getToolLoader().setupModel(this);
+            synchronized (this) {
+                // setupModel() calls back into us, so guard against
+                // re-entry without publishing a half built model
+                if (!loaded && !loading) {
+                    loading = true;
+                    try {
+                        getToolLoader().setupModel(this);
+                    } finally {
+                        loading = false;
+                        loaded = true;
+                    }
+                }
+            }
         }
     }
     
@@ -69,6 +85,32 @@ public class AnnotatedToolModel<T extends Tool> extends ToolModel<T> {
         return super.getRest();
     }
     
+    /**
+     * The tool's optional {@code setToolLoader(ToolLoader)} method,
+     * or null if it doesn't have one
+     */
+    MethodHandle getToolLoaderSetter() {
+        resolveHooks();
+        return toolLoaderSetter;
+    }
+    
+    /**
+     * The tool's optional {@code setToolModel(ToolModel)} method,
+     * or null if it doesn't have one
+     */
+    MethodHandle getToolModelSetter() {
+        resolveHooks();
+        return toolModelSetter;
+    }
+    
+    private void resolveHooks() {
+        if (!hooksResolved) {
+            toolLoaderSetter = SetterHandles.find(toolClass, "setToolLoader", ToolLoader.class);
+            toolModelSetter = SetterHandles.find(toolClass, "setToolModel", ToolModel.class);
+            hooksResolved = true;
+        }
+    }
+    
     public boolean isHidden() {
         return toolClass != null && toolClass.getAnnotation(Hidden.class) != null;
     }
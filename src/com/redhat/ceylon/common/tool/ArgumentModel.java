@@ -1,6 +1,8 @@
 package com.redhat.ceylon.common.tool;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
+import java.util.EnumSet;
 
 /**
  * Model of a command line argument accepted by a plugin
@@ -10,6 +12,8 @@ import java.lang.reflect.Method;
 public class ArgumentModel<A> {
     private ToolModel<?> toolModel;
     private Method setter;
+    private volatile MethodHandle setterHandle;
+    private boolean enumSetSetter;
     private Class<A> type;
     private String argumentName;
     private Multiplicity multiplicity;
@@ -33,6 +37,26 @@ public class ArgumentModel<A> {
     }
     public void setSetter(Method setter) {
         this.setter = setter;
+        this.setterHandle = null;
+        this.enumSetSetter = setter != null && setter.getParameterTypes()[0].equals(EnumSet.class);
+    }
+    
+    /**
+     * The setter as a {@code (Object, Object)void} method handle, 
+     * created the first time it's needed
+     */
+    MethodHandle getSetterHandle() {
+        MethodHandle handle = setterHandle;
+        if (handle == null) {
+            handle = SetterHandles.unreflect(setter);
+            setterHandle = handle;
+        }
+        return handle;
+    }
+    
+    /** Whether the setter takes an {@code EnumSet} */
+    boolean isEnumSetSetter() {
+        return enumSetSetter;
     }
     
     public ArgumentParser<A> getParser() {
@@ -5,142 +5,380 @@ import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import com.redhat.ceylon.common.Constants;
 import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.OSUtil;
 import com.redhat.ceylon.common.tool.ToolLoader;
+import com.redhat.ceylon.common.tools.PerThreadPrintStream;
 
 /******************************************************
- * IMPORTANT There are two exact copies of this file
- * that need to be kept in sync! One in ceylon-compiler
- * (com.redhat.ceylon.launcher) and on in ceylon-common
- * (com.redhat.ceylon.common.tool)
+ * IMPORTANT There are two copies of this file! One in
+ * ceylon-compiler (com.redhat.ceylon.launcher) and one
+ * in ceylon-common (com.redhat.ceylon.common.tool).
+ * This one scans directories concurrently and caches
+ * what it finds, the launcher's copy scans them one by
+ * one. The directories searched, their order and the
+ * rules for what counts as a plugin must be kept in
+ * sync between the two!
  ******************************************************/
 
 /**
- * Finds command plugins for the "ceylon" command 
+ * Finds command plugins for the "ceylon" command.
+ * <p>
+ * Directories are scanned concurrently on a small shared pool and the
+ * result for each directory is cached for as long as the directory's
+ * modification time stays the same. When only a single tool is needed
+ * {@link #findPathPlugin(String)} stops as soon as it knows the answer.
  */
 public class PathPlugins {
+    private static final int POOL_SIZE = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final long RACY_MILLIS = 2000;
+    // Scanned directories, forgotten all at once when full
+    private static final int MAX_CACHED_DIRS = 256;
+    private static final ConcurrentHashMap<File, DirPlugins> dirCache = new ConcurrentHashMap<File, DirPlugins>();
+    private static ExecutorService pool;
+
     private Set<String> pathPlugins;
 
-    public Set<String> getPathPlugins() {
+    public synchronized Set<String> getPathPlugins() {
         if(pathPlugins == null){
-            pathPlugins = new TreeSet<String>();
-            findPathPlugins();
+            pathPlugins = findPathPlugins(getPluginDirs());
         }
         return pathPlugins;
     }
 
-    private void findPathPlugins() {
+    /**
+     * Looks for plugins in the given directories only, the first plugin
+     * found with a given name hides the others with that name
+     */
+    public Set<String> findPathPlugins(List<File> dirs) {
+        Set<String> result = new TreeSet<String>();
         Set<String> names = new HashSet<String>();
+        for (Future<DirPlugins> future : scan(dirs)) {
+            for (Map.Entry<String, String> entry : get(future).plugins.entrySet()) {
+                // we're good if it's unique
+                if (names.add(entry.getKey())) {
+                    result.add(entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines the plugins found in two lists of directories, the first
+     * plugins hiding those in the second with the same name
+     */
+    public static Set<String> merge(Collection<String> plugins, Collection<String> laterPlugins) {
+        Set<String> result = new TreeSet<String>(plugins);
+        Set<String> names = new HashSet<String>();
+        for (String plugin : plugins) {
+            names.add(pluginName(plugin));
+        }
+        for (String plugin : laterPlugins) {
+            if (names.add(pluginName(plugin))) {
+                result.add(plugin);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the plugins found so far, so that the next call to
+     * {@link #getPathPlugins()} looks at the plugin directories again
+     */
+    public synchronized void refresh() {
+        pathPlugins = null;
+    }
+
+    /**
+     * Looks for a plugin with the given name, returning the plugin as it
+     * would appear in {@link #getPathPlugins()} or null if there is none.
+     * Directories that come after the one containing the plugin are
+     * not waited for.
+     */
+    public String findPathPlugin(String toolName) {
+        Set<String> plugins;
+        synchronized (this) {
+            plugins = pathPlugins;
+        }
+        if (plugins == null) {
+            List<Future<DirPlugins>> futures = scan(getPluginDirs());
+            try {
+                for (Future<DirPlugins> future : futures) {
+                    String plugin = get(future).plugins.get(toolName);
+                    if (plugin != null) {
+                        return plugin;
+                    }
+                }
+            } finally {
+                for (Future<DirPlugins> future : futures) {
+                    future.cancel(false);
+                }
+            }
+            return null;
+        }
+        for (String plugin : plugins) {
+            if (toolName.equals(pluginName(plugin))) {
+                return plugin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the directories that will be searched for plugins, in the
+     * order in which they are searched. Only the directories themselves
+     * are listed, their contents are not looked at.
+     */
+    public List<File> getPluginDirs() {
+        List<File> dirs = getProjectPluginDirs();
+        dirs.addAll(getSharedPluginDirs());
+        return dirs;
+    }
+
+    /**
+     * Returns the plugin directories which depend on the current
+     * directory, they are searched first
+     */
+    public List<File> getProjectPluginDirs() {
+        List<File> dirs = new ArrayList<File>();
         // First in the project dir hierarchy, that is ./.ceylon/bin and  ./.ceylon/bin/{moduleName}/
         // and then going up into the parent folder until we reach the root
         File projectDir = (new File("")).getAbsoluteFile();
         while (projectDir != null) {
             File configBin = new File(new File(projectDir, Constants.CEYLON_CONFIG_DIR), Constants.CEYLON_BIN_DIR);
-            findPathPlugins(configBin, names);
+            addPluginDirs(configBin, dirs);
             projectDir = projectDir.getParentFile();
         }
-        // Then look in ~/.ceylon/bin and ~/.ceylon/bin/{moduleName}/
+        return dirs;
+    }
+
+    /**
+     * Returns the plugin directories which are the same whatever the
+     * current directory is, they are searched after the project ones
+     */
+    public List<File> getSharedPluginDirs() {
+        List<File> dirs = new ArrayList<File>();
+        // Look in ~/.ceylon/bin and ~/.ceylon/bin/{moduleName}/
         File defUserDir = new File(FileUtil.getDefaultUserDir(), Constants.CEYLON_BIN_DIR);
-        findPathPlugins(defUserDir, names);
+        addPluginDirs(defUserDir, dirs);
         // Then look in /etc/ceylon/bin and /etc/ceylon/bin/{moduleName}/
         // (or their equivalents on Windows and MacOS)
         File systemDir = new File(FileUtil.getSystemConfigDir(), Constants.CEYLON_BIN_DIR);
-        findPathPlugins(systemDir, names);
+        addPluginDirs(systemDir, dirs);
         // Then the ones from CEYLON_HOME/bin and CEYLON_HOME/bin/{moduleName}/
         File ceylonHome = FileUtil.getInstallDir();
         if (ceylonHome != null) {
-            findPathPlugins(new File(ceylonHome, Constants.CEYLON_BIN_DIR), names);
+            addPluginDirs(new File(ceylonHome, Constants.CEYLON_BIN_DIR), dirs);
         }
         // And finally in the user's PATH
         File[] paths = FileUtil.getExecPath();
         for (File part : paths) {
-            findPluginInPath(part, names);
+            dirs.add(part);
         }
+        return dirs;
     }
 
-    private void findPathPlugins(File dir, Set<String> names) {
+    private void addPluginDirs(File dir, List<File> dirs) {
         // Look in dir 
-        findPluginInPath(dir, names);
+        dirs.add(dir);
         // And in every installed script plugin in <dir>/{moduleName}/
         if(dir.isDirectory() && dir.canRead()){
             for(File scriptPluginDir : dir.listFiles()){
                 if(scriptPluginDir.isDirectory()){
-                    findPluginInPath(scriptPluginDir, names);
+                    dirs.add(scriptPluginDir);
                 }
             }
         }
     }
 
-    private void findPluginInPath(File dir, final Set<String> names) {
-        if(dir.isDirectory() && dir.canRead()){
-            // listing /usr/bin with >2k entries takes about 100ms using File.listFiles(Filter) and 39ms with NIO2
-            // and checking for file name before file type
-            DirectoryStream.Filter<Path> filter = new DirectoryStream.Filter<Path>() {
-                public boolean accept(Path f) throws IOException {
-                    String fileName = f.getFileName().toString();
-                    if(fileName.toLowerCase().startsWith("ceylon-") && Files.isRegularFile(f)){
-                        String name = fileName.substring(7);
-                        // Is it a plugin file?
-                        if(name.toLowerCase().endsWith(".plugin")){
-                            name = name.substring(0, name.length()-7);
-                            // we're good if it's unique
-                            if (names.add(name)) {
-                                pathPlugins.add(ToolLoader.PLUGIN_PREFIX+f.toAbsolutePath().toString());
-                                return true;
-                            }
+    private static String pluginName(String plugin) {
+        String name = new File(plugin.substring(ToolLoader.PLUGIN_PREFIX.length())).getName().substring(7);
+        if (plugin.startsWith(ToolLoader.PLUGIN_PREFIX)) {
+            return name.substring(0, name.length() - 7);
+        } else if (OSUtil.isWindows()) {
+            return name.substring(0, name.length() - 4);
+        } else {
+            return name;
+        }
+    }
+
+    private static List<Future<DirPlugins>> scan(List<File> dirs) {
+        List<Future<DirPlugins>> futures = new ArrayList<Future<DirPlugins>>(dirs.size());
+        for (final File dir : dirs) {
+            FutureTask<DirPlugins> task = new FutureTask<DirPlugins>(new Callable<DirPlugins>() {
+                @Override
+                public DirPlugins call() {
+                    return findPluginsInDir(dir);
+                }
+            });
+            if (dirs.size() > 1) {
+                getPool().execute(task);
+            } else {
+                task.run();
+            }
+            futures.add(task);
+        }
+        return futures;
+    }
+
+    private static DirPlugins get(Future<DirPlugins> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DirPlugins.EMPTY;
+        } catch (ExecutionException e) {
+            // Fail the same way as if we had scanned the directory ourselves
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new ToolException(cause);
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            PerThreadPrintStream.detachCurrentThread();
+                            r.run();
                         }
-                        // Is is a shell/batch script?
-                        if(Files.isExecutable(f)){
-                            if(OSUtil.isWindows()){
-                                // script must end with ".bat"
-                                if(!name.toLowerCase().endsWith(".bat"))
-                                    return false;
-                                // strip it
-                                name = name.substring(0, name.length()-4);
-                            }
-                            // refuse any name with dots in there (like ceylon-completion.bash)
-                            if(name.indexOf('.') != -1)
-                                return false;
-                            // also refuse ceylon-sh-setup
-                            if(name.equalsIgnoreCase("sh-setup"))
+                    }, "ceylon-path-plugins");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    private static DirPlugins findPluginsInDir(File dir) {
+        long lastModified = dir.lastModified();
+        if (lastModified == 0) {
+            // Doesn't exist (or we can't tell)
+            return DirPlugins.EMPTY;
+        }
+        DirPlugins cached = dirCache.get(dir);
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached;
+        }
+        DirPlugins result = new DirPlugins(lastModified);
+        if (dir.isDirectory() && dir.canRead()) {
+            findPluginInPath(dir, result.plugins);
+        }
+        // Like git we don't trust modification times that are so recent
+        // that the directory could still change without them changing
+        if (System.currentTimeMillis() - lastModified > RACY_MILLIS) {
+            if (dirCache.size() >= MAX_CACHED_DIRS) {
+                dirCache.clear();
+            }
+            dirCache.put(dir, result);
+        }
+        return result;
+    }
+
+    private static void findPluginInPath(File dir, final Map<String, String> plugins) {
+        // listing /usr/bin with >2k entries takes about 100ms using File.listFiles(Filter) and 39ms with NIO2
+        // and checking for file name before file type
+        DirectoryStream.Filter<Path> filter = new DirectoryStream.Filter<Path>() {
+            public boolean accept(Path f) throws IOException {
+                String fileName = f.getFileName().toString();
+                if(fileName.toLowerCase().startsWith("ceylon-") && Files.isRegularFile(f)){
+                    String name = fileName.substring(7);
+                    // Is it a plugin file?
+                    if(name.toLowerCase().endsWith(".plugin")){
+                        name = name.substring(0, name.length()-7);
+                        // we're good if it's unique
+                        if (!plugins.containsKey(name)) {
+                            plugins.put(name, ToolLoader.PLUGIN_PREFIX+f.toAbsolutePath().toString());
+                            return true;
+                        }
+                        return false;
+                    }
+                    // Is is a shell/batch script?
+                    if(Files.isExecutable(f)){
+                        if(OSUtil.isWindows()){
+                            // script must end with ".bat"
+                            if(!name.toLowerCase().endsWith(".bat"))
                                 return false;
-                            // we're good if it's unique
-                            if (names.add(name)) {
-                                pathPlugins.add(ToolLoader.SCRIPT_PREFIX+f.toAbsolutePath().toString());
-                                return true;
-                            }
+                            // strip it
+                            name = name.substring(0, name.length()-4);
+                        }
+                        // refuse any name with dots in there (like ceylon-completion.bash)
+                        if(name.indexOf('.') != -1)
+                            return false;
+                        // also refuse ceylon-sh-setup
+                        if(name.equalsIgnoreCase("sh-setup"))
+                            return false;
+                        // we're good if it's unique
+                        if (!plugins.containsKey(name)) {
+                            plugins.put(name, ToolLoader.SCRIPT_PREFIX+f.toAbsolutePath().toString());
+                            return true;
                         }
-                    } else {
-                        
                     }
-                    return false;
-                }
-            };
-            
-            DirectoryStream<Path>  stream = null;
-            try {
-                stream = Files.newDirectoryStream(dir.toPath(), filter);
-                for(@SuppressWarnings("unused") Path sub : stream){
-                    // Nothing to do, just iterating
+                } else {
+                    
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                // too bad, give up
-            } finally {
-                if (stream != null) {
-                    try {
-                        stream.close();
-                    } catch (IOException e) {
-                    }
+                return false;
+            }
+        };
+        
+        DirectoryStream<Path>  stream = null;
+        try {
+            stream = Files.newDirectoryStream(dir.toPath(), filter);
+            for(@SuppressWarnings("unused") Path sub : stream){
+                // Nothing to do, just iterating
+            }
+        } catch (IOException e) {
+            // too bad, give up
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
                 }
             }
         }
     }
 
+    /*
+     * The plugins found in a single directory, by name, together with
+     * the modification time the directory had when it was scanned
+     */
+    private static class DirPlugins {
+        static final DirPlugins EMPTY = new DirPlugins(0);
+
+        final long lastModified;
+        final Map<String, String> plugins = new LinkedHashMap<String, String>();
+
+        DirPlugins(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
 }
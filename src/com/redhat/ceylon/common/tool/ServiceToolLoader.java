@@ -1,21 +1,26 @@
 package com.redhat.ceylon.common.tool;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class ServiceToolLoader extends ToolLoader {
 
     private final Class<?> serviceClass;
-    private PathPlugins pathPlugins = new PathPlugins();
-    private List<String> toolClassNames;
+    private volatile State state = new State();
     
     public ServiceToolLoader(Class<?> serviceClass) {
         super();
@@ -65,21 +70,199 @@ public abstract class ServiceToolLoader extends ToolLoader {
     }
 
     @Override
-    protected synchronized Iterable<String> toolClassNames() {
-        if (toolClassNames == null) {
+    protected Iterable<String> toolClassNames() {
+        State s = state;
+        List<String> names = s.toolClassNames;
+        if (names == null) {
             List<String> result = new ArrayList<>();
-            Enumeration<URL> urls = getServiceMeta();
-            while (urls.hasMoreElements()) {
-                result.addAll(parseServiceInfo(urls.nextElement()));
+            result.addAll(getServiceClassNames(s));
+            result.addAll(getPathPlugins(s));
+            saveToolIndex(s);
+            names = Collections.unmodifiableList(result);
+            s.toolClassNames = names;
+        }
+        return names;
+    }
+
+    /**
+     * Looks in the service files first and only goes looking for a path
+     * plugin when there is no service tool with the given name, so
+     * built-in tools never need the plugin directories to be scanned.
+     */
+    @Override
+    protected String getToolClassName(String toolName) {
+        State s = state;
+        String className = getServiceToolNames(s).get(toolName);
+        if (className == null) {
+            className = findPathPlugin(s, toolName);
+        }
+        return className;
+    }
+
+    private Map<String, String> getServiceToolNames(State s) {
+        Map<String, String> names = s.serviceToolNames;
+        if (names == null) {
+            names = indexToolNames(getServiceClassNames(s));
+            saveToolIndex(s);
+            s.serviceToolNames = names;
+        }
+        return names;
+    }
+
+    private String findPathPlugin(State s, String toolName) {
+        Collection<String> plugins = s.pathPluginNames;
+        if (plugins == null) {
+            ToolIndex index = getToolIndex(s);
+            if (index != null) {
+                Set<String> indexed = getIndexedPathPlugins(s, index, false);
+                if (indexed != null) {
+                    s.pathPluginNames = indexed;
+                    plugins = indexed;
+                }
             }
-            result.addAll(getPathPlugins());
-            toolClassNames = Collections.unmodifiableList(result);
         }
-        return toolClassNames;
+        if (plugins == null) {
+            // Nothing is known about the plugins yet, only look
+            // as far as needed to find the one we want
+            String plugin = s.pathPlugins.findPathPlugin(toolName);
+            if (plugin == null || toolName.equals(getToolName(plugin))) {
+                return plugin;
+            }
+            // The loader uses its own naming scheme, do it the slow way
+            plugins = getPathPlugins(s);
+            saveToolIndex(s);
+        }
+        for (String plugin : plugins) {
+            if (toolName.equals(getToolName(plugin))) {
+                return plugin;
+            }
+        }
+        return null;
+    }
+
+    private List<String> getServiceClassNames(State s) {
+        List<String> names = s.serviceClassNames;
+        if (names == null) {
+            List<URL> urls = Collections.list(getServiceMeta());
+            ToolIndex index = getToolIndex(s);
+            names = (index != null) ? index.getServices(urls) : null;
+            if (names == null) {
+                List<String> result = new ArrayList<>();
+                for (URL url : urls) {
+                    result.addAll(parseServiceInfo(url));
+                }
+                if (index != null) {
+                    index.setServices(urls, result);
+                }
+                names = Collections.unmodifiableList(result);
+            }
+            s.serviceClassNames = names;
+        }
+        return names;
     }
 
     protected Set<String> getPathPlugins() {
-        return pathPlugins.getPathPlugins();
+        return getPathPlugins(state);
     }
 
+    private Set<String> getPathPlugins(State s) {
+        Set<String> plugins = s.pathPluginNames;
+        if (plugins == null) {
+            ToolIndex index = getToolIndex(s);
+            if (index != null) {
+                plugins = getIndexedPathPlugins(s, index, true);
+            } else {
+                plugins = s.pathPlugins.getPathPlugins();
+            }
+            s.pathPluginNames = plugins;
+        }
+        return plugins;
+    }
+
+    /**
+     * Returns the path plugins using the index for the shared plugin
+     * directories. The project plugin directories depend on the current
+     * directory, so they're always scanned instead of being indexed
+     * (which would make each project overwrite the index of the last).
+     * Returns null if the index is stale and it shouldn't be rebuilt.
+     */
+    private Set<String> getIndexedPathPlugins(State s, ToolIndex index, boolean rebuild) {
+        List<File> sharedDirs = s.pathPlugins.getSharedPluginDirs();
+        Collection<String> shared = index.getPathPlugins(sharedDirs);
+        if (shared == null) {
+            if (!rebuild) {
+                return null;
+            }
+            shared = s.pathPlugins.findPathPlugins(sharedDirs);
+            index.setPathPlugins(sharedDirs, shared);
+        }
+        Set<String> project = s.pathPlugins.findPathPlugins(s.pathPlugins.getProjectPluginDirs());
+        return Collections.unmodifiableSet(PathPlugins.merge(project, shared));
+    }
+
+    /**
+     * Also forgets the service and path plugin tools found so far,
+     * the persistent index (if any) is read again and revalidated.
+     */
+    @Override
+    public void refresh() {
+        // Our own state goes first, the tool names the super class
+        // finds after its refresh must come from the new state
+        state = new State();
+        super.refresh();
+    }
+
+    private ToolIndex getToolIndex(State s) {
+        ToolIndex index = s.toolIndex.get();
+        if (index == null) {
+            File indexFile = getToolIndexFile();
+            index = (indexFile != null) ? ToolIndex.read(indexFile, serviceClass.getName()) : NO_INDEX;
+            if (!s.toolIndex.compareAndSet(null, index)) {
+                // Some other thread was quicker, use the same index
+                index = s.toolIndex.get();
+            }
+        }
+        return (index != NO_INDEX) ? index : null;
+    }
+
+    private void saveToolIndex(State s) {
+        ToolIndex index = getToolIndex(s);
+        if (index != null && index.isModified()) {
+            File indexFile = getToolIndexFile();
+            try {
+                index.write(indexFile);
+            } catch (IOException e) {
+                // Not being able to update the index only makes the next start slower
+                Logger.getLogger(ServiceToolLoader.class.getName()).log(Level.WARNING, 
+                        "Could not update the tool index " + indexFile + ": " + e, e);
+            }
+        }
+    }
+
+    /**
+     * The file used to persist the index of tool class names between
+     * runs, or null if no index should be used (the default).
+     * The index is only consulted the first time the tool class names
+     * are needed and it is rewritten whenever it turned out to be stale.
+     */
+    protected File getToolIndexFile() {
+        return null;
+    }
+
+    private static final ToolIndex NO_INDEX = new ToolIndex("");
+
+    /*
+     * Everything found so far, replaced as a whole by refresh() so
+     * a lookup never mixes what it found before and after a refresh.
+     * The values are computed without holding a lock, at worst two
+     * threads racing will both compute the same immutable value.
+     */
+    private static final class State {
+        final PathPlugins pathPlugins = new PathPlugins();
+        final AtomicReference<ToolIndex> toolIndex = new AtomicReference<ToolIndex>();
+        volatile List<String> serviceClassNames;
+        volatile Map<String, String> serviceToolNames;
+        volatile Set<String> pathPluginNames;
+        volatile List<String> toolClassNames;
+    }
 }
@@ -0,0 +1,40 @@
+package com.redhat.ceylon.common.tool;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Turns setter {@link Method}s into {@link MethodHandle}s of type
+ * {@code (Object, Object)void} that can be invoked with
+ * {@code invokeExact()}, which unlike {@link Method#invoke} needs neither
+ * an argument array nor access checks on every call.
+ */
+final class SetterHandles {
+    
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    
+    private SetterHandles() {
+    }
+    
+    static MethodHandle unreflect(Method setter) {
+        try {
+            return MethodHandles.publicLookup().unreflect(setter).asType(SETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new ToolException(e);
+        }
+    }
+    
+    /**
+     * Looks up the public setter of the given name and parameter type,
+     * returning null if the class doesn't have one
+     */
+    static MethodHandle find(Class<?> cls, String name, Class<?> parameterType) {
+        try {
+            return unreflect(cls.getMethod(name, parameterType));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
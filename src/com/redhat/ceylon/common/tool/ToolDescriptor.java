@@ -0,0 +1,120 @@
+package com.redhat.ceylon.common.tool;
+
+import java.lang.reflect.Method;
+
+/**
+ * Implemented by the classes that {@link ToolDescriptorProcessor} generates
+ * at compile time for each tool class. A descriptor lists the annotated
+ * setters of its tool together with the values of their annotations, so
+ * that {@link ToolLoader} neither has to reflect over every public method
+ * of the tool class nor read their annotations to build the tool's model.
+ * <p>
+ * The descriptor for a tool class {@code com.example.FooTool} is called
+ * {@code com.example.FooTool_ToolDescriptor} (and for a nested tool class
+ * {@code com.example.FooTool$Bar} it is
+ * {@code com.example.FooTool$Bar_ToolDescriptor}).
+ */
+public interface ToolDescriptor {
+
+    /** The suffix added to the binary name of a tool class to get its descriptor's name */
+    public static final String SUFFIX = "_ToolDescriptor";
+
+    /**
+     * Returns the public methods of the tool class that are annotated
+     * with {@link Option @Option}, {@link OptionArgument @OptionArgument},
+     * {@link Argument @Argument}, {@link Subtool @Subtool} or
+     * {@link Rest @Rest}, including inherited ones.
+     */
+    public Setter[] getSetters();
+
+    /**
+     * An annotated setter of a tool and the values of its annotations.
+     * Only the annotations that are present get recorded, using the
+     * methods named after them.
+     */
+    public static final class Setter {
+        final String name;
+        final Class<?> parameterType;
+        Method method;
+
+        boolean option;
+        String optionLongName;
+        char optionShortName;
+
+        boolean optionArgument;
+        String optionArgumentLongName;
+        char optionArgumentShortName;
+        String optionArgumentName;
+
+        boolean argument;
+        String argumentName;
+        String argumentMultiplicity;
+        int argumentOrder;
+
+        boolean subtool;
+        String subtoolArgumentName;
+        int subtoolOrder;
+        Class<? extends Tool>[] subtoolClasses;
+
+        boolean rest;
+        boolean description;
+        boolean hidden;
+        Class<? extends ArgumentParser<?>> parsedBy;
+
+        public Setter(String name, Class<?> parameterType) {
+            this.name = name;
+            this.parameterType = parameterType;
+        }
+
+        public Setter option(String longName, char shortName) {
+            this.option = true;
+            this.optionLongName = longName;
+            this.optionShortName = shortName;
+            return this;
+        }
+
+        public Setter optionArgument(String longName, char shortName, String argumentName) {
+            this.optionArgument = true;
+            this.optionArgumentLongName = longName;
+            this.optionArgumentShortName = shortName;
+            this.optionArgumentName = argumentName;
+            return this;
+        }
+
+        public Setter argument(String argumentName, String multiplicity, int order) {
+            this.argument = true;
+            this.argumentName = argumentName;
+            this.argumentMultiplicity = multiplicity;
+            this.argumentOrder = order;
+            return this;
+        }
+
+        public Setter subtool(String argumentName, int order, Class<? extends Tool>[] classes) {
+            this.subtool = true;
+            this.subtoolArgumentName = argumentName;
+            this.subtoolOrder = order;
+            this.subtoolClasses = classes;
+            return this;
+        }
+
+        public Setter rest() {
+            this.rest = true;
+            return this;
+        }
+
+        public Setter description() {
+            this.description = true;
+            return this;
+        }
+
+        public Setter hidden() {
+            this.hidden = true;
+            return this;
+        }
+
+        public Setter parsedBy(Class<? extends ArgumentParser<?>> parserClass) {
+            this.parsedBy = parserClass;
+            return this;
+        }
+    }
+}
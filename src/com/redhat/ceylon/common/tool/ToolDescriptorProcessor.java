@@ -0,0 +1,320 @@
+package com.redhat.ceylon.common.tool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor which generates a {@link ToolDescriptor} for each
+ * concrete public {@link Tool} class being compiled.
+ * <p>
+ * While doing so it checks the annotated setters of the tool in the same way
+ * {@link ToolLoader} would, so mistakes that would otherwise only be
+ * reported as a {@link ModelException} when the tool gets loaded are
+ * reported as compilation errors instead.
+ * <p>
+ * The processor is not registered as a service, it has to be passed to
+ * javac explicitly using {@code -processor}.
+ */
+public class ToolDescriptorProcessor extends AbstractProcessor {
+
+    private static final String PKG = "com.redhat.ceylon.common.tool.";
+    private static final String TOOL = PKG + "Tool";
+    private static final String OPTION = PKG + "Option";
+    private static final String OPTION_ARGUMENT = PKG + "OptionArgument";
+    private static final String ARGUMENT = PKG + "Argument";
+    private static final String SUBTOOL = PKG + "Subtool";
+    private static final String REST = PKG + "Rest";
+    private static final String DESCRIPTION = PKG + "Description";
+    private static final String HIDDEN = PKG + "Hidden";
+    private static final String PARSED_BY = PKG + "ParsedBy";
+    private static final String DESCRIPTOR = PKG + "ToolDescriptor";
+    private static final String SETTER = DESCRIPTOR + ".Setter";
+    // Not ToolDescriptor.SUFFIX: the processor gets compiled on its own, 
+    // before the classes it describes, so it mustn't depend on them
+    private static final String SUFFIX = "_ToolDescriptor";
+
+    private static final Pattern SETTER_NAME = Pattern.compile("set[A-Z0-9].*");
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        TypeElement toolType = processingEnv.getElementUtils().getTypeElement(TOOL);
+        if (toolType == null) {
+            return false;
+        }
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(type, toolType.asType());
+        }
+        return false;
+    }
+
+    private void processType(TypeElement type, TypeMirror toolType) {
+        if (type.getKind() == ElementKind.CLASS
+                && type.getModifiers().contains(Modifier.PUBLIC)
+                && !type.getModifiers().contains(Modifier.ABSTRACT)
+                && processingEnv.getTypeUtils().isAssignable(type.asType(), toolType)) {
+            List<ExecutableElement> methods = getAnnotatedMethods(type);
+            if (checkMethods(methods)) {
+                writeDescriptor(type, methods);
+            }
+        }
+        for (TypeElement member : ElementFilter.typesIn(type.getEnclosedElements())) {
+            processType(member, toolType);
+        }
+    }
+
+    private List<ExecutableElement> getAnnotatedMethods(TypeElement type) {
+        List<ExecutableElement> result = new ArrayList<ExecutableElement>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (method.getModifiers().contains(Modifier.PUBLIC)
+                    && (has(method, OPTION)
+                            || has(method, OPTION_ARGUMENT)
+                            || has(method, ARGUMENT)
+                            || has(method, SUBTOOL)
+                            || has(method, REST))) {
+                result.add(method);
+            }
+        }
+        return result;
+    }
+
+    private boolean checkMethods(List<ExecutableElement> methods) {
+        boolean ok = true;
+        boolean seenRest = false;
+        for (ExecutableElement method : methods) {
+            boolean option = has(method, OPTION);
+            boolean optionArgument = has(method, OPTION_ARGUMENT);
+            boolean argument = has(method, ARGUMENT);
+            boolean subtool = has(method, SUBTOOL);
+            if (!isSetter(method)) {
+                ok = error(method, "Method " + method + " is annotated " + annotationNames(method) + " but is not a setter");
+                continue;
+            }
+            TypeMirror paramType = method.getParameters().get(0).asType();
+            if (has(method, REST)) {
+                if (seenRest) {
+                    ok = error(method, "Only one method may be annotated @Rest");
+                }
+                seenRest = true;
+            }
+            if (option && !optionArgument && paramType.getKind() != TypeKind.BOOLEAN) {
+                ok = error(method, "Method " + method + " is annotated with @Option but has a non-boolean parameter");
+            }
+            if (option && optionArgument && paramType.getKind().isPrimitive()) {
+                ok = error(method, "Method " + method + " is annotated with @OptionArgument and @Option has primitive parameter type");
+            }
+            if ((option || optionArgument) && (argument || subtool)) {
+                ok = error(method, method + " is annotated with both @Option/@OptionArgument and @Argument/@Subtool");
+            }
+            if (argument && subtool) {
+                ok = error(method, method + " is annotated with both @Argument and @Subtool");
+            }
+            if ((argument || subtool) && has(method, DESCRIPTION)) {
+                ok = error(method, "Method " + method + " is annotated with @Argument/@Subtool and @Description: " +
+                        "Arguments should be documented in the class-level @Description");
+            }
+            if ((argument || subtool) && has(method, HIDDEN)) {
+                ok = error(method, "Method " + method + " is annotated with @Argument/@Subtool and @Hidden: " +
+                        "You can't have @Hidden arguments");
+            }
+            if ((argument || optionArgument) && isRawList(paramType)) {
+                ok = error(method, "Method " + method + " is annotated with " + annotationNames(method) + " but the parameter type is a raw List");
+            }
+        }
+        return ok;
+    }
+
+    private void writeDescriptor(TypeElement type, List<ExecutableElement> methods) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = (pkgName.isEmpty() ? binaryName : binaryName.substring(pkgName.length() + 1)) + SUFFIX;
+        try {
+            Writer out = processingEnv.getFiler().createSourceFile(
+                    pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName, type).openWriter();
+            try {
+                if (!pkgName.isEmpty()) {
+                    out.write("package " + pkgName + ";\n\n");
+                }
+                out.write("/** Generated by " + getClass().getName() + " for {@link " + type.getQualifiedName() + "}, do not edit */\n");
+                out.write("public final class " + simpleName + " implements " + DESCRIPTOR + " {\n");
+                out.write("    @Override\n");
+                if (hasSubtool(methods)) {
+                    // Class arrays can only be created raw
+                    out.write("    @SuppressWarnings(\"unchecked\")\n");
+                }
+                out.write("    public " + SETTER + "[] getSetters() {\n");
+                out.write("        return new " + SETTER + "[] {\n");
+                for (ExecutableElement method : methods) {
+                    writeSetter(out, method);
+                }
+                out.write("        };\n");
+                out.write("    }\n");
+                out.write("}\n");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write tool descriptor: " + e.getMessage(), type);
+        }
+    }
+
+    private void writeSetter(Writer out, ExecutableElement method) throws IOException {
+        TypeMirror paramType = processingEnv.getTypeUtils().erasure(method.getParameters().get(0).asType());
+        out.write("            new " + SETTER + "(\"" + method.getSimpleName() + "\", " + paramType + ".class)");
+        writeAnnotation(out, method, OPTION, "option", "longName", "shortName");
+        writeAnnotation(out, method, OPTION_ARGUMENT, "optionArgument", "longName", "shortName", "argumentName");
+        writeAnnotation(out, method, ARGUMENT, "argument", "argumentName", "multiplicity", "order");
+        writeAnnotation(out, method, SUBTOOL, "subtool", "argumentName", "order", "classes");
+        writeAnnotation(out, method, REST, "rest");
+        writeAnnotation(out, method, DESCRIPTION, "description");
+        writeAnnotation(out, method, HIDDEN, "hidden");
+        writeAnnotation(out, method, PARSED_BY, "parsedBy", "value");
+        out.write(",\n");
+    }
+
+    /**
+     * Writes a call to the given {@link ToolDescriptor.Setter} method, 
+     * passing it the values of the given annotation elements, if the 
+     * method has that annotation
+     */
+    private void writeAnnotation(Writer out, ExecutableElement method, 
+            String annotationName, String setterMethod, String... elementNames) throws IOException {
+        AnnotationMirror mirror = get(method, annotationName);
+        if (mirror == null) {
+            return;
+        }
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values = 
+                processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+        StringBuilder sb = new StringBuilder();
+        for (String elementName : elementNames) {
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+                String literal = literal(entry.getValue().getValue());
+                if (entry.getKey().getSimpleName().contentEquals(elementName)
+                        && !literal.isEmpty()) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(literal);
+                }
+            }
+        }
+        out.write("\n                ." + setterMethod + "(" + sb + ")");
+    }
+
+    /**
+     * The Java source for an annotation element value. The only arrays 
+     * we record are {@code @Subtool(classes=...)}, so arrays are always 
+     * written as {@code Class} arrays.
+     */
+    private String literal(Object value) {
+        if (value instanceof TypeMirror) {
+            return processingEnv.getTypeUtils().erasure((TypeMirror)value) + ".class";
+        } else if (value instanceof List) {
+            StringBuilder sb = new StringBuilder("new java.lang.Class[] {");
+            boolean first = true;
+            for (Object element : (List<?>)value) {
+                sb.append(first ? " " : ", ");
+                sb.append(literal(((AnnotationValue)element).getValue()));
+                first = false;
+            }
+            return sb.append(" }").toString();
+        }
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    private static boolean hasSubtool(List<ExecutableElement> methods) {
+        for (ExecutableElement method : methods) {
+            if (has(method, SUBTOOL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSetter(ExecutableElement method) {
+        return SETTER_NAME.matcher(method.getSimpleName()).matches()
+                && method.getModifiers().contains(Modifier.PUBLIC)
+                && method.getReturnType().getKind() == TypeKind.VOID
+                && method.getParameters().size() == 1;
+    }
+
+    private boolean isRawList(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED
+                || !((DeclaredType)type).getTypeArguments().isEmpty()) {
+            return false;
+        }
+        TypeElement list = processingEnv.getElementUtils().getTypeElement(List.class.getName());
+        return processingEnv.getTypeUtils().isAssignable(type,
+                processingEnv.getTypeUtils().erasure(list.asType()));
+    }
+
+    private static boolean has(Element element, String annotationName) {
+        return get(element, annotationName) != null;
+    }
+
+    private static AnnotationMirror get(Element element, String annotationName) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annoType = (TypeElement)mirror.getAnnotationType().asElement();
+            if (annoType.getQualifiedName().contentEquals(annotationName)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static String annotationNames(Element element) {
+        Set<String> names = new HashSet<String>();
+        StringBuilder sb = new StringBuilder();
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            String name = mirror.getAnnotationType().asElement().getSimpleName().toString();
+            if (names.add(name)) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append('@').append(name);
+            }
+        }
+        return sb.toString();
+    }
+
+    private boolean error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return false;
+    }
+}
@@ -1,6 +1,6 @@
 package com.redhat.ceylon.common.tool;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
@@ -39,18 +39,16 @@ public class ToolFactory {
     private <T extends Tool> void setToolLoaderAndModel(ToolModel<T> toolModel, T tool) {
         if (toolModel instanceof AnnotatedToolModel) {
             AnnotatedToolModel<T> amodel = (AnnotatedToolModel<T>) toolModel;
+            invokeHook(amodel, amodel.getToolLoaderSetter(), tool, toolModel.getToolLoader());
+            invokeHook(amodel, amodel.getToolModelSetter(), tool, toolModel);
+        }
+    }
+    
+    private <T extends Tool> void invokeHook(AnnotatedToolModel<T> amodel, MethodHandle setter, T tool, Object value) {
+        if (setter != null) {
             try {
-                amodel.getToolClass().getMethod("setToolLoader", ToolLoader.class).invoke(tool, toolModel.getToolLoader());
-            } catch (NoSuchMethodException e) {
-                // Ignore
-            } catch (ReflectiveOperationException e) {
-                throw new ToolException("Could not instantitate tool " + amodel.getToolClass(), e);
-            }
-            try {
-                amodel.getToolClass().getMethod("setToolModel", ToolModel.class).invoke(tool, toolModel);
-            } catch (NoSuchMethodException e) {
-                // Ignore
-            } catch (ReflectiveOperationException e) {
+                setter.invokeExact((Object)tool, value);
+            } catch (Throwable e) {
                 throw new ToolException("Could not instantitate tool " + amodel.getToolClass(), e);
             }
         }
@@ -253,16 +251,11 @@ public class ToolFactory {
                     }
                 }
             }
-            try {
-                checkMultiplicities();
-                applyBindings();
-                handleRest();
-                assertAllRecognised();
-                invokeInitialize();
-            } catch (IllegalAccessException e) {
-                // Programming error 
-                throw new ToolException(e);
-            }
+            checkMultiplicities();
+            applyBindings();
+            handleRest();
+            assertAllRecognised();
+            invokeInitialize();
         }
         
         private <A> void processArgument(Binding<A> binding) {
@@ -336,18 +329,17 @@ public class ToolFactory {
         }
         
         private <A> void setValue(Binding<A> binding) {
+            Object value;
+            if (binding.argumentModel.isEnumSetSetter()) {
+                value = EnumSet.copyOf((List)binding.value);
+            } else {
+                value = binding.value;
+            }
+            MethodHandle setter = binding.argumentModel.getSetterHandle();
             try {
-                Object value;
-                if (binding.argumentModel.getSetter().getParameterTypes()[0].equals(EnumSet.class)) {
-                    value = EnumSet.copyOf((List)binding.value);
-                } else {
-                    value = binding.value;
-                }
-                binding.argumentModel.getSetter().invoke(tool, value);
-            } catch (IllegalAccessException e) {
-                throw new ToolException(e);
-            } catch (InvocationTargetException e) {
-                throw binding.invalid(e.getCause(), null);
+                setter.invokeExact((Object)tool, value);
+            } catch (Throwable e) {
+                throw binding.invalid(e, null);
             }
         }
 
@@ -362,12 +354,13 @@ public class ToolFactory {
             }
         }
 
-        private void handleRest() throws IllegalAccessException {
-            if (toolModel.getRest() != null) {
+        private void handleRest() {
+            MethodHandle restSetter = toolModel.getRestHandle();
+            if (restSetter != null) {
                 try {
-                    toolModel.getRest().invoke(tool, rest);
-                } catch (InvocationTargetException e) {
-                    throw new ToolInitializationException(toolModel, e.getCause());
+                    restSetter.invokeExact((Object)tool, (Object)rest);
+                } catch (Throwable e) {
+                    throw new ToolInitializationException(toolModel, e);
                 }
             } else {
                 for (String arg : rest) {
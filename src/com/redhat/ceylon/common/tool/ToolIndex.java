@@ -0,0 +1,305 @@
+package com.redhat.ceylon.common.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A persistent index of the tool class names found by a
+ * {@link ServiceToolLoader}, so that the service files on the classpath
+ * and the plugin directories don't have to be scanned on every start.
+ * <p>
+ * The index has two sections, each with its own fingerprint: the
+ * service class names, fingerprinted by the service file URLs and the
+ * modification time and size of the jars (or files) they live in,
+ * and the path plugins from the shared plugin directories (see
+ * {@link PathPlugins#getSharedPluginDirs()}), fingerprinted by the list
+ * of those directories and their modification times. A section whose fingerprint doesn't
+ * match the current state of the file system is considered stale and
+ * will be rebuilt by the loader.
+ * <p>
+ * Note that directory modification times only change when entries are
+ * added, removed or renamed, so making an existing file executable
+ * won't invalidate the path plugins section.
+ * <p>
+ * An index can be shared by several threads, each section is replaced
+ * as a whole together with its fingerprint.
+ */
+class ToolIndex {
+    private static final int MAGIC = 0x43544958; // "CTIX"
+    private static final int VERSION = 2;
+
+    private final String serviceName;
+    private volatile Section services;
+    private volatile Section plugins;
+    private volatile boolean modified;
+
+    ToolIndex(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Reads the index from the given file. If the file doesn't exist,
+     * can't be read or is for a different service an empty index
+     * is returned instead.
+     */
+    static ToolIndex read(File file, String serviceName) {
+        ToolIndex index = new ToolIndex(serviceName);
+        if (file.isFile()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() == MAGIC
+                            && in.readInt() == VERSION
+                            && serviceName.equals(in.readUTF())) {
+                        Fingerprint sp = Fingerprint.read(in);
+                        List<String> s = readStrings(in);
+                        Fingerprint pp = Fingerprint.read(in);
+                        List<String> p = readStrings(in);
+                        index.services = new Section(sp, s);
+                        index.plugins = new Section(pp, p);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // A corrupt or unreadable index is just an empty index
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to the given file. The index is first written to
+     * a temporary file which then replaces the destination, so concurrent
+     * readers never see a partially written index.
+     */
+    void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        Section services = this.services;
+        Section plugins = this.plugins;
+        modified = false;
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(serviceName);
+                Section.write(out, services);
+                Section.write(out, plugins);
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            modified = true;
+            throw e;
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Returns the indexed service class names if the index is still
+     * valid for the given service file URLs, or null otherwise
+     */
+    List<String> getServices(List<URL> urls) {
+        Section section = services;
+        if (section != null && section.print != null
+                && section.print.equals(Fingerprint.ofUrls(urls))) {
+            return section.names;
+        }
+        return null;
+    }
+
+    void setServices(List<URL> urls, List<String> classNames) {
+        Fingerprint print = Fingerprint.ofUrls(urls);
+        if (print != null) {
+            services = new Section(print, Collections.unmodifiableList(new ArrayList<String>(classNames)));
+            modified = true;
+        }
+    }
+
+    /**
+     * Returns the indexed path plugins if the index is still valid for
+     * the given plugin directories, or null otherwise
+     */
+    List<String> getPathPlugins(List<File> dirs) {
+        Section section = plugins;
+        if (section != null && section.print != null
+                && section.print.equals(Fingerprint.ofDirs(dirs))) {
+            return section.names;
+        }
+        return null;
+    }
+
+    void setPathPlugins(List<File> dirs, Collection<String> pathPlugins) {
+        plugins = new Section(Fingerprint.ofDirs(dirs), Collections.unmodifiableList(new ArrayList<String>(pathPlugins)));
+        modified = true;
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<String> result = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(in.readUTF());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        if (strings == null) {
+            strings = Collections.emptyList();
+        }
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    /*
+     * The names in one section of the index with their fingerprint
+     */
+    private static final class Section {
+        final Fingerprint print;
+        final List<String> names;
+
+        Section(Fingerprint print, List<String> names) {
+            this.print = print;
+            this.names = names;
+        }
+
+        static void write(DataOutputStream out, Section section) throws IOException {
+            Fingerprint.write(out, section != null ? section.print : null);
+            writeStrings(out, section != null ? section.names : null);
+        }
+    }
+
+    /*
+     * A list of paths together with the modification time and size
+     * of the file each of them points to
+     */
+    static class Fingerprint {
+        private final List<String> paths;
+        private final long[] stamps;
+
+        private Fingerprint(List<String> paths, long[] stamps) {
+            this.paths = paths;
+            this.stamps = stamps;
+        }
+
+        // Returns null if any of the URLs isn't backed by a local file
+        static Fingerprint ofUrls(List<URL> urls) {
+            List<String> paths = new ArrayList<String>(urls.size());
+            long[] stamps = new long[urls.size() * 2];
+            int i = 0;
+            for (URL url : urls) {
+                File file = backingFile(url);
+                if (file == null) {
+                    return null;
+                }
+                paths.add(url.toString());
+                stamps[i++] = file.lastModified();
+                stamps[i++] = file.length();
+            }
+            return new Fingerprint(paths, stamps);
+        }
+
+        static Fingerprint ofDirs(List<File> dirs) {
+            List<String> paths = new ArrayList<String>(dirs.size());
+            long[] stamps = new long[dirs.size() * 2];
+            int i = 0;
+            for (File dir : dirs) {
+                // Relative directories (from the PATH) aren't the same ones everywhere
+                paths.add(dir.getAbsolutePath());
+                stamps[i++] = dir.lastModified();
+                stamps[i++] = 0;
+            }
+            return new Fingerprint(paths, stamps);
+        }
+
+        private static File backingFile(URL url) {
+            String spec = url.toString();
+            if ("jar".equals(url.getProtocol())) {
+                int p = spec.indexOf("!/");
+                if (p < 0) {
+                    return null;
+                }
+                spec = spec.substring(4, p);
+            }
+            if (!spec.startsWith("file:")) {
+                return null;
+            }
+            try {
+                return new File(new URL(spec).toURI());
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        static Fingerprint read(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            if (n < 0) {
+                return null;
+            }
+            List<String> paths = new ArrayList<String>(n);
+            long[] stamps = new long[n * 2];
+            for (int i = 0; i < n; i++) {
+                paths.add(in.readUTF());
+                stamps[i * 2] = in.readLong();
+                stamps[i * 2 + 1] = in.readLong();
+            }
+            return new Fingerprint(paths, stamps);
+        }
+
+        static void write(DataOutputStream out, Fingerprint print) throws IOException {
+            if (print == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(print.paths.size());
+            for (int i = 0; i < print.paths.size(); i++) {
+                out.writeUTF(print.paths.get(i));
+                out.writeLong(print.stamps[i * 2]);
+                out.writeLong(print.stamps[i * 2 + 1]);
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint)obj;
+            return paths.equals(other.paths)
+                    && Arrays.equals(stamps, other.stamps);
+        }
+
+        @Override
+        public int hashCode() {
+            return paths.hashCode();
+        }
+    }
+}
@@ -8,16 +8,21 @@ import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
 
 import com.redhat.ceylon.common.OSUtil;
 import com.redhat.ceylon.common.tool.OptionModel.ArgumentType;
+import com.redhat.ceylon.common.tool.ToolDescriptor.Setter;
 
 /**
  * Responsible for locating a Class for a given tool name and constucting a 
@@ -29,9 +34,13 @@ public abstract class ToolLoader {
     public static final String SCRIPT_PREFIX = "SCRIPT:";
     public static final String PLUGIN_PREFIX = "PLUGIN:";
 
+    private static final Pattern SETTER_NAME = Pattern.compile("set[A-Z0-9].*");
+
     protected final ClassLoader loader;
 
-    private Map<String, ToolModel<? extends Tool>> toolModels = new HashMap<String, ToolModel<? extends Tool>>();
+    private volatile Cache cache = new Cache();
+    // The cache of the tool model the current thread is loading, if any
+    private final ThreadLocal<Cache> loadingCache = new ThreadLocal<Cache>();
     
     public ToolLoader() {
         this(ToolLoader.class.getClassLoader());
@@ -42,7 +51,10 @@ public abstract class ToolLoader {
     }
     
     protected <T extends Tool> Class<T> loadToolClass(final String toolName) {
-        String className = getToolClassName(toolName);
+        return loadToolClassNamed(getToolClassName(toolName));
+    }
+
+    private <T extends Tool> Class<T> loadToolClassNamed(String className) {
         if (className == null) {
             return null;
         }
@@ -55,21 +67,59 @@ public abstract class ToolLoader {
     }
 
     protected String getToolClassName(final String toolName) {
-        List<String> classNames = new ArrayList<>();
-        String className = null;
-        for (String cls : toolClassNames()) {
-            if (toolName.equals(getToolName(cls))) {
-                classNames.add(cls);
-            }
+        return getToolNameIndex().get(toolName);
+    }
+
+    /**
+     * Returns an immutable map from tool name to tool class name, built
+     * once from {@link #toolClassNames()}.
+     */
+    private Map<String, String> getToolNameIndex() {
+        Cache c = currentCache();
+        Map<String, String> index = c.toolNameIndex;
+        if (index == null) {
+            index = indexToolNames(toolClassNames());
+            c.toolNameIndex = index;
         }
-        if (classNames.isEmpty()) {
-            return null;
+        return index;
+    }
+
+    /**
+     * Returns an immutable map, sorted by tool name, from tool name to
+     * tool class name for the given class names. When several classes
+     * map to the same tool name the first one wins.
+     */
+    protected Map<String, String> indexToolNames(Iterable<String> classNames) {
+        TreeMap<String, String> result = new TreeMap<>();
+        for (String className : classNames) {
+            String toolName = getToolName(className);
+            if (toolName != null && !result.containsKey(toolName)) {
+                result.put(toolName, className);
+            }
         }
-        className = classNames.get(0);
-        return className;
+        return Collections.unmodifiableMap(result);
     }
 
+    /**
+     * Returns a class loader for the given module. Module class loaders are
+     * cached until the next {@link #refresh()} so that a long running
+     * process only creates one for each module.
+     */
     public ClassLoader loadModule(String name, String version) {
+        String key = name + "/" + version;
+        ConcurrentHashMap<String, ClassLoader> moduleLoaders = currentCache().moduleLoaders;
+        ClassLoader mcl = moduleLoaders.get(key);
+        if (mcl == null) {
+            mcl = createModuleLoader(name, version);
+            ClassLoader other = moduleLoaders.putIfAbsent(key, mcl);
+            if (other != null) {
+                mcl = other;
+            }
+        }
+        return mcl;
+    }
+
+    private ClassLoader createModuleLoader(String name, String version) {
         try {
             // Ok, now for something really crappy to force loading of the required module
             String loaderClassName;
@@ -96,14 +146,102 @@ public abstract class ToolLoader {
      * Returns a ToolModel given the name of the tool, or null if no such tool is 
      * know to this tool loader.
      */
-    public synchronized <T extends Tool> ToolModel<T> loadToolModel(String toolName) {
-        @SuppressWarnings("unchecked")
-        ToolModel<T> loadedModel = (ToolModel<T>) toolModels.get(toolName);
-        if(loadedModel == null){
-            loadedModel = loadToolModelMemoised(toolName);
-            toolModels.put(toolName, loadedModel);
+    @SuppressWarnings("unchecked")
+    public <T extends Tool> ToolModel<T> loadToolModel(final String toolName) {
+        final Cache c = cache;
+        ConcurrentHashMap<String, FutureTask<ToolModel<?>>> toolModels = c.toolModels;
+        FutureTask<ToolModel<?>> task = toolModels.get(toolName);
+        if (task == null) {
+            FutureTask<ToolModel<?>> newTask = new FutureTask<ToolModel<?>>(new Callable<ToolModel<?>>() {
+                @Override
+                public ToolModel<?> call() {
+                    // Look the tool up in the cache the model goes into,
+                    // even if there's a refresh while we're loading it
+                    Cache outer = loadingCache.get();
+                    loadingCache.set(c);
+                    try {
+                        return loadToolModelMemoised(toolName);
+                    } finally {
+                        if (outer != null) {
+                            loadingCache.set(outer);
+                        } else {
+                            loadingCache.remove();
+                        }
+                    }
+                }
+            });
+            task = toolModels.putIfAbsent(toolName, newTask);
+            if (task == null) {
+                // We won the race, so we're the ones loading it
+                task = newTask;
+                task.run();
+            }
         }
-        return loadedModel;
+        try {
+            return (ToolModel<T>)getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            // Don't remember failures, the next attempt might succeed
+            toolModels.remove(toolName, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new ToolException(cause);
+        }
+    }
+    
+    private static <V> V getUninterruptibly(FutureTask<V> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Forgets the model of the given tool, so that the next call to
+     * {@link #loadToolModel(String)} loads it again. Threads that are
+     * currently loading it are not affected.
+     */
+    public void evictToolModel(String toolName) {
+        cache.toolModels.remove(toolName);
+    }
+    
+    /**
+     * Forgets all the tool models, which tools exist and the module class
+     * loaders, so that changes to the available tools (for example plugins
+     * being installed or removed) are picked up.
+     */
+    public void refresh() {
+        cache = new Cache();
+    }
+    
+    private Cache currentCache() {
+        Cache c = loadingCache.get();
+        return (c != null) ? c : cache;
+    }
+    
+    /*
+     * The tool models, tool names and module class loaders found so far.
+     * Replaced as a whole by refresh(), so a lookup that was already
+     * going on can't put anything it found before the refresh into the
+     * new cache.
+     */
+    private static final class Cache {
+        final ConcurrentHashMap<String, FutureTask<ToolModel<?>>> toolModels = new ConcurrentHashMap<String, FutureTask<ToolModel<?>>>();
+        final ConcurrentHashMap<String, ClassLoader> moduleLoaders = new ConcurrentHashMap<String, ClassLoader>();
+        volatile Map<String, String> toolNameIndex;
     }
     
     private <T extends Tool> ToolModel<T> loadToolModelMemoised(String toolName) {
@@ -113,7 +251,7 @@ public abstract class ToolLoader {
         }else if(className != null && className.startsWith(PLUGIN_PREFIX)){
             return loadPluginTool(className, toolName);
         }else{
-            Class<T> toolClass = loadToolClass(toolName);
+            Class<T> toolClass = loadToolClassNamed(className);
             if (toolClass != null) {
                 final ToolModel<T> toolModel;
                 try {
@@ -155,8 +293,8 @@ public abstract class ToolLoader {
         // We use this Map because Java doesn't define the order that the 
         // declared methods will be returned in, but the order matters 
         TreeMap<Integer, ArgumentModel<?>> orderedArgumentModels = new TreeMap<Integer, ArgumentModel<?>>();
-        for (Method method : cls.getMethods()) {
-            addMethod(cls, model, method, orderedArgumentModels);
+        for (Setter setter : getSetters(cls)) {
+            addMethod(cls, model, setter, orderedArgumentModels);
         }
         
         Entry<Integer, ArgumentModel<?>> last = orderedArgumentModels.lastEntry();
@@ -173,20 +311,135 @@ public abstract class ToolLoader {
         }
     }
 
-    private <T extends Tool> ArgumentParser<?> getArgumentParser(Method setter, Class<?> setterType, boolean isSimpleType) {
-        Subtool subtool = setter.getAnnotation(Subtool.class);
-        ParsedBy pf = setter.getAnnotation(ParsedBy.class);
+    /**
+     * Returns the annotated setters of the given tool class as listed by
+     * its generated {@link ToolDescriptor}, or as found by reading the 
+     * annotations of all its public methods when there is no (usable) 
+     * descriptor
+     */
+    private List<Setter> getSetters(Class<?> cls) {
+        try {
+            Class<?> descriptorClass = Class.forName(cls.getName() + ToolDescriptor.SUFFIX, true, cls.getClassLoader());
+            ToolDescriptor descriptor = (ToolDescriptor)descriptorClass.getDeclaredConstructor().newInstance();
+            Setter[] setters = descriptor.getSetters();
+            // The tool class could have been recompiled without the 
+            // processor, leaving a descriptor that no longer matches it
+            if (setters.length == countAnnotatedMethods(cls)) {
+                List<Setter> result = new ArrayList<Setter>(setters.length);
+                for (Setter setter : setters) {
+                    setter.method = cls.getMethod(setter.name, setter.parameterType);
+                    if (!isDescribedBy(setter.method, setter)) {
+                        break;
+                    }
+                    result.add(setter);
+                }
+                if (result.size() == setters.length) {
+                    return result;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // The tool wasn't compiled with the ToolDescriptorProcessor
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            // The descriptor is out of date, ignore it
+        }
+        List<Setter> result = new ArrayList<Setter>();
+        for (Method method : cls.getMethods()) {
+            Setter setter = describe(method);
+            if (setter != null) {
+                result.add(setter);
+            }
+        }
+        return result;
+    }
+    
+    private static int countAnnotatedMethods(Class<?> cls) {
+        int count = 0;
+        for (Method method : cls.getMethods()) {
+            if (!method.isBridge()
+                    && (method.isAnnotationPresent(Option.class)
+                            || method.isAnnotationPresent(OptionArgument.class)
+                            || method.isAnnotationPresent(Argument.class)
+                            || method.isAnnotationPresent(Subtool.class)
+                            || method.isAnnotationPresent(Rest.class))) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Whether the given method has the annotations the given descriptor 
+     * {@link Setter} says it has
+     */
+    private static boolean isDescribedBy(Method method, Setter setter) {
+        return method.isAnnotationPresent(Option.class) == setter.option
+                && method.isAnnotationPresent(OptionArgument.class) == setter.optionArgument
+                && method.isAnnotationPresent(Argument.class) == setter.argument
+                && method.isAnnotationPresent(Subtool.class) == setter.subtool
+                && method.isAnnotationPresent(Rest.class) == setter.rest
+                && method.isAnnotationPresent(Description.class) == setter.description
+                && method.isAnnotationPresent(Hidden.class) == setter.hidden
+                && method.isAnnotationPresent(ParsedBy.class) == (setter.parsedBy != null);
+    }
+    
+    /**
+     * Reads the annotations of the given method into a {@link Setter}, 
+     * returning null if it has none of the annotations we're interested in
+     */
+    private static Setter describe(Method method) {
+        Option option = method.getAnnotation(Option.class);
+        OptionArgument optionArgument = method.getAnnotation(OptionArgument.class);
+        Argument argument = method.getAnnotation(Argument.class);
+        Subtool subtool = method.getAnnotation(Subtool.class);
+        Rest rest = method.getAnnotation(Rest.class);
+        if (option == null && optionArgument == null && argument == null
+                && subtool == null && rest == null) {
+            return null;
+        }
+        Setter setter = new Setter(method.getName(), 
+                method.getParameterTypes().length == 1 ? method.getParameterTypes()[0] : null);
+        setter.method = method;
+        if (option != null) {
+            setter.option(option.longName(), option.shortName());
+        }
+        if (optionArgument != null) {
+            setter.optionArgument(optionArgument.longName(), optionArgument.shortName(), optionArgument.argumentName());
+        }
+        if (argument != null) {
+            setter.argument(argument.argumentName(), argument.multiplicity(), argument.order());
+        }
         if (subtool != null) {
-            if (subtool.classes().length > 0) {
-                if (pf != null) {
+            setter.subtool(subtool.argumentName(), subtool.order(), subtool.classes());
+        }
+        if (rest != null) {
+            setter.rest();
+        }
+        if (method.getAnnotation(Description.class) != null) {
+            setter.description();
+        }
+        if (method.getAnnotation(Hidden.class) != null) {
+            setter.hidden();
+        }
+        ParsedBy parsedBy = method.getAnnotation(ParsedBy.class);
+        if (parsedBy != null) {
+            setter.parsedBy(parsedBy.value());
+        }
+        return setter;
+    }
+
+    private <T extends Tool> ArgumentParser<?> getArgumentParser(Setter s, Class<?> setterType, boolean isSimpleType) {
+        final Method setter = s.method;
+        if (s.subtool) {
+            if (s.subtoolClasses.length > 0) {
+                if (s.parsedBy != null) {
                     throw new ModelException(setter + " annotated with both @Subtool(classes=...) and @ParsedBy");
                 }
-                return new ToolArgumentParser(MapToolLoader.fromClassNames(subtool.classes()));
+                return new ToolArgumentParser(MapToolLoader.fromClassNames(s.subtoolClasses));
             }
         }
-        if (pf != null) {
+        if (s.parsedBy != null) {
             try {
-                return pf.value().newInstance();
+                return s.parsedBy.newInstance();
             } catch (RuntimeException e) {
                 throw e;
             } catch (Exception e) {
@@ -197,9 +450,9 @@ public abstract class ToolLoader {
     }
     
     private <T extends Tool, A> void addMethod(Class<T> cls, ToolModel<T> model,
-            Method method, Map<Integer, ArgumentModel<?>> orderedArgumentModels) {
-        final Rest rest = method.getAnnotation(Rest.class);
-        if (rest != null) {
+            Setter setter, Map<Integer, ArgumentModel<?>> orderedArgumentModels) {
+        final Method method = setter.method;
+        if (setter.rest) {
             if (!isSetter(method)) {
                 throw new ModelException("Method " + method + " is annotated @Rest but is not a setter");
             }
@@ -209,10 +462,10 @@ public abstract class ToolLoader {
             model.setRest(method);
         }
         
-        OptionModel<Boolean> optionModel = buildOption(model, method);
-        OptionModel<A> optionArgumentModel = buildOptionArgument(model, method);
-        ArgumentModel<A> argumentModel = buildArgument(method, orderedArgumentModels);
-        SubtoolModel<Tool> subtoolModel = buildSubtool(method, orderedArgumentModels);
+        OptionModel<Boolean> optionModel = buildOption(model, setter);
+        OptionModel<A> optionArgumentModel = buildOptionArgument(model, setter);
+        ArgumentModel<A> argumentModel = buildArgument(setter, orderedArgumentModels);
+        SubtoolModel<Tool> subtoolModel = buildSubtool(setter, orderedArgumentModels);
         if (optionModel!= null) {
             if (argumentModel != null || subtoolModel != null) {
                 throw new ModelException(method + " is annotated with both @Option and @Argument/@Subtool");
@@ -247,12 +500,12 @@ public abstract class ToolLoader {
         }
     }
 
-    private ArgumentModel<Boolean> buildPureOption(ToolModel<?> toolModel, Method method) {
+    private ArgumentModel<Boolean> buildPureOption(ToolModel<?> toolModel, Setter setter) {
         ArgumentModel<Boolean> argumentModel;
         argumentModel = new ArgumentModel<Boolean>();
-        argumentModel.setParser((ArgumentParser<Boolean>)getArgumentParser(method, boolean.class, true));
+        argumentModel.setParser((ArgumentParser<Boolean>)getArgumentParser(setter, boolean.class, true));
         argumentModel.setToolModel(toolModel);
-        argumentModel.setSetter(method);
+        argumentModel.setSetter(setter.method);
         argumentModel.setType(boolean.class);
         argumentModel.setMultiplicity(Multiplicity._0_OR_1);
         return argumentModel;
@@ -286,12 +539,8 @@ public abstract class ToolLoader {
         
     }
 
-    private boolean hasDescription(Method setter) {
-        return setter.getAnnotation(Description.class) != null;
-    }
-    
     private boolean isSetter(Method method) {
-        return method.getName().matches("set[A-Z0-9].*")
+        return SETTER_NAME.matcher(method.getName()).matches()
                 && Modifier.isPublic(method.getModifiers())
                 && method.getReturnType().equals(void.class)
                 && method.getParameterTypes().length == 1;
@@ -340,11 +589,11 @@ public abstract class ToolLoader {
         return name;
     }
 
-    private OptionModel<Boolean> buildOption(ToolModel<?> toolModel, final Method setter) {
-        Option option = setter.getAnnotation(Option.class);
-        if (option == null || setter.getAnnotation(OptionArgument.class) != null) {
+    private OptionModel<Boolean> buildOption(ToolModel<?> toolModel, final Setter s) {
+        if (!s.option || s.optionArgument) {
             return null;
         }
+        final Method setter = s.method;
         if (!isSetter(setter)) {
             throw new ModelException("Method " + setter + " is annotated with @Option but is not a setter");
         }
@@ -352,49 +601,48 @@ public abstract class ToolLoader {
             throw new ModelException("Method " + setter + " is annotated with @Option but has a non-boolean parameter");
         }
         OptionModel<Boolean> optionModel = new OptionModel<Boolean>();
-        optionModel.setLongName(getOptionName(option.longName(), setter));
-        char shortName = option.shortName();
+        optionModel.setLongName(getOptionName(s.optionLongName, setter));
+        char shortName = s.optionShortName;
         if (shortName != Option.NO_SHORT) {
             optionModel.setShortName(shortName);
         }
         optionModel.setArgumentType(OptionModel.ArgumentType.NOT_ALLOWED);
-        optionModel.setArgument(buildPureOption(toolModel, setter));
+        optionModel.setArgument(buildPureOption(toolModel, s));
         optionModel.getArgument().setOption(optionModel);
         return optionModel;
     }
 
-    private <A> OptionModel<A> buildOptionArgument(ToolModel<?> toolModel, final Method setter) {
-        OptionArgument optionArgument = setter.getAnnotation(OptionArgument.class);
-        if (optionArgument == null) {
+    private <A> OptionModel<A> buildOptionArgument(ToolModel<?> toolModel, final Setter s) {
+        if (!s.optionArgument) {
             return null;
         }
+        final Method setter = s.method;
         if (!isSetter(setter)) {
             throw new ModelException("Method " + setter + " is annotated with @OptionArgument but is not a setter");
         }
-        Option option = setter.getAnnotation(Option.class);
-        boolean argumentOptional = option != null;
+        boolean argumentOptional = s.option;
         if (argumentOptional) {
             if (setter.getParameterTypes()[0].isPrimitive()) {
                 throw new ModelException("Method " + setter + " is annotated with @OptionArgument and @Option has primitive parameter type");
             }
-            if (optionArgument.shortName() != option.shortName() && optionArgument.shortName() != OptionArgument.NO_SHORT) {
+            if (s.optionArgumentShortName != s.optionShortName && s.optionArgumentShortName != OptionArgument.NO_SHORT) {
                 throw new ModelException("Method " + setter + " is annotated with @OptionArgument and @Option, but their shortName()s differ");
             }
-            if (!optionArgument.longName().equals(option.longName())) {
+            if (!s.optionArgumentLongName.equals(s.optionLongName)) {
                 throw new ModelException("Method " + setter + " is annotated with @OptionArgument and @Option, but their longName()s differ");
             }
         }
         OptionModel<A> optionModel = new OptionModel<A>();
         
-        optionModel.setLongName(getOptionName(optionArgument.longName(), setter));
-        char shortName = optionArgument.shortName();
+        optionModel.setLongName(getOptionName(s.optionArgumentLongName, setter));
+        char shortName = s.optionArgumentShortName;
         if (shortName != OptionArgument.NO_SHORT) {
             if (argumentOptional) {
                 throw new ModelException("Method " + setter + " is annotated with @OptionArgument and @Option, but in that case a shortName is only allowed on @Option");
             }
             optionModel.setShortName(shortName);
         } else if (argumentOptional) {
-            shortName = option.shortName();
+            shortName = s.optionShortName;
             if (shortName != Option.NO_SHORT) {
                 optionModel.setShortName(shortName);
             }
@@ -402,11 +650,11 @@ public abstract class ToolLoader {
         ArgumentModel<A> argumentModel = new ArgumentModel<A>();
         
         Class<A> argumentType = (Class<A>)getSimpleTypeOrCollectionType(setter, OptionArgument.class);
-        argumentModel.setParser((ArgumentParser<A>)getArgumentParser(setter, argumentType, isSimpleType(setter)));
+        argumentModel.setParser((ArgumentParser<A>)getArgumentParser(s, argumentType, isSimpleType(setter)));
         argumentModel.setToolModel(toolModel);
         argumentModel.setType(argumentType);
         argumentModel.setMultiplicity(isSimpleType(setter) ? Multiplicity._0_OR_1 : Multiplicity._0_OR_MORE);
-        argumentModel.setName(optionArgument.argumentName());
+        argumentModel.setName(s.optionArgumentName);
         argumentModel.setSetter(setter);
         optionModel.setArgumentType(argumentOptional ? ArgumentType.OPTIONAL : ArgumentType.REQUIRED);
         optionModel.setArgument(argumentModel);
@@ -415,50 +663,50 @@ public abstract class ToolLoader {
     }
     
     private <T extends Tool, A> ArgumentModel<A> buildArgument(
-            final Method setter, Map<Integer, ArgumentModel<?>> orderedArgumentModels) {
-        Argument argument = setter.getAnnotation(Argument.class);
-        if (argument == null) {
+            final Setter s, Map<Integer, ArgumentModel<?>> orderedArgumentModels) {
+        if (!s.argument) {
             return null;
         }
+        final Method setter = s.method;
         if (!isSetter(setter)) {
             throw new ModelException("Method " + setter + " is annotated with @Argument but is not a setter");
         }
-        if (hasDescription(setter)) {
+        if (s.description) {
             throw new ModelException(
                     "Method " + setter + " is annotated with @Argument and @Description: " +
                     "Arguments should be documented in the class-level @Description");
         }
-        if (isHidden(setter)) {
+        if (s.hidden) {
             throw new ModelException(
                     "Method " + setter + " is annotated with @Argument and @Hidden: " +
                     "You can't have @Hidden arguments");
         }
         ArgumentModel<A> argumentModel = new ArgumentModel<A>();
-        Multiplicity multiplicity = Multiplicity.fromString(argument.multiplicity());
-        String argumentName = argument.argumentName();
-        int order = argument.order();
+        Multiplicity multiplicity = Multiplicity.fromString(s.argumentMultiplicity);
+        String argumentName = s.argumentName;
+        int order = s.argumentOrder;
         Class<A> argumentType = (Class<A>)getSimpleTypeOrCollectionType(setter, Argument.class);
         
-        populateArgumentModel(setter, orderedArgumentModels, argumentModel,
+        populateArgumentModel(s, orderedArgumentModels, argumentModel,
                 argumentType, multiplicity, argumentName, order);
         return argumentModel;
     }
     
     private <T extends Tool, A, X extends Tool> SubtoolModel<X> buildSubtool(
-            final Method setter, Map<Integer, ArgumentModel<?>> orderedArgumentModels) {
-        Subtool argument = setter.getAnnotation(Subtool.class);
-        if (argument == null) {
+            final Setter s, Map<Integer, ArgumentModel<?>> orderedArgumentModels) {
+        if (!s.subtool) {
             return null;
         }
+        final Method setter = s.method;
         if (!isSetter(setter)) {
             throw new ModelException("Method " + setter + " is annotated with @Subtool but is not a setter");
         }
-        if (hasDescription(setter)) {
+        if (s.description) {
             throw new ModelException(
                     "Method " + setter + " is annotated with @Subtool and @Description: " +
                     "Subtools should be documented in the class-level @Description");
         }
-        if (isHidden(setter)) {
+        if (s.hidden) {
             throw new ModelException(
                     "Method " + setter + " is annotated with @Subtool and @Hidden: " +
                     "You can't have @Hidden arguments");
@@ -466,15 +714,15 @@ public abstract class ToolLoader {
         SubtoolModel<X> argumentModel = new SubtoolModel<X>();
         Class<X> argumentType = (Class<X>)setter.getParameterTypes()[0];
         Multiplicity multiplicity = Multiplicity._1;
-        String argumentName = argument.argumentName();
-        int order = argument.order();
+        String argumentName = s.subtoolArgumentName;
+        int order = s.subtoolOrder;
         
-        populateArgumentModel(setter, orderedArgumentModels, argumentModel,
+        populateArgumentModel(s, orderedArgumentModels, argumentModel,
                 argumentType, multiplicity, argumentName, order);
         return argumentModel;
     }
 
-    private <A> void populateArgumentModel(final Method setter,
+    private <A> void populateArgumentModel(final Setter setter,
             Map<Integer, ArgumentModel<?>> orderedArgumentModels,
             ArgumentModel<A> argumentModel, Class<A> argumentType,
             Multiplicity multiplicity, String argumentName, int order) {
@@ -487,7 +735,7 @@ public abstract class ToolLoader {
             throw new ModelException("Unable to parse arguments of " + argumentModel.getType());
         }
         argumentModel.setParser(parser);
-        argumentModel.setSetter(setter);
+        argumentModel.setSetter(setter.method);
         
         final ArgumentModel<?> clash = orderedArgumentModels.put(order, argumentModel);
         if (clash != null) {
@@ -495,10 +743,6 @@ public abstract class ToolLoader {
         }
     }
 
-    private boolean isHidden(final Method setter) {
-        return setter.getAnnotation(Hidden.class) != null;
-    }
-
     private boolean isSimpleType(final Method setter) {
         Type t = setter.getGenericParameterTypes()[0];
         return t instanceof Class;
@@ -542,11 +786,7 @@ public abstract class ToolLoader {
      * Returns an iterable of all the tools names known to this tool loader.
      */
     public Iterable<String> getToolNames() {
-        TreeSet<String> result = new TreeSet<>();
-        for (String className : toolClassNames()) {
-            result.add(getToolName(className));
-        }
-        return result;
+        return getToolNameIndex().keySet();
     }
     
     static interface Handler<T> {
@@ -563,8 +803,7 @@ public abstract class ToolLoader {
      */
     public List<String> typo(final String badlySpelledCommand) {
         List<String> result = new ArrayList<>();
-        for (String className : toolClassNames()) {
-            String toolName = getToolName(className);
+        for (String toolName : getToolNameIndex().keySet()) {
             if (levenshteinDistance(toolName, badlySpelledCommand) < 3) {
                 if (loadToolModel(toolName).isPorcelain()) {
                     result.add(toolName);
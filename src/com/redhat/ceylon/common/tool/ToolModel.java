@@ -1,5 +1,6 @@
 package com.redhat.ceylon.common.tool;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -22,6 +23,7 @@ public abstract class ToolModel<T extends Tool> {
     private Map<Character, OptionModel<?>> optionsByShort = new HashMap<>(1);
     private List<ArgumentModel<?>> arguments = new ArrayList<>(1);
     private Method rest;
+    private volatile MethodHandle restHandle;
     private SubtoolModel<?> subtoolModel;
     private ToolModel<?> parentTool;
 
@@ -94,12 +96,29 @@ public abstract class ToolModel<T extends Tool> {
     
     public void setRest(Method method) {
         this.rest = method;
+        this.restHandle = null;
     }
     
     public Method getRest() {
         return rest;
     }
     
+    /**
+     * The {@link #getRest() @Rest setter} as a {@code (Object, Object)void}
+     * method handle, or null if there's no such setter
+     */
+    MethodHandle getRestHandle() {
+        MethodHandle handle = restHandle;
+        if (handle == null) {
+            Method method = getRest();
+            if (method != null) {
+                handle = SetterHandles.unreflect(method);
+                restHandle = handle;
+            }
+        }
+        return handle;
+    }
+    
     public boolean isTopLevel() {
         return getName().isEmpty();
     }
@@ -0,0 +1,296 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.common.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.redhat.ceylon.common.config.CeylonConfig;
+import com.redhat.ceylon.common.tool.Argument;
+import com.redhat.ceylon.common.tool.CeylonBaseTool;
+import com.redhat.ceylon.common.tool.Description;
+import com.redhat.ceylon.common.tool.OptionArgument;
+import com.redhat.ceylon.common.tool.RemainingSections;
+import com.redhat.ceylon.common.tool.Summary;
+import com.redhat.ceylon.common.tool.ToolError;
+import com.redhat.ceylon.common.tool.ToolFactory;
+import com.redhat.ceylon.common.tool.ToolLoader;
+import com.redhat.ceylon.common.tool.ToolUsageError;
+
+@Summary("Runs a file of ceylon commands in a single process")
+@Description(
+"Runs each of the commands in `<file>` as if it had been passed to `ceylon`, " +
+"but all in the same process, so the JVM is only started once and " +
+"the tools are only loaded once.\n\n" +
+"Each line holds a single command, optionally starting with `ceylon`, " +
+"whose arguments are quoted in the same way as in `@file` arguments. " +
+"Lines starting with `#` are comments. Blank lines separate the file " +
+"into stages: all the commands of a stage have completed before the " +
+"commands of the next stage are started.\n\n" +
+"When a command fails the remaining commands are still run; the exit " +
+"status of each failed command is reported at the end and the batch " +
+"itself fails."
+)
+@RemainingSections(
+"## EXAMPLE\n" +
+"\n" +
+"Given a file `build.cmds` containing\n" +
+"\n" +
+"    ceylon compile com.example.foo\n" +
+"    ceylon compile com.example.bar\n" +
+"\n" +
+"    ceylon test com.example.foo\n" +
+"    ceylon test com.example.bar\n" +
+"\n" +
+"the following would compile both modules at the same time and then " +
+"run both their tests at the same time:\n" +
+"\n" +
+"    ceylon batch --jobs=2 build.cmds"
+)
+public class CeylonBatchTool extends CeylonBaseTool {
+    
+    private File file;
+    private int jobs = 1;
+    private ToolLoader toolLoader;
+    private ToolFactory toolFactory;
+    
+    @Argument(argumentName="file", multiplicity="1")
+    public void setFile(File file) {
+        this.file = file;
+    }
+    
+    @OptionArgument(argumentName="n")
+    @Description("The number of commands of a stage that may run at the same time. " +
+            "The output of each command is still shown in the order the commands " +
+            "appear in the file. (default: `1`)")
+    public void setJobs(int jobs) {
+        this.jobs = jobs;
+    }
+    
+    @Override
+    public void initialize(CeylonTool mainTool) {
+        toolLoader = mainTool.getPluginLoader();
+        toolFactory = mainTool.getPluginFactory();
+        if (jobs < 1) {
+            throw new ToolUsageError("--jobs must be at least 1");
+        }
+    }
+    
+    @Override
+    public void run() throws Exception {
+        List<List<Command>> stages = readCommands(applyCwd(file));
+        List<Command> failed = new ArrayList<Command>();
+        ExecutorService pool = (jobs > 1) ? newPool(jobs) : null;
+        try {
+            for (List<Command> stage : stages) {
+                if (pool == null) {
+                    for (Command command : stage) {
+                        command.exit = runCommand(command.args);
+                        if (command.exit != CeylonTool.SC_OK) {
+                            failed.add(command);
+                        }
+                    }
+                } else {
+                    runStage(pool, stage, failed);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        if (!failed.isEmpty()) {
+            for (Command command : failed) {
+                System.err.println(file.getName() + ":" + command.line 
+                        + ": exit status " + command.exit + ": " + command.text);
+            }
+            throw new BatchFailedError(failed.size() + " of " + count(stages) + " commands failed");
+        }
+    }
+    
+    private void runStage(ExecutorService pool, List<Command> stage, List<Command> failed) 
+            throws InterruptedException {
+        final PerThreadPrintStream out = PerThreadPrintStream.installOut();
+        final PerThreadPrintStream err = PerThreadPrintStream.installErr();
+        final CeylonConfig config = CeylonConfig.get();
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(stage.size());
+        for (final Command command : stage) {
+            futures.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    // Both streams go to the same buffer to keep
+                    // the command's output in the right order
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    PrintStream ps = new PrintStream(buffer, true);
+                    PrintStream oldOut = out.redirect(ps);
+                    PrintStream oldErr = err.redirect(ps);
+                    CeylonConfig oldConfig = CeylonConfig.set(config);
+                    try {
+                        command.exit = runCommand(command.args);
+                    } finally {
+                        CeylonConfig.set(oldConfig);
+                        out.redirect(oldOut);
+                        err.redirect(oldErr);
+                    }
+                    ps.flush();
+                    return buffer.toByteArray();
+                }
+            }));
+        }
+        for (int i = 0; i < stage.size(); i++) {
+            Command command = stage.get(i);
+            try {
+                byte[] output = futures.get(i).get();
+                System.out.write(output, 0, output.length);
+                System.out.flush();
+            } catch (ExecutionException e) {
+                // runCommand() handles all exceptions, so this is a bug
+                e.getCause().printStackTrace();
+                command.exit = CeylonTool.SC_TOOL_BUG;
+            }
+            if (command.exit != CeylonTool.SC_OK) {
+                failed.add(command);
+            }
+        }
+    }
+    
+    private int runCommand(String[] args) {
+        CeylonTool tool = new CeylonTool();
+        tool.setToolLoader(toolLoader);
+        tool.setPluginFactory(toolFactory);
+        if (getCwd() != null) {
+            tool.setDefaultCwd(getCwd());
+        }
+        try {
+            return tool.bootstrap(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return CeylonTool.SC_TOOL_EXCEPTION;
+        }
+    }
+    
+    private List<List<Command>> readCommands(File file) throws IOException {
+        List<List<Command>> stages = new ArrayList<List<Command>>();
+        List<Command> stage = new ArrayList<Command>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String text;
+            int line = 0;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                text = text.trim();
+                if (text.isEmpty()) {
+                    if (!stage.isEmpty()) {
+                        stages.add(stage);
+                        stage = new ArrayList<Command>();
+                    }
+                    continue;
+                }
+                String[] args = CommandLine.tokenize(text);
+                if (args.length > 0 && args[0].equals("ceylon")) {
+                    args = Arrays.copyOfRange(args, 1, args.length);
+                }
+                if (args.length > 0) {
+                    // Relative @files are relative to the batch's working directory
+                    args = CommandLine.parse(resolveCmdFiles(args));
+                    stage.add(new Command(line, text, args));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!stage.isEmpty()) {
+            stages.add(stage);
+        }
+        return stages;
+    }
+    
+    private String[] resolveCmdFiles(String[] args) {
+        if (getCwd() == null) {
+            return args;
+        }
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.length() > 1 && arg.charAt(0) == '@' && arg.charAt(1) != '@') {
+                args[i] = "@" + applyCwd(new File(arg.substring(1))).getPath();
+            }
+        }
+        return args;
+    }
+    
+    private static int count(List<List<Command>> stages) {
+        int result = 0;
+        for (List<Command> stage : stages) {
+            result += stage.size();
+        }
+        return result;
+    }
+    
+    private static ExecutorService newPool(int jobs) {
+        return Executors.newFixedThreadPool(jobs, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ceylon-batch-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /*
+     * A single line of the batch file
+     */
+    private static class Command {
+        final int line;
+        final String text;
+        final String[] args;
+        volatile int exit;
+        
+        Command(int line, String text, String[] args) {
+            this.line = line;
+            this.text = text;
+            this.args = args;
+        }
+    }
+    
+    /**
+     * Thrown when some of the commands in the batch file failed, after
+     * they have been reported
+     */
+    public static class BatchFailedError extends ToolError {
+        public BatchFailedError(String message) {
+            super(message);
+        }
+    }
+}
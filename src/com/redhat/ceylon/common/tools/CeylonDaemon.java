@@ -0,0 +1,486 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.common.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.config.CeylonConfig;
+import com.redhat.ceylon.common.tool.ToolFactory;
+import com.redhat.ceylon.common.tool.ToolLoader;
+import com.redhat.ceylon.common.tool.Tools;
+
+/**
+ * Runs {@code ceylon} commands on behalf of other processes, so they
+ * don't each have to pay for starting a JVM, finding the tools and
+ * loading their models.
+ * <p>
+ * {@code ceylon --daemon} starts the daemon, which listens on a loopback
+ * port and writes that port, together with a random secret, to
+ * {@code ~/.ceylon/daemon} (readable by the owner only). When the
+ * {@code CEYLON_DAEMON} environment variable is set {@code ceylon}
+ * forwards its arguments, working directory and environment to the
+ * daemon and streams back the output and the exit code, while the
+ * command's reads from {@code System.in} are served from the client's
+ * standard input. If no daemon can be reached the command simply runs
+ * in-process.
+ * <p>
+ * All commands share the daemon's tool loader and tool factory, so tool
+ * models and module class loaders stay loaded between commands. Note
+ * that a tool which calls {@code System.exit()} takes the daemon down
+ * with it.
+ */
+public class CeylonDaemon {
+    
+    private static final String DAEMON_FILE = "daemon";
+    
+    private static final byte FRAME_EXIT = 0;
+    private static final byte FRAME_OUT = 1;
+    private static final byte FRAME_ERR = 2;
+    // Asks the client for at most the given number of bytes of input
+    private static final byte FRAME_READ = 3;
+    
+    private static final int SECRET_LENGTH = 16;
+    // Nothing is allocated before the secret has been checked, but even
+    // then a broken client shouldn't be able to make us allocate much
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+    private static final int MAX_COUNT = 1 << 16;
+    private static final int MAX_FRAME_LENGTH = 1 << 16;
+    private static final int AUTH_TIMEOUT_MILLIS = 10000;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final ToolLoader toolLoader;
+    private final ToolFactory toolFactory;
+    private final File daemonFile;
+    private final byte[] secret;
+    private ServerSocket serverSocket;
+    
+    public CeylonDaemon(ToolLoader toolLoader, ToolFactory toolFactory) {
+        this(toolLoader, toolFactory, getDaemonFile());
+    }
+    
+    CeylonDaemon(ToolLoader toolLoader, ToolFactory toolFactory, File daemonFile) {
+        this.toolLoader = toolLoader;
+        this.toolFactory = toolFactory;
+        this.daemonFile = daemonFile;
+        this.secret = newSecret();
+    }
+    
+    /**
+     * Starts listening for commands and runs them until the daemon
+     * is stopped or killed.
+     * @return The exit code of the daemon
+     */
+    public int serve() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        writeDaemonFile(daemonFile, serverSocket.getLocalPort(), secret);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                daemonFile.delete();
+            }
+        });
+        
+        final PerThreadInputStream in = PerThreadInputStream.installIn();
+        final PerThreadPrintStream out = PerThreadPrintStream.installOut();
+        final PerThreadPrintStream err = PerThreadPrintStream.installErr();
+        System.out.println(Tools.progName() + " daemon listening on port " + serverSocket.getLocalPort());
+        
+        ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ceylon-daemon-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket, in, out, err);
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            daemonFile.delete();
+        }
+        return CeylonTool.SC_OK;
+    }
+    
+    /**
+     * Stops accepting new commands, making {@link #serve()} return
+     */
+    public void stop() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+    
+    private void handle(Socket socket, PerThreadInputStream stdin, PerThreadPrintStream out, PerThreadPrintStream err) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream sout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // Don't let clients that don't say anything hold on to a worker
+            socket.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+            byte[] given = new byte[SECRET_LENGTH];
+            in.readFully(given);
+            if (!MessageDigest.isEqual(secret, given)) {
+                return;
+            }
+            socket.setSoTimeout(0);
+            File cwd = new File(readString(in));
+            String[] args = new String[readCount(in)];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = readString(in);
+            }
+            int envSize = readCount(in);
+            Map<String, String> env = new HashMap<String, String>();
+            for (int i = 0; i < envSize; i++) {
+                env.put(readString(in), readString(in));
+            }
+            
+            stdin.redirect(new ClientInputStream(in, sout));
+            out.redirect(new PrintStream(new FrameOutputStream(sout, FRAME_OUT), true));
+            err.redirect(new PrintStream(new FrameOutputStream(sout, FRAME_ERR), true));
+            CeylonConfig oldConfig = CeylonConfig.set(CeylonConfig.createFromLocalDir(cwd));
+            int exit;
+            try {
+                exit = run(args, cwd, env);
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                CeylonConfig.set(oldConfig);
+                stdin.redirect(null);
+                out.redirect(null);
+                err.redirect(null);
+            }
+            synchronized (sout) {
+                sout.writeByte(FRAME_EXIT);
+                sout.writeInt(exit);
+                sout.flush();
+            }
+        } catch (IOException e) {
+            // The client went away, nothing we can do about it
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    private int run(String[] args, File cwd, Map<String, String> env) {
+        CeylonTool tool = new CeylonTool();
+        tool.setToolLoader(toolLoader);
+        tool.setPluginFactory(toolFactory);
+        tool.setDefaultCwd(cwd);
+        tool.setEnvironment(env);
+        try {
+            return tool.bootstrap(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return CeylonTool.SC_TOOL_EXCEPTION;
+        }
+    }
+    
+    /**
+     * Runs the given command using a running daemon.
+     * @return The exit code of the command, or null if no daemon
+     * could be reached
+     */
+    public static Integer forward(String[] args) throws IOException {
+        return forward(getDaemonFile(), args, System.in, System.out, System.err);
+    }
+    
+    static Integer forward(File daemonFile, String[] args, InputStream stdin, 
+            PrintStream stdout, PrintStream stderr) throws IOException {
+        if (!daemonFile.isFile()) {
+            return null;
+        }
+        int port;
+        byte[] secret = new byte[SECRET_LENGTH];
+        try {
+            DataInputStream din = new DataInputStream(new FileInputStream(daemonFile));
+            try {
+                port = din.readInt();
+                din.readFully(secret);
+            } finally {
+                din.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        
+        Socket socket = new Socket();
+        try {
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            } catch (IOException e) {
+                // Stale daemon file
+                return null;
+            }
+            // Expand @file arguments here, their paths are relative to us
+            args = CommandLine.parse(args);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(secret);
+            writeString(out, new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                writeString(out, arg);
+            }
+            Map<String, String> env = System.getenv();
+            out.writeInt(env.size());
+            for (Map.Entry<String, String> entry : env.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            out.flush();
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] data = new byte[MAX_FRAME_LENGTH];
+            while (true) {
+                byte frame = in.readByte();
+                if (frame == FRAME_EXIT) {
+                    return in.readInt();
+                }
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (frame == FRAME_READ) {
+                    // Only reads as much input as the command asks for
+                    int n = stdin.read(data, 0, length);
+                    out.writeInt(n);
+                    if (n > 0) {
+                        out.write(data, 0, n);
+                    }
+                    out.flush();
+                } else {
+                    in.readFully(data, 0, length);
+                    PrintStream target = (frame == FRAME_ERR) ? stderr : stdout;
+                    target.write(data, 0, length);
+                    target.flush();
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+    
+    /**
+     * Whether {@code ceylon} should try to forward commands to a daemon,
+     * which is the case when the {@code CEYLON_DAEMON} environment
+     * variable is set to anything but {@code false}
+     */
+    public static boolean isForwardingEnabled() {
+        String value = System.getenv(Constants.ENV_CEYLON_DAEMON);
+        return value != null 
+                && !value.isEmpty()
+                && !CeylonConfig.isFalsish(value);
+    }
+    
+    static File getDaemonFile() {
+        return new File(FileUtil.getUserDir(), DAEMON_FILE);
+    }
+    
+    private static void writeDaemonFile(File file, int port, byte[] secret) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        file.delete();
+        file.createNewFile();
+        try {
+            Files.setPosixFilePermissions(file.toPath(), 
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        } catch (UnsupportedOperationException e) {
+            file.setReadable(false, false);
+            file.setReadable(true, true);
+        }
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(port);
+            out.write(secret);
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static byte[] newSecret() {
+        byte[] bytes = new byte[SECRET_LENGTH];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+    
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+    
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /*
+     * Sends everything written to it to the client as frames of the given kind
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte kind;
+        
+        FrameOutputStream(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, MAX_FRAME_LENGTH);
+                synchronized (out) {
+                    out.writeByte(kind);
+                    out.writeInt(n);
+                    out.write(b, off, n);
+                }
+                off += n;
+                len -= n;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+    
+    /*
+     * Reads the client's standard input, asking it for more every
+     * time we run out
+     */
+    private static class ClientInputStream extends InputStream {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private boolean eof;
+        
+        ClientInputStream(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n;
+            do {
+                n = read(b, 0, 1);
+            } while (n == 0);
+            return (n > 0) ? (b[0] & 0xff) : -1;
+        }
+        
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int wanted = Math.min(len, MAX_FRAME_LENGTH);
+            synchronized (out) {
+                out.writeByte(FRAME_READ);
+                out.writeInt(wanted);
+                out.flush();
+            }
+            int n = in.readInt();
+            if (n < 0) {
+                eof = true;
+                return -1;
+            }
+            if (n > wanted) {
+                throw new IOException("Invalid input length " + n);
+            }
+            in.readFully(b, off, n);
+            return n;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
@@ -92,6 +93,7 @@ public class CeylonTool implements Tool {
 
     private static final String ARG_LONG_VERSION = "--version";
     private static final String ARG_SHORT_VERSION = "-v";
+    private static final String ARG_DAEMON = "--daemon";
     
     /** Normal termination */
     public static final int SC_OK = 0;
@@ -130,6 +132,8 @@ public class CeylonTool implements Tool {
     private boolean version;
     private Tool toolCache;
     private Boolean paginate;
+    private File defaultCwd;
+    private Map<String, String> environment;
     
     public CeylonTool() {
     }
@@ -274,7 +278,16 @@ public class CeylonTool implements Tool {
         if (args.length > 0 && (ARG_LONG_VERSION.equals(args[0]) || ARG_SHORT_VERSION.equals(args[0]))) {
             version(System.out);
             return SC_OK;
+        } else if (args.length > 0 && ARG_DAEMON.equals(args[0])) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            return new CeylonDaemon(new CeylonToolLoader(classLoader), new ToolFactory()).serve();
         } else {
+            if (CeylonDaemon.isForwardingEnabled()) {
+                Integer exit = CeylonDaemon.forward(args);
+                if (exit != null) {
+                    return exit;
+                }
+            }
             return new CeylonTool().bootstrap(args);
         }
     }
@@ -317,6 +330,11 @@ public class CeylonTool implements Tool {
     public int execute() throws Exception {
         int result = SC_OK;
         CeylonConfig oldConfig = null;
+        if (version && toolName == null) {
+            // Same as start() does, for when we weren't started by it
+            version(System.out);
+            return result;
+        }
         try {
             String[] names = (toolName != null) ? getToolNames() : new String[] { null };
             for (String singleToolName : names) {
@@ -401,15 +419,34 @@ public class CeylonTool implements Tool {
         args.add(model.getScriptName());
         args.addAll(toolArgs);
         ProcessBuilder processBuilder = new ProcessBuilder(args);
+        if (environment != null) {
+            // Running in a daemon: use the client's environment and
+            // working directory, and send everything through System.out
+            processBuilder.environment().clear();
+            processBuilder.environment().putAll(environment);
+            if (defaultCwd != null) {
+                processBuilder.directory(defaultCwd);
+            }
+        }
         setupScriptEnvironment(processBuilder, model.getScriptName());
-        processBuilder.redirectError(Redirect.INHERIT);
-        processBuilder.redirectInput(Redirect.INHERIT);
-        if (OSUtil.isWindows()) {
+        if (environment != null) {
+            processBuilder.redirectErrorStream(true);
+        } else {
+            processBuilder.redirectError(Redirect.INHERIT);
+        }
+        if (environment == null) {
+            processBuilder.redirectInput(Redirect.INHERIT);
+        }
+        if (OSUtil.isWindows() && environment == null) {
             processBuilder.redirectOutput(Redirect.INHERIT);
         }
         try {
             Process process = processBuilder.start();
-            if (!OSUtil.isWindows()) {
+            if (environment != null) {
+                // The daemon's own stdin isn't the client's
+                pipeInput(System.in, process.getOutputStream());
+            }
+            if (!OSUtil.isWindows() || environment != null) {
                 InputStream in = process.getInputStream();
                 InputStreamReader inread = new InputStreamReader(in);
                 BufferedReader bufferedreader = new BufferedReader(inread);
@@ -428,6 +465,30 @@ public class CeylonTool implements Tool {
         }
     }
 
+    private static void pipeInput(final InputStream in, final OutputStream out) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[8192];
+                try {
+                    try {
+                        int n;
+                        while ((n = in.read(buf)) != -1) {
+                            out.write(buf, 0, n);
+                            out.flush();
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    // The script exited or the client went away
+                }
+            }
+        }, "ceylon-script-input");
+        t.setDaemon(true);
+        t.start();
+    }
+
     public static void setupScriptEnvironment(ProcessBuilder processBuilder, String script) {
         Map<String, String> env = processBuilder.environment();
         String ceylonHome = System.getProperty(Constants.PROP_CEYLON_HOME_DIR);
@@ -477,12 +538,30 @@ public class CeylonTool implements Tool {
             useCache = true;
         if(useCache && toolCache != null)
             return toolCache;
-        tool = getPluginFactory().bindArguments(model, this, toolArgs);
+        tool = getPluginFactory().bindArguments(model, this, withDefaultCwd(model, toolArgs));
         if(useCache)
             toolCache = tool;
         return tool;
     }
 
+    private List<String> withDefaultCwd(ToolModel<?> model, List<String> args) {
+        if (defaultCwd == null || model.getOption("cwd") == null) {
+            return args;
+        }
+        for (String arg : args) {
+            if (arg.equals("--")) {
+                break;
+            }
+            if (arg.equals("--cwd") || arg.startsWith("--cwd=")) {
+                return args;
+            }
+        }
+        List<String> result = new ArrayList<String>(args.size() + 1);
+        result.add("--cwd=" + defaultCwd.getPath());
+        result.addAll(args);
+        return result;
+    }
+
     <T extends Tool> ToolModel<T> getToolModel(String toolName) {
         final ToolModel<T> model = getPluginLoader().loadToolModel(toolName);
         return model;
@@ -516,6 +595,23 @@ public class CeylonTool implements Tool {
         this.pluginLoader = toolLoader;
     }
 
+    /**
+     * Sets the directory tools should use as their working directory
+     * when none is given with {@code --cwd}, which is how a daemon
+     * runs commands on behalf of clients in other directories
+     */
+    public void setDefaultCwd(File defaultCwd) {
+        this.defaultCwd = defaultCwd;
+    }
+    
+    /**
+     * Sets the environment to run script plugins with instead of
+     * the environment of this process
+     */
+    public void setEnvironment(Map<String, String> environment) {
+        this.environment = environment;
+    }
+
     public Boolean getWantsPager() {
         return paginate;
     }
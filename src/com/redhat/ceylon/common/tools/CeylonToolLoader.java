@@ -19,6 +19,10 @@
  */
 package com.redhat.ceylon.common.tools;
 
+import java.io.File;
+
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.tool.ServiceToolLoader;
 import com.redhat.ceylon.common.tool.Tool;
 
@@ -41,6 +45,19 @@ public class CeylonToolLoader extends ServiceToolLoader {
         }
     }
 
+    /**
+     * The tool index lives in {@code ~/.ceylon/cache/tools.idx} unless it
+     * was disabled by setting the {@code ceylon.tool.index} system
+     * property to {@code false}
+     */
+    @Override
+    protected File getToolIndexFile() {
+        if ("false".equals(System.getProperty(Constants.PROP_CEYLON_TOOL_INDEX))) {
+            return null;
+        }
+        return new File(new File(FileUtil.getUserDir(), "cache"), "tools.idx");
+    }
+
     @Override
     public String getToolName(String className) {
         return classNameToToolName(className);
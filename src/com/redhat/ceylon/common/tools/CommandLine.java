@@ -30,6 +30,7 @@ import java.io.Reader;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.StreamTokenizer;
+import java.io.StringReader;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -72,10 +73,33 @@ public class CommandLine {
         return (String[])newArgs.toArray(new String[newArgs.size()]);
     }
 
+    /**
+     * Splits a single line into arguments using the same rules as are
+     * used for the contents of command files. Any '@file' arguments are
+     * returned as they are.
+     */
+    public static String[] tokenize(String line)
+        throws IOException
+    {
+        ArrayList<String> args = new ArrayList<String>();
+        tokenize(new StringReader(line), args);
+        return (String[])args.toArray(new String[args.size()]);
+    }
+
     private static void loadCmdFile(String name, List<String> args)
         throws IOException
     {
         Reader r = new BufferedReader(new FileReader(name));
+        try {
+            tokenize(r, args);
+        } finally {
+            r.close();
+        }
+    }
+
+    private static void tokenize(Reader r, List<String> args)
+        throws IOException
+    {
         StreamTokenizer st = new StreamTokenizer(r);
         st.resetSyntax();
         st.wordChars(' ', 255);
@@ -86,6 +110,5 @@ public class CommandLine {
         while (st.nextToken() != StreamTokenizer.TT_EOF) {
             args.add(st.sval);
         }
-        r.close();
     }
 }
\ No newline at end of file
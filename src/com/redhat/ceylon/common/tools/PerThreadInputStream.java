@@ -0,0 +1,100 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.common.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that can be installed as {@code System.in} and
+ * which reads from a stream that can be chosen per thread (and is
+ * inherited by the threads it starts). Threads that didn't choose a
+ * stream read from the stream that was originally installed.
+ * @see PerThreadPrintStream
+ */
+public class PerThreadInputStream extends InputStream {
+    
+    private final InputStream fallback;
+    private final InheritableThreadLocal<InputStream> source = new InheritableThreadLocal<InputStream>();
+    
+    private PerThreadInputStream(InputStream fallback) {
+        this.fallback = fallback;
+    }
+    
+    /**
+     * Makes sure {@code System.in} is a {@code PerThreadInputStream}
+     * and returns it
+     */
+    public static synchronized PerThreadInputStream installIn() {
+        if (System.in instanceof PerThreadInputStream) {
+            return (PerThreadInputStream)System.in;
+        }
+        PerThreadInputStream result = new PerThreadInputStream(System.in);
+        System.setIn(result);
+        return result;
+    }
+    
+    /**
+     * Makes the current thread (and the threads it starts from now on)
+     * read from the given stream, or back from the original stream if
+     * it's {@code null}
+     * @return The stream the current thread was reading from before,
+     * or {@code null} if it was using the original stream
+     */
+    public InputStream redirect(InputStream stream) {
+        InputStream old = source.get();
+        if (stream != null) {
+            source.set(stream);
+        } else {
+            source.remove();
+        }
+        return old;
+    }
+    
+    private InputStream current() {
+        InputStream stream = source.get();
+        return (stream != null) ? stream : fallback;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        return current().read();
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return current().read(b, off, len);
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        return current().skip(n);
+    }
+    
+    @Override
+    public int available() throws IOException {
+        return current().available();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        // The original stream isn't ours to close
+    }
+}
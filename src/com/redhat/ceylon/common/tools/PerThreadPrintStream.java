@@ -0,0 +1,137 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.common.tools;
+
+import java.io.PrintStream;
+
+/**
+ * A {@link PrintStream} that can be installed as {@code System.out} or
+ * {@code System.err} and which sends its output to a stream that can be
+ * chosen per thread (and is inherited by the threads it starts). Threads
+ * that didn't choose a stream write to the stream that was originally
+ * installed.
+ * <p>
+ * This is what allows several tools to run at the same time inside a
+ * single JVM while each of them still gets its own output.
+ */
+public class PerThreadPrintStream extends PrintStream {
+    
+    private final PrintStream fallback;
+    private final InheritableThreadLocal<PrintStream> target = new InheritableThreadLocal<PrintStream>();
+    
+    private PerThreadPrintStream(PrintStream fallback) {
+        super(fallback, true);
+        this.fallback = fallback;
+    }
+    
+    /**
+     * Makes sure {@code System.out} is a {@code PerThreadPrintStream}
+     * and returns it
+     */
+    public static synchronized PerThreadPrintStream installOut() {
+        if (System.out instanceof PerThreadPrintStream) {
+            return (PerThreadPrintStream)System.out;
+        }
+        PerThreadPrintStream result = new PerThreadPrintStream(System.out);
+        System.setOut(result);
+        return result;
+    }
+    
+    /**
+     * Makes sure {@code System.err} is a {@code PerThreadPrintStream}
+     * and returns it
+     */
+    public static synchronized PerThreadPrintStream installErr() {
+        if (System.err instanceof PerThreadPrintStream) {
+            return (PerThreadPrintStream)System.err;
+        }
+        PerThreadPrintStream result = new PerThreadPrintStream(System.err);
+        System.setErr(result);
+        return result;
+    }
+    
+    /**
+     * Sends the output of the current thread (and the threads it starts
+     * from now on) to the given stream, or back to the original stream
+     * if it's {@code null}
+     * @return The stream the current thread was sending its output to
+     * before, or {@code null} if it was using the original stream
+     */
+    public PrintStream redirect(PrintStream stream) {
+        PrintStream old = target.get();
+        if (stream != null) {
+            target.set(stream);
+        } else {
+            target.remove();
+        }
+        return old;
+    }
+    
+    /**
+     * Makes the current thread write to the original {@code System.out}
+     * and {@code System.err} and read from the original {@code System.in}
+     * again, whatever it inherited from the thread that started it.
+     * Long-lived threads that can get started while a tool is running
+     * with redirected streams call this so they don't keep using that
+     * tool's streams once it's done.
+     */
+    public static void detachCurrentThread() {
+        if (System.out instanceof PerThreadPrintStream) {
+            ((PerThreadPrintStream)System.out).redirect(null);
+        }
+        if (System.err instanceof PerThreadPrintStream) {
+            ((PerThreadPrintStream)System.err).redirect(null);
+        }
+        if (System.in instanceof PerThreadInputStream) {
+            ((PerThreadInputStream)System.in).redirect(null);
+        }
+    }
+    
+    private PrintStream current() {
+        PrintStream stream = target.get();
+        return (stream != null) ? stream : fallback;
+    }
+    
+    @Override
+    public void write(int b) {
+        current().write(b);
+    }
+    
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        current().write(buf, off, len);
+    }
+    
+    @Override
+    public void flush() {
+        current().flush();
+    }
+    
+    @Override
+    public void close() {
+        // The original stream isn't ours to close
+        flush();
+    }
+    
+    @Override
+    public boolean checkError() {
+        return current().checkError();
+    }
+}
@@ -16,12 +16,18 @@
 
 package com.redhat.ceylon.common.tools.config;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import com.redhat.ceylon.common.config.CeylonConfig;
 import com.redhat.ceylon.common.config.CeylonConfigFinder;
+import com.redhat.ceylon.common.config.ConfigEditor;
 import com.redhat.ceylon.common.config.ConfigException;
 import com.redhat.ceylon.common.config.ConfigFinder;
 import com.redhat.ceylon.common.config.ConfigWriter;
@@ -83,7 +89,7 @@ public class CeylonConfigTool extends CeylonBaseTool {
     }
     
     @Subtool(argumentName="action",
-            classes={List.class, Get.class, Set.class, Remove.class, RenameSection.class, RemoveSection.class, Keystore.class})
+            classes={List.class, Get.class, Set.class, Remove.class, Batch.class, RenameSection.class, RemoveSection.class, Keystore.class})
     public void setAction(Tool action) {
         this.action = action;
     }
@@ -114,23 +120,25 @@ public class CeylonConfigTool extends CeylonBaseTool {
         }
     }
     
-    private void writeConfig(CeylonConfig config) throws IOException {
+    private File configFile() throws IOException {
         ConfigFinder finder = CeylonConfigFinder.DEFAULT;
-        File cfgFile;
         if (file != null) {
-            cfgFile = applyCwd(file);
+            return applyCwd(file);
         } else {
             if (system) {
-                cfgFile = finder.findSystemConfig();
+                return finder.findSystemConfig();
             } else if (user) {
-                cfgFile = finder.findUserConfig();
+                return finder.findUserConfig();
             } else if (local) {
-                cfgFile = finder.findLocalConfig(applyCwd(new File(".")));
+                return finder.findLocalConfig(applyCwd(new File(".")));
             } else {
                 throw new IllegalStateException("A configuration must be specified");
             }
         }
-        ConfigWriter.write(config, cfgFile);
+    }
+    
+    private ConfigEditor editConfig() throws IOException {
+        return ConfigEditor.open(configFile());
     }
     
     private void initSubtool() {
@@ -217,14 +225,14 @@ public class CeylonConfigTool extends CeylonBaseTool {
         
         @Override
         public void run() throws IOException {
-            CeylonConfig config = readConfig();
+            ConfigEditor editor = editConfig();
             String[] vals = values.toArray(new String[values.size()]);
             try {
-                config.setOptionValues(key, vals);
+                editor.setOptionValues(key, vals);
             } catch (IllegalArgumentException ex) {
                 throw new ConfigException(ex.getMessage());
             }
-            writeConfig(config);
+            editor.save();
         }
     }
     
@@ -245,13 +253,86 @@ public class CeylonConfigTool extends CeylonBaseTool {
         
         @Override
         public void run() throws IOException {
-            CeylonConfig config = readConfig();
+            ConfigEditor editor = editConfig();
             try {
-                config.removeOption(key);
+                editor.removeOption(key);
             } catch (IllegalArgumentException ex) {
                 throw new ConfigException(ex.getMessage());
             }
-            writeConfig(config);
+            editor.save();
+        }
+    }
+    
+    @Description("Applies all `<operations>` to the config file and then writes it once. " +
+            "Each operation is either `<key>=<value>`, to set the value of `<key>`, " +
+            "or `-<key>`, to remove `<key>` (put `--` before the operations if the first " +
+            "of them is a removal). The first time a key is set its old values " +
+            "are replaced, setting it again adds more values. " +
+            "If no operations are given they are read from standard input, one per line, " +
+            "ignoring empty lines and lines starting with `#`. " +
+            "Nothing gets written if any of the operations is invalid.")
+    public class Batch implements Tool {
+        
+        private java.util.List<String> operations;
+        private final java.util.Set<String> seen = new HashSet<String>();
+        
+        @Argument(argumentName="operations", multiplicity="*")
+        public void setOperations(java.util.List<String> operations) {
+            this.operations = operations;
+        }
+
+        @Override
+        public void initialize(CeylonTool mainTool) {
+            initUpdatingSubtool();
+        }
+        
+        @Override
+        public void run() throws IOException {
+            ConfigEditor editor = editConfig();
+            if (operations != null && !operations.isEmpty()) {
+                for (String operation : operations) {
+                    apply(editor, operation, "'" + operation + "'");
+                }
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, Charset.forName("UTF-8")));
+                String line;
+                int lineNumber = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    String trimmed = line.trim();
+                    if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                        apply(editor, trimmed, "line " + lineNumber);
+                    }
+                }
+            }
+            editor.save();
+        }
+        
+        private void apply(ConfigEditor editor, String operation, String where) {
+            try {
+                if (operation.startsWith("-")) {
+                    String key = operation.substring(1).trim();
+                    editor.removeOption(key);
+                    seen.add(key);
+                } else {
+                    int p = operation.indexOf('=');
+                    if (p <= 0) {
+                        throw new ConfigException("Invalid operation " + where + ", expected <key>=<value> or -<key>");
+                    }
+                    String key = operation.substring(0, p).trim();
+                    String value = operation.substring(p + 1).trim();
+                    String[] values = editor.getOptionValues(key);
+                    if (seen.add(key) || values == null) {
+                        values = new String[] { value };
+                    } else {
+                        values = Arrays.copyOf(values, values.length + 1);
+                        values[values.length - 1] = value;
+                    }
+                    editor.setOptionValues(key, values);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new ConfigException("Invalid operation " + where + ": " + ex.getMessage());
+            }
         }
     }
     
@@ -299,13 +380,13 @@ public class CeylonConfigTool extends CeylonBaseTool {
         
         @Override
         public void run() throws IOException {
-            CeylonConfig config = readConfig();
+            ConfigEditor editor = editConfig();
             try {
-                config.removeSection(name);
+                editor.removeSection(name);
             } catch (IllegalArgumentException ex) {
                 throw new ConfigException(ex.getMessage());
             }
-            writeConfig(config);
+            editor.save();
         }
     }
     
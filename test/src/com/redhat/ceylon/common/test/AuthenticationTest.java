@@ -2,6 +2,8 @@ package com.redhat.ceylon.common.test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -12,6 +14,7 @@ import org.junit.Test;
 import com.redhat.ceylon.common.config.Authentication;
 import com.redhat.ceylon.common.config.CeylonConfig;
 import com.redhat.ceylon.common.config.Keystores;
+import com.redhat.ceylon.common.config.Keystores.Store;
 import com.redhat.ceylon.common.config.Repositories;
 import com.redhat.ceylon.common.config.Authentication.UsernamePassword;
 import com.redhat.ceylon.common.config.Repositories.Repository;
@@ -173,4 +176,91 @@ public class AuthenticationTest extends AbstractKeystoreTest {
         mockPrompt.assertSeenOnlyGivenPrompts();
     }
     
+    @Test
+    public void testStoredPasswordForgottenWhenKeystoreChanges() throws Exception {
+        String storeFilename = "foofile";
+        File storeFile = new File(testDir, storeFilename);
+        String alias = "fooalias";
+        String storePass = "foostorepass";
+        Store store = createStore(testConfig, null, storeFilename, storeFile, "foopassword", alias,
+                storePass, storePass);
+        mockPrompt.prompts.put("Password for default keystore (foofile):", storePass);
+        Repository repository = repos.getRepository("repo-with-keystorefoo");
+        UsernamePassword up = Authentication.fromConfig(testConfig).getUsernameAndPassword(repository.getCredentials());
+        Assert.assertEquals("foopassword", new String(up.getPassword()));
+        Assert.assertEquals("foopassword", new String(up.getPassword()));
+        mockPrompt.assertSeenOnlyGivenPrompts();
+        
+        store.setPassword(alias, storePass.toCharArray(), storePass.toCharArray(), "newpassword".toCharArray());
+        Assert.assertEquals("newpassword", new String(up.getPassword()));
+    }
+    
+    @Test
+    public void testPromptedPasswordRemembered() throws Exception {
+        mockPrompt.prompts.put("Password for bar at http://modules.ceylon-lang.org:", "repopassword");
+        final Repository repository = repos.getRepository("repo-with-prompted");
+        Thread[] threads = new Thread[8];
+        final String[] seen = new String[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    UsernamePassword up = Authentication.fromConfig(testConfig).getUsernameAndPassword(repository.getCredentials());
+                    seen[n] = new String(up.getPassword());
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (String password : seen) {
+            Assert.assertEquals("repopassword", password);
+        }
+        // Asked only once
+        mockPrompt.assertSeenOnlyGivenPrompts();
+        
+        // Zeroing what we got doesn't affect the remembered password
+        UsernamePassword up = Authentication.fromConfig(testConfig).getUsernameAndPassword(repository.getCredentials());
+        char[] password = up.getPassword();
+        Arrays.fill(password, '\0');
+        Assert.assertEquals("repopassword", new String(up.getPassword()));
+        mockPrompt.assertSeenOnlyGivenPrompts();
+        
+        Authentication.clearPasswordCache();
+        Assert.assertEquals("repopassword", new String(up.getPassword()));
+        mockPrompt.assertSeenPrompts("Password for bar at http://modules.ceylon-lang.org:", 
+                "Password for bar at http://modules.ceylon-lang.org:");
+        
+        Authentication.setPasswordCacheTime(0, TimeUnit.MILLISECONDS);
+        try {
+            up.getPassword();
+            up.getPassword();
+            Assert.assertEquals(4, mockPrompt.seenPrompts.size());
+        } finally {
+            Authentication.setPasswordCacheTime(15, TimeUnit.MINUTES);
+        }
+    }
+    
+    @Test
+    public void testRejectedPasswordForgotten() throws Exception {
+        mockPrompt.prompts.put("Password for bar at http://modules.ceylon-lang.org:", "typo");
+        Repository repository = repos.getRepository("repo-with-prompted");
+        UsernamePassword up = Authentication.fromConfig(testConfig).getUsernameAndPassword(repository.getCredentials());
+        Assert.assertEquals("typo", new String(up.getPassword()));
+        Assert.assertEquals("typo", new String(up.getPassword()));
+        mockPrompt.assertSeenOnlyGivenPrompts();
+        
+        up.passwordRejected();
+        mockPrompt.prompts.put("Password for bar at http://modules.ceylon-lang.org:", "repopassword");
+        UsernamePassword again = Authentication.fromConfig(testConfig).getUsernameAndPassword(repository.getCredentials());
+        Assert.assertEquals("repopassword", new String(again.getPassword()));
+        mockPrompt.assertSeenPrompts("Password for bar at http://modules.ceylon-lang.org:", 
+                "Password for bar at http://modules.ceylon-lang.org:");
+        
+        // Rejecting what was handed out before doesn't forget the new one
+        up.passwordRejected();
+        Assert.assertEquals("repopassword", new String(again.getPassword()));
+        Assert.assertEquals(2, mockPrompt.seenPrompts.size());
+    }
 }
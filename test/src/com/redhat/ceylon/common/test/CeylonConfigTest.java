@@ -1,16 +1,37 @@
 package com.redhat.ceylon.common.test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Assert;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.config.CeylonConfig;
 import com.redhat.ceylon.common.config.CeylonConfigFinder;
+import com.redhat.ceylon.common.config.ConfigChangeListener;
+import com.redhat.ceylon.common.config.ConfigCodec;
+import com.redhat.ceylon.common.config.ConfigFinder;
+import com.redhat.ceylon.common.config.ConfigKey;
+import com.redhat.ceylon.common.config.ConfigParser;
+import com.redhat.ceylon.common.config.ConfigWatcher;
+import com.redhat.ceylon.common.config.ConfigWriter;
+import com.redhat.ceylon.common.config.DefaultToolOptions;
 
 public class CeylonConfigTest {
 
@@ -204,6 +225,29 @@ public class CeylonConfigTest {
         Assert.assertFalse(tmpConfig.isOptionDefined("test.string-hello"));
     }
     
+    @Test
+    public void testRemoveManyOptions() {
+        CeylonConfig config = new CeylonConfig();
+        for (int i = 0; i < 20000; i++) {
+            config.setOption("s" + (i % 100) + ".o" + i, "v" + i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < 20000; i += 2) {
+            config.removeOption("s" + (i % 100) + ".o" + i);
+            Assert.assertFalse(config.isOptionDefined("s" + (i % 100) + ".o" + i));
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        Assert.assertTrue("Took " + millis + "ms", millis < 5000);
+        Assert.assertEquals(10000, config.getOptionNames(null).length);
+        Assert.assertEquals("v1", config.getOption("s1.o1"));
+        // Options that get removed and set again go to the end
+        config.removeOption("s1.o1");
+        config.setOption("s1.o1", "again");
+        String[] names = config.getOptionNames("s1");
+        Assert.assertEquals("o1", names[names.length - 1]);
+        Assert.assertEquals("o101", names[0]);
+    }
+    
     @Test
     public void testRemoveSection() {
         CeylonConfig tmpConfig = testConfig.copy();
@@ -213,6 +257,462 @@ public class CeylonConfigTest {
         Assert.assertFalse(tmpConfig.isOptionDefined("test.string-hello"));
     }
     
+    @Test
+    public void testRemoveManySections() {
+        CeylonConfig config = new CeylonConfig();
+        for (int i = 0; i < 5000; i++) {
+            config.setOption("repository.R" + i + ".url", "http://example.com/" + i);
+            config.setOption("repository.R" + i + ".sub.user", "user" + i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < 5000; i += 2) {
+            config.removeSection("repository.R" + i);
+            Assert.assertFalse(config.isOptionDefined("repository.R" + i + ".url"));
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        Assert.assertTrue("Took " + millis + "ms", millis < 5000);
+        Assert.assertEquals(5000, config.getOptionNames(null).length);
+        Assert.assertFalse(config.isSectionDefined("repository.R10.sub"));
+        // Sections that only share a prefix aren't affected
+        Assert.assertEquals("user11", config.getOption("repository.R11.sub.user"));
+        config.removeSection("repository.R1");
+        Assert.assertEquals("user11", config.getOption("repository.R11.sub.user"));
+        Assert.assertEquals("user101", config.getOption("repository.R101.sub.user"));
+        Assert.assertNull(config.getOption("repository.R1.sub.user"));
+        // Removed sections can be filled again
+        config.setOption("repository.R1.url", "again");
+        Assert.assertEquals("again", config.getOption("repository.R1.url"));
+        Assert.assertEquals(0, config.getSectionNames("repository.R1").length);
+        Assert.assertEquals(2500, config.getSectionNames("repository").length);
+    }
+    
+    @Test
+    public void testCopyAndMergeShareNothingVisible() {
+        CeylonConfig base = new CeylonConfig();
+        base.setOption("a.one", "1");
+        base.setOption("a.two", "2");
+        CeylonConfig copy = base.copy();
+        copy.setOption("a.one", "changed");
+        copy.setOption("b.three", "3");
+        Assert.assertEquals("1", base.getOption("a.one"));
+        Assert.assertFalse(base.isSectionDefined("b"));
+        Assert.assertEquals("changed", copy.getOption("a.one"));
+        
+        CeylonConfig merged = base.copy();
+        for (int i = 0; i < 20; i++) {
+            CeylonConfig other = new CeylonConfig();
+            other.setOption("a.two", "v" + i);
+            other.setOption("c.n" + i, "x");
+            merged.merge(other);
+        }
+        Assert.assertEquals("v19", merged.getOption("a.two"));
+        Assert.assertEquals("2", base.getOption("a.two"));
+        Assert.assertEquals(22, merged.size());
+        // Options keep the position they were first defined in
+        Assert.assertEquals("a.one", merged.getOptionNames(null)[0]);
+        Assert.assertEquals("a.two", merged.getOptionNames(null)[1]);
+        Assert.assertEquals(Arrays.asList("a", "c"), Arrays.asList(merged.getSectionNames(null)));
+        
+        // Unless they get removed and added again
+        merged.removeOption("a.one");
+        merged.setOption("a.one", "again");
+        Assert.assertEquals("a.one", merged.getOptionNames(null)[21]);
+        merged.removeSection("c");
+        Assert.assertEquals(Arrays.asList("two", "one"), Arrays.asList(merged.getOptionNames("a")));
+        Assert.assertFalse(merged.isSectionDefined("c"));
+        Assert.assertEquals(2, base.size());
+    }
+    
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        final CeylonConfig config = new CeylonConfig();
+        final int threads = 8;
+        final int perThread = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            config.setOption("t" + id + ".opt" + i, String.valueOf(i));
+                            config.setOption("shared.counter", String.valueOf(i));
+                            if (config.getOption("t" + id + ".opt" + i) == null) {
+                                throw new AssertionError("Lost own write");
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(threads * perThread + 1, config.size());
+        Assert.assertEquals(String.valueOf(perThread - 1), config.getOption("shared.counter"));
+    }
+    
+    @Test
+    public void testConfigWatcher() throws Exception {
+        File dir = FileUtil.makeTempDir("ceylon-config-test");
+        try {
+            File configDir = new File(dir, ".ceylon");
+            configDir.mkdirs();
+            File file = new File(configDir, "config");
+            Files.write(file.toPath(), "[test]\nvalue=1\n".getBytes("UTF-8"));
+            CeylonConfig config = CeylonConfigFinder.loadDefaultConfig(dir);
+            Assert.assertEquals("1", config.getOption("test.value"));
+            CeylonConfig copy = config.copy();
+            
+            final CountDownLatch changed = new CountDownLatch(1);
+            ConfigWatcher watcher = new ConfigWatcher(config, dir);
+            watcher.addListener(new ConfigChangeListener() {
+                @Override
+                public void configChanged(CeylonConfig config) {
+                    if ("2".equals(config.getOption("test.value"))) {
+                        changed.countDown();
+                    }
+                }
+            });
+            watcher.start();
+            try {
+                Files.write(file.toPath(), "[test]\nvalue=2\n".getBytes("UTF-8"));
+                Assert.assertTrue(changed.await(30, TimeUnit.SECONDS));
+                Assert.assertEquals("2", config.getOption("test.value"));
+                Assert.assertEquals("1", copy.getOption("test.value"));
+            } finally {
+                watcher.close();
+            }
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+    
+    @Test
+    public void testConfigKeys() {
+        ConfigKey<Long> timeout = ConfigKey.ofLong("test.timeout", 5);
+        ConfigKey<List<File>> dirs = ConfigKey.ofFiles("test.dirs", "def");
+        CeylonConfig config = new CeylonConfig();
+        Assert.assertEquals(Long.valueOf(5), config.getOption(timeout));
+        Assert.assertEquals(Arrays.asList(new File("def")), config.getOption(dirs));
+        
+        config.setOption("test.timeout", "42");
+        config.setOptionValues("test.dirs", new String[] {"a", "b"});
+        List<File> parsed = config.getOption(dirs);
+        Assert.assertEquals(Long.valueOf(42), timeout.get(config));
+        Assert.assertEquals(Arrays.asList(new File("a"), new File("b")), parsed);
+        // Remembered until the configuration changes
+        Assert.assertSame(parsed, config.getOption(dirs));
+        Assert.assertSame(parsed, config.copy().getOption(dirs));
+        try {
+            parsed.add(new File("c"));
+            Assert.fail();
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+        
+        config.setOption("test.timeout", "not a number");
+        Assert.assertEquals(Long.valueOf(5), config.getOption(timeout));
+        Assert.assertEquals(parsed, config.getOption(dirs));
+        config.removeOption("test.dirs");
+        Assert.assertEquals(Arrays.asList(new File("def")), config.getOption(dirs));
+        config.setOption(DefaultToolOptions.DEFAULTS_TIMEOUT, "5");
+        Assert.assertEquals(5, DefaultToolOptions.getDefaultTimeout(config));
+    }
+    
+    @Test
+    public void testBinaryEncoding() throws IOException {
+        CeylonConfig config = testConfig.copy();
+        config.setOptionValues("repository.Aap.url", new String[] {"http://\u00e9\u4e2d", "true"});
+        byte[] data = ConfigCodec.encode(config);
+        Assert.assertTrue(data.length < config.toString().length());
+        
+        CeylonConfig decoded = ConfigCodec.decode(data);
+        Assert.assertEquals(config.toString(), decoded.toString());
+        Assert.assertEquals(Arrays.asList(config.getOptionNames(null)), Arrays.asList(decoded.getOptionNames(null)));
+        Assert.assertEquals("http://\u00e9\u4e2d", decoded.getOption("repository.Aap.url"));
+        
+        // Works the same from a direct buffer with other data around it
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length + 10);
+        buf.put((byte)1).put(data).put((byte)2).flip();
+        buf.get();
+        Assert.assertEquals(config.toString(), ConfigCodec.decode(buf).toString());
+        Assert.assertEquals(2, buf.get());
+        
+        File file = File.createTempFile("ceylon-config-test", ".bin");
+        try {
+            ConfigCodec.write(config, file);
+            Assert.assertEquals(config.toString(), ConfigCodec.read(file).toString());
+        } finally {
+            file.delete();
+        }
+        
+        try {
+            ConfigCodec.decode(Arrays.copyOf(data, data.length - 1));
+            Assert.fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+        try {
+            ConfigCodec.decode("[test]\nfoo=bar\n".getBytes("UTF-8"));
+            Assert.fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+        // A huge count mustn't be trusted
+        try {
+            ConfigCodec.decode(new byte[] { 0x43, 0x43, 0x46, 0x47, 2, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x07 });
+            Assert.fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+    
+    @Test
+    public void testBinaryEncodingSharesSectionPrefixes() throws IOException {
+        CeylonConfig config = new CeylonConfig();
+        for (int i = 0; i < 10; i++) {
+            config.setOption("repository.R" + i + ".url", "http://example.com/" + i);
+        }
+        byte[] data = ConfigCodec.encode(config);
+        String text = new String(data, "ISO-8859-1");
+        Assert.assertEquals(text.indexOf("repository"), text.lastIndexOf("repository"));
+        Assert.assertEquals(config.toString(), ConfigCodec.decode(data).toString());
+    }
+    
+    @Test
+    public void testLargeConfigFile() throws IOException {
+        File dir = FileUtil.makeTempDir("ceylon-config-test");
+        try {
+            File file = new File(dir, "config");
+            StringBuilder txt = new StringBuilder();
+            txt.append("[repositories]\n");
+            for (int i = 0; txt.length() < ConfigParser.MAP_THRESHOLD; i++) {
+                txt.append("lookup = ./r\u00E9po").append(i).append("\n");
+                txt.append("[repository \"R").append(i).append("\"]\n");
+                txt.append("url = \"http://example.com/").append(i).append("\" ; comment\n");
+                txt.append("[repositories]\n");
+            }
+            byte[] bytes = txt.toString().getBytes("UTF-8");
+            Files.write(file.toPath(), bytes);
+            CeylonConfig mapped = CeylonConfigFinder.loadOriginalConfigFromFile(file);
+            CeylonConfig streamed = CeylonConfigFinder.DEFAULT.loadConfigFromStream(new ByteArrayInputStream(bytes), null);
+            Assert.assertTrue(compareConfigs(mapped, streamed));
+            Assert.assertEquals("./r\u00E9po0", mapped.getOptionValues("repositories.lookup")[0]);
+            Assert.assertEquals("http://example.com/1", mapped.getOption("repository.R1.url"));
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+    
+    @Test
+    public void testLargeConfigFilesInParallel() throws Exception {
+        final File dir = FileUtil.makeTempDir("ceylon-config-test");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int f = 0; f < 4; f++) {
+                final File file = new File(dir, "config" + f);
+                StringBuilder txt = new StringBuilder();
+                txt.append("[file]\nname=").append(f).append("\n[repositories]\n");
+                for (int i = 0; txt.length() < ConfigParser.MAP_THRESHOLD * (f + 1); i++) {
+                    txt.append("lookup = ./repo").append(f).append('-').append(i).append("\n");
+                }
+                Files.write(file.toPath(), txt.toString().getBytes("UTF-8"));
+                final String name = String.valueOf(f);
+                final String last = "./repo" + f + "-" + (countLines(txt) - 4);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 10; i++) {
+                            // Every parse has to see its own file, 
+                            // whoever used the decode buffer before
+                            CeylonConfig config = new ConfigParser(file).parse(false);
+                            Assert.assertEquals(name, config.getOption("file.name"));
+                            String[] lookup = config.getOptionValues("repositories.lookup");
+                            Assert.assertEquals(last, lookup[lookup.length - 1]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+            FileUtil.delete(dir);
+        }
+    }
+    
+    private static int countLines(CharSequence txt) {
+        int lines = 0;
+        for (int i = 0; i < txt.length(); i++) {
+            if (txt.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+    
+    @Test
+    public void testConfigFileCache() throws IOException {
+        File dir = FileUtil.makeTempDir("ceylon-config-test");
+        try {
+            File file = new File(dir, "config");
+            Files.write(file.toPath(), "[test]\nvalue=1\n".getBytes("UTF-8"));
+            file.setLastModified(System.currentTimeMillis() - 60000);
+            CeylonConfig config1 = CeylonConfigFinder.loadConfigFromFile(file);
+            config1.setOption("test.value", "changed");
+            CeylonConfig config2 = CeylonConfigFinder.loadConfigFromFile(file);
+            Assert.assertNotSame(config1, config2);
+            Assert.assertEquals("1", config2.getOption("test.value"));
+            
+            Files.write(file.toPath(), "[test]\nvalue=22\n".getBytes("UTF-8"));
+            file.setLastModified(System.currentTimeMillis() - 30000);
+            Assert.assertEquals("22", CeylonConfigFinder.loadConfigFromFile(file).getOption("test.value"));
+            
+            CeylonConfig config3 = CeylonConfigFinder.loadConfigFromFile(file);
+            config3.setOption("test.value", "33");
+            ConfigWriter.write(config3, file);
+            file.setLastModified(System.currentTimeMillis() - 30000);
+            Assert.assertEquals("33", CeylonConfigFinder.loadConfigFromFile(file).getOption("test.value"));
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+
+    @Test
+    public void testConfigFileCacheValuesNotShared() throws IOException {
+        File dir = FileUtil.makeTempDir("ceylon-config-test");
+        try {
+            File file = new File(dir, "config");
+            Files.write(file.toPath(), "[test]\nvalue=1\nvalue=2\n".getBytes("UTF-8"));
+            file.setLastModified(System.currentTimeMillis() - 60000);
+            CeylonConfig config1 = CeylonConfigFinder.loadConfigFromFile(file);
+            config1.getOptionValues("test.value")[0] = "changed";
+            String[] values = new String[] { "3" };
+            config1.setOptionValues("test.other", values);
+            values[0] = "changed";
+            Assert.assertEquals("1", config1.getOption("test.value"));
+            Assert.assertEquals("3", config1.getOption("test.other"));
+            CeylonConfig config2 = CeylonConfigFinder.loadConfigFromFile(file);
+            Assert.assertEquals("1", config2.getOption("test.value"));
+            Assert.assertEquals(2, config2.getOptionValues("test.value").length);
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSectionViews() {
+        CeylonConfig config = new CeylonConfig();
+        config.setOption("repository.foo.url", "http://foo");
+        config.setOption("repository.foo.user", "me");
+        config.setOption("repository.foo.sub.x", "1");
+        config.setOption("repository.bar.url", "http://bar");
+        config.setOption("repositories.lookup", "+foo");
+        
+        CeylonConfig.Section foo = config.section("repository.foo");
+        Assert.assertTrue(foo.isDefined());
+        Assert.assertEquals("repository.foo", foo.getName());
+        Assert.assertEquals("http://foo", foo.getOption("url"));
+        Assert.assertEquals("none", foo.getOption("password", "none"));
+        Assert.assertEquals(Arrays.asList("url", "user"), Arrays.asList(foo.getOptionNames()));
+        Assert.assertEquals(Arrays.asList("sub"), Arrays.asList(foo.getSectionNames()));
+        Assert.assertEquals("1", foo.section("sub").getOption("x"));
+        Assert.assertEquals(Arrays.asList("foo", "bar"), Arrays.asList(config.section("repository").getSectionNames()));
+        
+        // Views don't see later changes
+        config.setOption("repository.foo.url", "http://changed");
+        Assert.assertEquals("http://foo", foo.getOption("url"));
+        Assert.assertEquals("http://changed", config.section("repository.foo").getOption("url"));
+        
+        CeylonConfig.Section missing = config.section("repository.baz");
+        Assert.assertFalse(missing.isDefined());
+        Assert.assertNull(missing.getOption("url"));
+        Assert.assertEquals(0, missing.getOptionNames().length);
+        Assert.assertNull(config.getSectionNames("repository.baz"));
+        
+        // Removing a section leaves sections sharing its prefix alone
+        config.removeSection("repository.foo");
+        Assert.assertFalse(config.isSectionDefined("repository.foo"));
+        Assert.assertFalse(config.isOptionDefined("repository.foo.sub.x"));
+        Assert.assertEquals("http://bar", config.getOption("repository.bar.url"));
+        Assert.assertEquals("+foo", config.getOption("repositories.lookup"));
+        Assert.assertEquals(2, config.size());
+    }
+    
+    @Test
+    public void testConfigFromProperties() {
+        try {
+            System.setProperty("ceylon.config.test.prop", "one");
+            CeylonConfig config1 = CeylonConfigFinder.DEFAULT.loadConfigFromProperties();
+            Assert.assertEquals("one", config1.getOption("test.prop"));
+            config1.setOption("test.prop", "changed");
+            CeylonConfig config2 = CeylonConfigFinder.DEFAULT.loadConfigFromProperties();
+            Assert.assertEquals("one", config2.getOption("test.prop"));
+            
+            System.setProperty("ceylon.config.test.prop", "two");
+            Assert.assertEquals("two", CeylonConfigFinder.DEFAULT.loadConfigFromProperties().getOption("test.prop"));
+            System.setProperty("ceylon.config.test.other", "three");
+            Assert.assertEquals("three", CeylonConfigFinder.DEFAULT.loadConfigFromProperties().getOption("test.other"));
+            // Same hash code, different value
+            System.setProperty("ceylon.config.test.prop", "Aa");
+            Assert.assertEquals("Aa", CeylonConfigFinder.DEFAULT.loadConfigFromProperties().getOption("test.prop"));
+            System.setProperty("ceylon.config.test.prop", "BB");
+            Assert.assertEquals("BB", CeylonConfigFinder.DEFAULT.loadConfigFromProperties().getOption("test.prop"));
+        } finally {
+            System.clearProperty("ceylon.config.test.prop");
+            System.clearProperty("ceylon.config.test.other");
+        }
+        CeylonConfig config = CeylonConfigFinder.DEFAULT.loadConfigFromProperties();
+        Assert.assertFalse(config.isOptionDefined("test.prop"));
+        Assert.assertFalse(config.isOptionDefined("test.other"));
+    }
+    
+    @Test
+    public void testLocalConfigWalk() throws IOException {
+        File dir = FileUtil.makeTempDir("ceylon-config-test");
+        try {
+            File top = new File(dir, "a");
+            File middle = new File(top, "b/c");
+            File start = new File(middle, "d/e");
+            start.mkdirs();
+            new File(top, ".ceylon").mkdirs();
+            new File(middle, ".ceylon").mkdirs();
+            Files.write(new File(top, ".ceylon/config").toPath(), "[test]\ntop=1\nvalue=top\n".getBytes("UTF-8"));
+            Files.write(new File(middle, ".ceylon/config").toPath(), "[test]\nvalue=middle\n".getBytes("UTF-8"));
+            
+            ConfigFinder.clearCache();
+            long probes = ConfigFinder.getFileSystemProbes();
+            CeylonConfig config = CeylonConfigFinder.loadLocalConfig(start);
+            probes = ConfigFinder.getFileSystemProbes() - probes;
+            Assert.assertEquals("1", config.getOption("test.top"));
+            Assert.assertEquals("middle", config.getOption("test.value"));
+            Assert.assertEquals(new File(middle, ".ceylon/config").getCanonicalFile(), 
+                    CeylonConfigFinder.DEFAULT.findLocalConfig(start));
+            
+            // A single walk up means a few probes per level at most
+            int levels = 0;
+            for (File f = start.getCanonicalFile(); f != null; f = f.getParentFile()) {
+                levels++;
+            }
+            Assert.assertTrue("Too many probes: " + probes, probes <= 3 + levels * 4);
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+    
     private boolean compareStringArrays(String[] one, String[] two) {
         return Arrays.equals(one, two);
     }
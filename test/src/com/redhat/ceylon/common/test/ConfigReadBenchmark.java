@@ -0,0 +1,86 @@
+package com.redhat.ceylon.common.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redhat.ceylon.common.config.CeylonConfig;
+import com.redhat.ceylon.common.config.DefaultToolOptions;
+
+/**
+ * Measures the throughput of {@link DefaultToolOptions} getters reading
+ * a single shared {@link CeylonConfig} from an increasing number of
+ * threads. The "locked" mode wraps every read in a lock on the config
+ * the way the accessors used to be synchronized, so both columns can
+ * be compared on the same machine.
+ * <p>
+ * Usage: {@code ConfigReadBenchmark [maxThreads] [millisPerRun]}
+ */
+public class ConfigReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        CeylonConfig config = new CeylonConfig();
+        config.setOption("defaults.timeout", "30");
+        config.setOptionValues("compiler.source", new String[] {"source", "other"});
+        for (int i = 0; i < 100; i++) {
+            config.setOption("filler.opt" + i, String.valueOf(i));
+        }
+
+        // Warm up
+        run(config, 1, millis / 2, false);
+        run(config, 1, millis / 2, true);
+
+        System.out.println("threads    lock-free ops/ms    locked ops/ms");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long free = run(config, threads, millis, false);
+            long locked = run(config, threads, millis, true);
+            System.out.println(String.format("%7d %20d %16d", threads, free / millis, locked / millis));
+        }
+    }
+
+    private static long run(final CeylonConfig config, int threads, long millis, final boolean locked) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong total = new AtomicLong();
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long ops = 0;
+                    long sink = 0;
+                    while ((ops & 0xff) != 0 || System.nanoTime() < deadline[0]) {
+                        if (locked) {
+                            synchronized (config) {
+                                sink += read(config);
+                            }
+                        } else {
+                            sink += read(config);
+                        }
+                        ops++;
+                    }
+                    total.addAndGet(ops + (sink == 42 ? 1 : 0));
+                }
+            };
+            workers[t].start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1000000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.get();
+    }
+
+    private static long read(CeylonConfig config) {
+        return DefaultToolOptions.getDefaultTimeout(config)
+                + DefaultToolOptions.getCompilerSourceDirs(config).size();
+    }
+}
@@ -1,10 +1,14 @@
 package com.redhat.ceylon.common.test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.util.InvalidPropertiesFormatException;
 
 import junit.framework.Assert;
 
@@ -15,6 +19,9 @@ import org.junit.Test;
 import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.config.CeylonConfig;
 import com.redhat.ceylon.common.config.CeylonConfigFinder;
+import com.redhat.ceylon.common.config.ConfigEditor;
+import com.redhat.ceylon.common.config.ConfigReader;
+import com.redhat.ceylon.common.config.ConfigReaderListener;
 import com.redhat.ceylon.common.config.ConfigWriter;
 
 public class ConfigWriterTest {
@@ -102,6 +109,148 @@ public class ConfigWriterTest {
         }        
     }
     
+    @Test
+    public void testEditorLeavesUnchangedFileAlone() throws IOException {
+        File configFile = new File(testDir, "config");
+        Files.copy(testFile.toPath(), configFile.toPath());
+        ConfigEditor editor = ConfigEditor.open(configFile);
+        editor.setOptionValues("test.one", new String[] {"uno"});
+        editor.setOptionValues("test.multiple.strings", new String[] {"aap", "noot", "mies"});
+        Assert.assertFalse(editor.isModified());
+        Assert.assertFalse(editor.save());
+        Assert.assertFalse(new File(testDir, "config.old").exists());
+    }
+    
+    @Test
+    public void testEditorPatchesOnlyChanges() throws IOException {
+        String contents = readFile(testFile);
+        File configFile = new File(testDir, "config");
+        Files.copy(testFile.toPath(), configFile.toPath());
+        ConfigEditor editor = ConfigEditor.open(configFile);
+        editor.setOptionValues("test.two", new String[] {"twee"});
+        editor.setOptionValues("test.string-hello", new String[] {"hola"});
+        editor.setOptionValues("test.multiple.strings", new String[] {"wim", "zus"});
+        editor.setOptionValues("test.section.Aap.foo", new String[] {"1", "2", "3"});
+        editor.removeOption("test.section.Noot.foo");
+        editor.removeOption("test.section.Mies.fooz");
+        editor.setOptionValues("test.pulsar", new String[] {"CP 1919"});
+        editor.setOptionValues("another.section.buzz", new String[] {"lightyear;"});
+        Assert.assertTrue(editor.save());
+        
+        String expected = contents
+                .replace("two=dos\n", "two=twee\n")
+                .replace("string-hello=hello; a comment\n", "string-hello=hola; a comment\n")
+                .replace("mies\"    ; a comment\n", "mies\"    ; a comment\npulsar=CP 1919\n")
+                .replace("strings=aap\nstrings=noot\nstrings=mies\n", "strings=wim\nstrings=zus\n")
+                .replace("[test.section \"Aap\"]\nfoo=1\n", "[test.section \"Aap\"]\nfoo=1\nfoo=2\nfoo=3\n")
+                .replace("[test.section \"Noot\"]\nfoo=2\n", "")
+                .replace("fooz=33\n", "")
+                + "\n[another \"section\"]\nbuzz=\"lightyear;\"\n";
+        Assert.assertEquals(expected, readFile(configFile));
+        Assert.assertEquals(contents, readFile(new File(testDir, "config.old")));
+        
+        CeylonConfig config = CeylonConfigFinder.loadOriginalConfigFromFile(configFile);
+        Assert.assertEquals("lightyear;", config.getOption("another.section.buzz"));
+        Assert.assertEquals(3, config.getOptionValues("test.section.Aap.foo").length);
+        Assert.assertFalse(config.isSectionDefined("test.section.Noot"));
+    }
+    
+    @Test
+    public void testEditorRemovesSections() throws IOException {
+        File configFile = new File(testDir, "config");
+        Files.write(configFile.toPath(), "[a]\r\nx=1\r\n\r\n[b]\r\ny=2 ; why\r\n\r\n[a]\r\nz=3".getBytes("UTF-8"));
+        ConfigEditor editor = ConfigEditor.open(configFile);
+        editor.removeSection("b");
+        editor.setOptionValues("a.w", new String[] {"4"});
+        editor.setOptionValues("c.v", new String[] {"5"});
+        Assert.assertTrue(editor.save());
+        Assert.assertEquals("[a]\r\nx=1\r\n\r\n\r\n[a]\r\nz=3\r\nw=4\r\n\r\n[c]\r\nv=5\r\n", readFile(configFile));
+    }
+    
+    @Test
+    public void testEditorKeepsEmptySections() throws IOException {
+        File configFile = new File(testDir, "config");
+        Files.write(configFile.toPath(), "[empty]\n\n[a]\nx=1\n\n[b]\ny=2\n\n[c]\n".getBytes("UTF-8"));
+        ConfigEditor editor = ConfigEditor.open(configFile);
+        editor.setOptionValues("a.x", new String[] {"2"});
+        editor.removeOption("b.y");
+        editor.removeSection("c");
+        Assert.assertTrue(editor.save());
+        Assert.assertEquals("[empty]\n\n[a]\nx=2\n\n\n", readFile(configFile));
+    }
+    
+    @Test
+    public void testEditorInsertsBeforeRemovedSection() throws IOException {
+        File configFile = new File(testDir, "config");
+        Files.write(configFile.toPath(), "[a]\nx=1\n[b]\ny=1\n".getBytes("UTF-8"));
+        ConfigEditor editor = ConfigEditor.open(configFile);
+        editor.removeSection("b");
+        editor.setOptionValues("a.z", new String[] {"2"});
+        Assert.assertTrue(editor.save());
+        Assert.assertEquals("[a]\nx=1\nz=2\n", readFile(configFile));
+    }
+    
+    @Test
+    public void testEditorInsertsBeforeRemovedOption() throws IOException {
+        File configFile = new File(testDir, "config");
+        Files.write(configFile.toPath(), "[a]\nb=1\na=1\nb=2\n".getBytes("UTF-8"));
+        ConfigEditor editor = ConfigEditor.open(configFile);
+        editor.setOptionValues("a.a", new String[] {"1", "2"});
+        editor.setOptionValues("a.b", new String[] {"1"});
+        Assert.assertTrue(editor.save());
+        Assert.assertEquals("[a]\nb=1\na=1\na=2\n", readFile(configFile));
+    }
+    
+    @Test
+    public void testWritingLargeConfig() throws IOException {
+        CeylonConfig config = new CeylonConfig();
+        StringBuilder txt = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            config.setOption("repository.R" + i + ".url", "http://example.com/" + i);
+            config.setOption("repository.R" + i + ".user", "user" + i);
+            if (i % 2 == 0) {
+                txt.append("[repository \"R").append(i).append("\"]\n");
+                txt.append("url=http://example.com/").append(i).append("\n\n");
+            }
+        }
+        long start = System.nanoTime();
+        String written = config.toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConfigWriter.write(config, new ByteArrayInputStream(txt.toString().getBytes("UTF-8")), out);
+        long millis = (System.nanoTime() - start) / 1000000;
+        // Used to take tens of seconds when options were removed from
+        // a copy of the configuration one by one while writing it
+        Assert.assertTrue("Took " + millis + "ms", millis < 5000);
+        CeylonConfig read = CeylonConfigFinder.DEFAULT.loadConfigFromStream(new ByteArrayInputStream(written.getBytes("UTF-8")), null);
+        Assert.assertEquals(10000, read.getOptionNames(null).length);
+        Assert.assertEquals("user4999", read.getOption("repository.R4999.user"));
+        String updated = out.toString("UTF-8");
+        Assert.assertTrue(updated.startsWith("[repository \"R0\"]\nurl=http://example.com/0\nuser=user0"));
+        read = CeylonConfigFinder.DEFAULT.loadConfigFromStream(new ByteArrayInputStream(updated.getBytes("UTF-8")), null);
+        Assert.assertEquals(10000, read.getOptionNames(null).length);
+        Assert.assertEquals("http://example.com/4999", read.getOption("repository.R4999.url"));
+    }
+    
+    @Test
+    public void testReaderTextCoversInput() throws IOException {
+        String contents = readFile(testFile);
+        TextCollector text = new TextCollector();
+        CharBuffer chars = CharBuffer.wrap(("xx" + contents + "yy").toCharArray(), 2, contents.length());
+        new ConfigReader(chars, text).process();
+        Assert.assertEquals(contents, text.toString());
+    }
+    
+    @Test
+    public void testReaderErrorLine() throws IOException {
+        byte[] contents = "[a]\r\nx=1\r\n\n[b c]\n".getBytes("UTF-8");
+        try {
+            new ConfigReader(new ByteArrayInputStream(contents), new TextCollector()).process();
+            Assert.fail();
+        } catch (InvalidPropertiesFormatException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("at line 4"));
+        }
+    }
+    
     private String readFile(File file) {
         try {
             Reader reader = new FileReader(file);
@@ -120,4 +269,20 @@ public class ConfigWriterTest {
             throw new RuntimeException(x);
         }
     }
+    
+    private static class TextCollector implements ConfigReaderListener {
+        private final StringBuilder text = new StringBuilder();
+        
+        public void setup() {}
+        public void onSection(String section, String txt) { text.append(txt); }
+        public void onOption(String name, String value, String txt) { text.append(txt); }
+        public void onComment(String txt) { text.append(txt); }
+        public void onWhitespace(String txt) { text.append(txt); }
+        public void cleanup() {}
+        
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
 }
@@ -2,6 +2,7 @@ package com.redhat.ceylon.common.test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 
 import org.junit.Assert;
@@ -82,5 +83,59 @@ public class KeystoresTest extends AbstractKeystoreTest {
         store.deletePassword(alias, storePass.toCharArray());
         Assert.assertNull(store.getPassword(alias, storePass.toCharArray()));
     }
-
+    
+    @Test
+    public void testEditBar() throws Exception {
+        String keystoreSectionName = "bar";
+        String storeFilename = "barfile";
+        File storeFile = new File(testDir, storeFilename);
+        String alias = "baralias";
+        char[] storePass = "barstorepass".toCharArray();
+        
+        Store store = roundTrip(keystoreSectionName, storeFilename, storeFile, "barpassword", alias,
+                "barstorepass", "barstorepass");
+        store.edit(storePass)
+            .setPassword("one", storePass, "1".toCharArray())
+            .setPassword("two", storePass, "2".toCharArray())
+            .deletePassword(alias)
+            .save();
+        
+        store = Keystores.withConfig(testConfig).getStore(keystoreSectionName);
+        Assert.assertArrayEquals("1".toCharArray(), store.getPassword("one", storePass));
+        Assert.assertArrayEquals("2".toCharArray(), store.getPassword("two", storePass));
+        Assert.assertNull(store.getPassword(alias, storePass));
+        try {
+            // The keystore already loaded mustn't get used with another password
+            store.getPassword("one", "wrong".toCharArray());
+            Assert.fail();
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+    
+    @Test
+    public void testRecentlyModifiedKeystoreIsReloaded() throws Exception {
+        String keystoreSectionName = "bar";
+        File storeFile = new File(testDir, "barfile");
+        String alias = "baralias";
+        char[] storePass = "barstorepass".toCharArray();
+        
+        Store store = createStore(testConfig, keystoreSectionName, "barfile", storeFile, 
+                "1111", alias, "barstorepass", "barstorepass");
+        byte[] first = Files.readAllBytes(storeFile.toPath());
+        store.setPassword(alias, storePass, storePass, "2222".toCharArray());
+        byte[] second = Files.readAllBytes(storeFile.toPath());
+        Assert.assertEquals(first.length, second.length);
+        
+        long lastModified = (System.currentTimeMillis() / 1000) * 1000;
+        Files.write(storeFile.toPath(), first);
+        Assert.assertTrue(storeFile.setLastModified(lastModified));
+        Assert.assertArrayEquals("1111".toCharArray(), store.getPassword(alias, storePass));
+        
+        // Same size and modification time, but it was modified too 
+        // recently for the loaded keystore to be trusted
+        Files.write(storeFile.toPath(), second);
+        Assert.assertTrue(storeFile.setLastModified(lastModified));
+        Assert.assertArrayEquals("2222".toCharArray(), store.getPassword(alias, storePass));
+    }
 }
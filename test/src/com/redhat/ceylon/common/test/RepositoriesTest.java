@@ -193,6 +193,59 @@ public class RepositoriesTest {
         assertRepository(lookup[0], "%lookup-1", "./mods", null, null);
     }
     
+    @Test
+    public void testResolvedOncePerChange() {
+        CeylonConfig configCopy = testConfig.copy();
+        Repositories testRepos = Repositories.withConfig(configCopy);
+        Repository[] lookup = testRepos.getLocalLookupRepositories();
+        Assert.assertSame(lookup, testRepos.getLocalLookupRepositories());
+        Assert.assertSame(testRepos.getRepository("Two"), testRepos.getRepository("Two"));
+        
+        configCopy.setOption("repository.Two.url", "changed");
+        Assert.assertNotSame(lookup, testRepos.getLocalLookupRepositories());
+        assertRepository(testRepos.getRepository("Two"), "Two", "changed", "pietjepluk", "noencryptionfornow!");
+    }
+    
+    @Test
+    public void testInstancePerConfig() throws Exception {
+        final CeylonConfig config1 = testConfig.copy();
+        final CeylonConfig config2 = testConfig.copy();
+        config2.setOption("repository.Two.url", "other");
+        Assert.assertSame(Repositories.withConfig(config1), Repositories.withConfig(config1));
+        Assert.assertNotSame(Repositories.withConfig(config1), Repositories.withConfig(config2));
+        
+        final Repositories[] seen = new Repositories[2];
+        Thread t1 = new Thread() {
+            public void run() {
+                CeylonConfig.set(config1);
+                seen[0] = Repositories.get();
+            }
+        };
+        Thread t2 = new Thread() {
+            public void run() {
+                CeylonConfig.set(config2);
+                seen[1] = Repositories.get();
+            }
+        };
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        Assert.assertSame(Repositories.withConfig(config1), seen[0]);
+        Assert.assertSame(Repositories.withConfig(config2), seen[1]);
+        Assert.assertEquals("other", seen[1].getRepository("Two").getUrl());
+        
+        CeylonConfig old = CeylonConfig.set(config1);
+        try {
+            Repositories.set(repos);
+            Assert.assertSame(repos, Repositories.get());
+            Repositories.set(null);
+            Assert.assertSame(Repositories.withConfig(config1), Repositories.get());
+        } finally {
+            CeylonConfig.set(old);
+        }
+    }
+    
     private void assertRepository(Repository repo, String name, String url, String user, String password) {
         Assert.assertNotNull(repo);
         Assert.assertEquals(name, repo.getName());
@@ -0,0 +1,134 @@
+package com.redhat.ceylon.common.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+
+public class PathPluginsTest {
+
+    private File dir1;
+    private File dir2;
+    
+    @Before
+    public void setup() throws IOException {
+        File root = FileUtil.makeTempDir("pathplugins");
+        dir1 = new File(root, "one");
+        dir2 = new File(root, "two");
+        dir1.mkdirs();
+        dir2.mkdirs();
+    }
+    
+    @After
+    public void cleanup() {
+        FileUtil.delete(dir1.getParentFile());
+    }
+    
+    private PathPlugins plugins() {
+        return new PathPlugins() {
+            @Override
+            public List<File> getPluginDirs() {
+                return Arrays.asList(dir1, dir2);
+            }
+        };
+    }
+    
+    private static File touch(File dir, String name) throws IOException {
+        File f = new File(dir, name);
+        f.createNewFile();
+        return f;
+    }
+    
+    private static String plugin(File f) {
+        return ToolLoader.PLUGIN_PREFIX + f.getAbsolutePath();
+    }
+    
+    @Test
+    public void testFirstWins() throws IOException {
+        File foo1 = touch(dir1, "ceylon-foo.plugin");
+        touch(dir2, "ceylon-foo.plugin");
+        File bar = touch(dir2, "ceylon-bar.plugin");
+        touch(dir2, "other.plugin");
+        
+        Assert.assertEquals(plugin(foo1), plugins().findPathPlugin("foo"));
+        Assert.assertEquals(plugin(bar), plugins().findPathPlugin("bar"));
+        Assert.assertNull(plugins().findPathPlugin("baz"));
+        
+        PathPlugins all = plugins();
+        Assert.assertEquals(2, all.getPathPlugins().size());
+        Assert.assertTrue(all.getPathPlugins().contains(plugin(foo1)));
+        Assert.assertTrue(all.getPathPlugins().contains(plugin(bar)));
+        Assert.assertEquals(plugin(foo1), all.findPathPlugin("foo"));
+    }
+    
+    @Test
+    public void testMerge() throws IOException {
+        File foo1 = touch(dir1, "ceylon-foo.plugin");
+        File foo2 = touch(dir2, "ceylon-foo.plugin");
+        File bar = touch(dir2, "ceylon-bar.plugin");
+        PathPlugins plugins = plugins();
+        Set<String> merged = PathPlugins.merge(
+                plugins.findPathPlugins(Arrays.asList(dir1)), 
+                plugins.findPathPlugins(Arrays.asList(dir2)));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(plugin(foo1), plugin(bar))), merged);
+        Assert.assertFalse(merged.contains(plugin(foo2)));
+    }
+    
+    @Test
+    public void testDirectoryChanged() throws IOException {
+        touch(dir1, "ceylon-foo.plugin");
+        Assert.assertNull(plugins().findPathPlugin("bar"));
+        
+        File bar = touch(dir1, "ceylon-bar.plugin");
+        // Make sure the change is visible even with coarse timestamps
+        dir1.setLastModified(dir1.lastModified() + 2000);
+        Assert.assertEquals(plugin(bar), plugins().findPathPlugin("bar"));
+    }
+    
+    @Test
+    public void testRecentlyChangedDirectoryNotCached() throws IOException {
+        touch(dir1, "ceylon-foo.plugin");
+        long lastModified = dir1.lastModified();
+        Assert.assertNull(plugins().findPathPlugin("bar"));
+        
+        // A change that doesn't show in the modification time
+        File bar = touch(dir1, "ceylon-bar.plugin");
+        dir1.setLastModified(lastModified);
+        Assert.assertEquals(plugin(bar), plugins().findPathPlugin("bar"));
+    }
+    
+    @Test
+    public void testScanErrorsAreReported() throws IOException {
+        final File broken = new File(dir2.getPath()) {
+            @Override
+            public long lastModified() {
+                throw new SecurityException("not allowed");
+            }
+        };
+        PathPlugins plugins = new PathPlugins() {
+            @Override
+            public List<File> getPluginDirs() {
+                return Arrays.asList(dir1, broken);
+            }
+        };
+        try {
+            plugins.getPathPlugins();
+            Assert.fail();
+        } catch (SecurityException e) {
+            Assert.assertEquals("not allowed", e.getMessage());
+        }
+        // Found before the broken directory had to be looked at
+        File foo = touch(dir1, "ceylon-foo.plugin");
+        dir1.setLastModified(dir1.lastModified() + 2000);
+        Assert.assertEquals(plugin(foo), plugins.findPathPlugin("foo"));
+    }
+}
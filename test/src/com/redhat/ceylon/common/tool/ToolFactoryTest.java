@@ -322,6 +322,17 @@ public class ToolFactoryTest extends AbstractToolTest {
         }
     }
     
+    @Test
+    public void testOptionThrowsError() {
+        ToolModel<TestExampleTool> model = pluginLoader.loadToolModel("example");
+        try {
+            pluginFactory.bindArguments(model, getMainTool(), Arrays.asList("--throwable-class-name=java.lang.InternalError", "--option-throw"));
+            Assert.fail();
+        } catch (InvalidOptionValueException e) {
+            Assert.assertEquals("java.lang.InternalError", e.getCause().getClass().getName());
+        }
+    }
+    
     @Test
     public void testOptionArgumentThrows() {
         ToolModel<TestExampleTool> model = pluginLoader.loadToolModel("example");
@@ -1,11 +1,35 @@
 package com.redhat.ceylon.common.tool;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
 
+import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.tool.OptionModel.ArgumentType;
 import com.redhat.ceylon.common.tool.example.TestExampleTool;
+import com.redhat.ceylon.common.tool.example.Workaround;
 
 public class ToolLoaderTest {
 
@@ -64,4 +88,283 @@ public class ToolLoaderTest {
         
     }
 
+    @Test
+    public void testToolIndex() throws Exception {
+        final File indexFile = File.createTempFile("tools", ".idx");
+        indexFile.delete();
+        try {
+            TestingToolLoader loader = new TestingToolLoader() {
+                @Override
+                protected File getToolIndexFile() {
+                    return indexFile;
+                }
+            };
+            List<String> names = toList(loader.getToolNames());
+            Assert.assertTrue(indexFile.isFile());
+            
+            ToolIndex index = ToolIndex.read(indexFile, Workaround.class.getName());
+            List<URL> urls = Collections.list(loader.getServiceMeta());
+            Assert.assertNotNull(index.getServices(urls));
+            // Only the plugin directories that don't depend on the
+            // current directory are indexed
+            PathPlugins pathPlugins = new PathPlugins();
+            Assert.assertNotNull(index.getPathPlugins(pathPlugins.getSharedPluginDirs()));
+            Assert.assertNull(index.getPathPlugins(pathPlugins.getPluginDirs()));
+            
+            TestingToolLoader loader2 = new TestingToolLoader() {
+                @Override
+                protected File getToolIndexFile() {
+                    return indexFile;
+                }
+            };
+            Assert.assertEquals(names, toList(loader2.getToolNames()));
+            Assert.assertEquals(names, toList(new TestingToolLoader().getToolNames()));
+        } finally {
+            indexFile.delete();
+        }
+    }
+    
+    @Test
+    public void testToolIndexStale() throws Exception {
+        File serviceFile = File.createTempFile("service", ".txt");
+        File indexFile = File.createTempFile("tools", ".idx");
+        try {
+            writeFile(serviceFile, "com.example.Foo\n");
+            List<URL> urls = Arrays.asList(serviceFile.toURI().toURL());
+            ToolIndex index = new ToolIndex("test");
+            index.setServices(urls, Arrays.asList("com.example.Foo"));
+            index.write(indexFile);
+            
+            Assert.assertNull(ToolIndex.read(indexFile, "other").getServices(urls));
+            index = ToolIndex.read(indexFile, "test");
+            Assert.assertEquals(Arrays.asList("com.example.Foo"), index.getServices(urls));
+            
+            writeFile(serviceFile, "com.example.Foo\ncom.example.Bar\n");
+            Assert.assertNull(index.getServices(urls));
+        } finally {
+            serviceFile.delete();
+            indexFile.delete();
+        }
+    }
+    
+    @Test
+    public void testToolDescriptor() throws Exception {
+        // The tests are compiled with the ToolDescriptorProcessor, so the 
+        // descriptor has to be there
+        Class<?> descriptorClass = Class.forName(TestExampleTool.class.getName() + ToolDescriptor.SUFFIX);
+        ToolDescriptor descriptor = (ToolDescriptor)descriptorClass.getDeclaredConstructor().newInstance();
+        Set<Method> expected = new HashSet<Method>();
+        for (Method method : TestExampleTool.class.getMethods()) {
+            if (method.isAnnotationPresent(Option.class)
+                    || method.isAnnotationPresent(OptionArgument.class)
+                    || method.isAnnotationPresent(Argument.class)
+                    || method.isAnnotationPresent(Subtool.class)
+                    || method.isAnnotationPresent(Rest.class)) {
+                expected.add(method);
+            }
+        }
+        Set<Method> actual = new HashSet<Method>();
+        for (ToolDescriptor.Setter setter : descriptor.getSetters()) {
+            Method method = TestExampleTool.class.getMethod(setter.name, setter.parameterType);
+            actual.add(method);
+            
+            Option option = method.getAnnotation(Option.class);
+            Assert.assertEquals(option != null, setter.option);
+            if (option != null) {
+                Assert.assertEquals(option.longName(), setter.optionLongName);
+                Assert.assertEquals(option.shortName(), setter.optionShortName);
+            }
+            OptionArgument optionArgument = method.getAnnotation(OptionArgument.class);
+            Assert.assertEquals(optionArgument != null, setter.optionArgument);
+            if (optionArgument != null) {
+                Assert.assertEquals(optionArgument.longName(), setter.optionArgumentLongName);
+                Assert.assertEquals(optionArgument.shortName(), setter.optionArgumentShortName);
+                Assert.assertEquals(optionArgument.argumentName(), setter.optionArgumentName);
+            }
+            Argument argument = method.getAnnotation(Argument.class);
+            Assert.assertEquals(argument != null, setter.argument);
+            if (argument != null) {
+                Assert.assertEquals(argument.argumentName(), setter.argumentName);
+                Assert.assertEquals(argument.multiplicity(), setter.argumentMultiplicity);
+                Assert.assertEquals(argument.order(), setter.argumentOrder);
+            }
+            Assert.assertEquals(method.isAnnotationPresent(Description.class), setter.description);
+        }
+        Assert.assertEquals(expected, actual);
+    }
+    
+    @Test
+    public void testStaleToolDescriptor() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        File dir = FileUtil.makeTempDir("stale-descriptor");
+        try {
+            File source = new File(dir, "StaleTool.java");
+            String classPath = dir.getPath() + File.pathSeparator + System.getProperty("java.class.path");
+            writeFile(source, staleToolSource(""));
+            Assert.assertEquals(0, compiler.run(null, null, null, "-cp", classPath, "-d", dir.getPath(),
+                    "-processor", ToolDescriptorProcessor.class.getName(), source.getPath()));
+            // Recompiled without the processor the old descriptor stays
+            writeFile(source, staleToolSource("@Option public void setSecond(boolean b) {}\n"));
+            Assert.assertEquals(0, compiler.run(null, null, null, "-cp", classPath, "-d", dir.getPath(),
+                    "-proc:none", source.getPath()));
+            Assert.assertTrue(new File(dir, "StaleTool" + ToolDescriptor.SUFFIX + ".class").exists());
+            
+            URLClassLoader classLoader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, getClass().getClassLoader());
+            try {
+                ToolLoader loader = new ToolLoader(classLoader) {
+                    @Override
+                    public String getToolName(String className) {
+                        return "stale";
+                    }
+                    @Override
+                    protected Iterable<String> toolClassNames() {
+                        return Collections.singletonList("StaleTool");
+                    }
+                };
+                ToolModel<Tool> model = loader.loadToolModel("stale");
+                Assert.assertNotNull(model.getOption("first"));
+                Assert.assertNotNull(model.getOption("second"));
+            } finally {
+                classLoader.close();
+            }
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+    
+    private static String staleToolSource(String extraMembers) {
+        return "import com.redhat.ceylon.common.tool.*;\n" +
+                "public class StaleTool implements Tool {\n" +
+                "@Option public void setFirst(boolean b) {}\n" +
+                extraMembers +
+                "public void initialize(com.redhat.ceylon.common.tools.CeylonTool mainTool) {}\n" +
+                "public void run() {}\n" +
+                "}\n";
+    }
+    
+    @Test
+    public void testConcurrentLoadToolModel() throws Exception {
+        final ToolLoader loader = new TestingToolLoader();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ToolModel<?>>> futures = new ArrayList<Future<ToolModel<?>>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(new Callable<ToolModel<?>>() {
+                    @Override
+                    public ToolModel<?> call() throws Exception {
+                        start.await();
+                        ToolModel<?> model = loader.loadToolModel("example");
+                        model.getOptions();
+                        return model;
+                    }
+                }));
+            }
+            start.countDown();
+            ToolModel<?> first = futures.get(0).get();
+            Assert.assertNotNull(first);
+            for (Future<ToolModel<?>> future : futures) {
+                Assert.assertSame(first, future.get());
+            }
+            Assert.assertNotNull(first.getOption("long-name"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testEvictToolModel() throws Exception {
+        ToolLoader loader = new TestingToolLoader();
+        ToolModel<?> model = loader.loadToolModel("example");
+        Assert.assertSame(model, loader.loadToolModel("example"));
+        Assert.assertNull(loader.loadToolModel("no-such-tool"));
+        loader.evictToolModel("example");
+        ToolModel<?> reloaded = loader.loadToolModel("example");
+        Assert.assertNotSame(model, reloaded);
+        loader.refresh();
+        Assert.assertNotSame(reloaded, loader.loadToolModel("example"));
+        Assert.assertTrue(toList(loader.getToolNames()).contains("example"));
+    }
+    
+    @Test
+    public void testRefreshWhileLoading() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        ToolLoader loader = new ToolLoader() {
+            private boolean refreshed;
+            @Override
+            public String getToolName(String className) {
+                return "example";
+            }
+            @Override
+            protected String getToolClassName(String toolName) {
+                if (!refreshed) {
+                    // As if another thread refreshed while we load
+                    refreshed = true;
+                    refresh();
+                }
+                return super.getToolClassName(toolName);
+            }
+            @Override
+            protected Iterable<String> toolClassNames() {
+                lookups.incrementAndGet();
+                return Collections.singletonList(TestExampleTool.class.getName());
+            }
+        };
+        Assert.assertNotNull(loader.loadToolModel("example"));
+        Assert.assertEquals(1, lookups.get());
+        // What the load found before the refresh isn't used after it
+        Assert.assertEquals(Arrays.asList("example"), toList(loader.getToolNames()));
+        Assert.assertEquals(2, lookups.get());
+    }
+    
+    @Test
+    public void testConcurrentRefresh() throws Exception {
+        final ToolLoader loader = new TestingToolLoader();
+        final List<String> names = toList(loader.getToolNames());
+        final int threads = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 200; j++) {
+                            Assert.assertEquals(names, toList(loader.getToolNames()));
+                            Assert.assertNotNull(loader.loadToolModel("example"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < 200; i++) {
+                loader.refresh();
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            Assert.assertEquals(names, toList(loader.getToolNames()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    private static void writeFile(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+    
+    private static List<String> toList(Iterable<String> names) {
+        List<String> result = new ArrayList<String>();
+        for (String name : names) {
+            result.add(name);
+        }
+        return result;
+    }
+
 }
@@ -4,6 +4,11 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import com.redhat.ceylon.common.tools.CeylonBatchToolTest;
+import com.redhat.ceylon.common.tools.CeylonConfigToolTest;
+import com.redhat.ceylon.common.tools.CeylonDaemonTest;
+import com.redhat.ceylon.common.tools.CommandLineTest;
+
 
 @RunWith(Suite.class) 
 @SuiteClasses({
@@ -11,7 +16,12 @@ import org.junit.runners.Suite.SuiteClasses;
     ToolLoaderTest.class,
     ToolFactoryTest.class,
     MultiplicityTest.class,
-    WordWrapTest.class
+    WordWrapTest.class,
+    PathPluginsTest.class,
+    CeylonDaemonTest.class,
+    CeylonConfigToolTest.class,
+    CeylonBatchToolTest.class,
+    CommandLineTest.class
 })
 public class ToolsSuite {
 
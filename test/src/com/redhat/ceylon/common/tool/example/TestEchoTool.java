@@ -0,0 +1,43 @@
+package com.redhat.ceylon.common.tool.example;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import com.redhat.ceylon.common.tool.Argument;
+import com.redhat.ceylon.common.tool.CeylonBaseTool;
+import com.redhat.ceylon.common.tool.Option;
+import com.redhat.ceylon.common.tool.Summary;
+import com.redhat.ceylon.common.tools.CeylonTool;
+
+@Summary("Prints its working directory and arguments")
+public class TestEchoTool extends CeylonBaseTool {
+
+    private List<String> words;
+    private boolean read;
+    
+    @Argument(multiplicity="*")
+    public void setWords(List<String> words) {
+        this.words = words;
+    }
+    
+    @Option
+    public void setRead(boolean read) {
+        this.read = read;
+    }
+
+    @Override
+    public void initialize(CeylonTool mainTool) {
+    }
+
+    @Override
+    public void run() throws Exception {
+        System.out.println(cwd);
+        System.out.println(words);
+        if (read) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            System.err.println(in.readLine());
+        }
+    }
+
+}
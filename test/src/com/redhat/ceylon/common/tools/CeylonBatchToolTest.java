@@ -0,0 +1,130 @@
+package com.redhat.ceylon.common.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.tool.ToolFactory;
+
+public class CeylonBatchToolTest {
+
+    private static final String NL = System.lineSeparator();
+    
+    // The test tools and the batch tool, with CeylonTool as the top level tool
+    static class TestingBatchToolLoader extends CeylonDaemonTest.TestingCeylonToolLoader {
+        @Override
+        protected String getToolClassName(String toolName) {
+            if ("batch".equals(toolName)) {
+                return CeylonBatchTool.class.getName();
+            } else {
+                return super.getToolClassName(toolName);
+            }
+        }
+    }
+    
+    private File dir;
+    private String cwd;
+    private ByteArrayOutputStream out;
+    private ByteArrayOutputStream err;
+    private PrintStream oldOut;
+    private PrintStream oldErr;
+    
+    @Before
+    public void setup() throws Exception {
+        dir = FileUtil.makeTempDir("ceylon-batch-test");
+        cwd = dir.getPath();
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        oldOut = System.out;
+        oldErr = System.err;
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        System.setErr(new PrintStream(err, true, "UTF-8"));
+    }
+    
+    @After
+    public void teardown() {
+        System.setOut(oldOut);
+        System.setErr(oldErr);
+        FileUtil.delete(dir);
+    }
+    
+    private int batch(String commands, String... options) throws Exception {
+        Files.write(new File(dir, "cmds").toPath(), commands.getBytes("UTF-8"));
+        CeylonTool tool = new CeylonTool();
+        tool.setToolLoader(new TestingBatchToolLoader());
+        tool.setPluginFactory(new ToolFactory());
+        String[] args = new String[options.length + 3];
+        args[0] = "batch";
+        args[1] = "--cwd=" + cwd;
+        System.arraycopy(options, 0, args, 2, options.length);
+        args[args.length - 1] = "cmds";
+        return tool.bootstrap(args);
+    }
+    
+    private String echoed(String words) {
+        return cwd + NL + words + NL;
+    }
+    
+    @Test
+    public void testCommands() throws Exception {
+        int exit = batch("# Comments are ignored\n" +
+                "ceylon echo one\n" +
+                "echo 'two words' \"three\" # trailing comment\n");
+        Assert.assertEquals(err.toString("UTF-8"), CeylonTool.SC_OK, exit);
+        Assert.assertEquals(echoed("[one]") + echoed("[two words, three]"), out.toString("UTF-8"));
+    }
+    
+    @Test
+    public void testStages() throws Exception {
+        int exit = batch("echo one\n" +
+                "echo two\n" +
+                "\n" +
+                "\n" +
+                "echo three\n" +
+                "echo four\n" +
+                "echo five\n", 
+                "--jobs=2");
+        Assert.assertEquals(err.toString("UTF-8"), CeylonTool.SC_OK, exit);
+        // The output is in the order of the file, whatever the order they ran in
+        Assert.assertEquals(echoed("[one]") + echoed("[two]") + echoed("[three]") 
+                + echoed("[four]") + echoed("[five]"), out.toString("UTF-8"));
+    }
+    
+    @Test
+    public void testFailingCommand() throws Exception {
+        int exit = batch("echo one\n" +
+                "no-such-tool\n" +
+                "echo two\n");
+        Assert.assertEquals(CeylonTool.SC_TOOL_ERROR, exit);
+        // The other commands still ran
+        Assert.assertEquals(echoed("[one]") + echoed("[two]"), out.toString("UTF-8"));
+        String error = err.toString("UTF-8");
+        Assert.assertTrue(error, error.contains("cmds:2: exit status " + CeylonTool.SC_NO_SUCH_TOOL + ": no-such-tool"));
+        Assert.assertTrue(error, error.contains("1 of 3 commands failed"));
+    }
+    
+    @Test
+    public void testFailingCommandInParallelStage() throws Exception {
+        int exit = batch("echo one\n" +
+                "no-such-tool\n" +
+                "\n" +
+                "echo two\n", 
+                "--jobs=2");
+        Assert.assertEquals(CeylonTool.SC_TOOL_ERROR, exit);
+        // The failing command's own error output is part of the stage's output
+        String output = out.toString("UTF-8");
+        Assert.assertTrue(output, output.startsWith(echoed("[one]")));
+        Assert.assertTrue(output, output.endsWith(echoed("[two]")));
+        String error = err.toString("UTF-8");
+        Assert.assertTrue(error, error.contains("cmds:2: exit status " + CeylonTool.SC_NO_SUCH_TOOL + ": no-such-tool"));
+        Assert.assertTrue(error, error.contains("1 of 3 commands failed"));
+    }
+}
@@ -0,0 +1,161 @@
+package com.redhat.ceylon.common.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.config.CeylonConfig;
+import com.redhat.ceylon.common.config.CeylonConfigFinder;
+import com.redhat.ceylon.common.config.ConfigException;
+import com.redhat.ceylon.common.tool.MapToolLoader;
+import com.redhat.ceylon.common.tool.Tool;
+import com.redhat.ceylon.common.tool.ToolFactory;
+import com.redhat.ceylon.common.tool.ToolLoader;
+import com.redhat.ceylon.common.tool.ToolModel;
+import com.redhat.ceylon.common.tools.config.CeylonConfigTool;
+
+public class CeylonConfigToolTest {
+
+    private final ToolFactory factory = new ToolFactory();
+    private final ToolLoader loader = new MapToolLoader(
+            Collections.<Class<? extends Tool>, String>singletonMap(CeylonConfigTool.class, "config"));
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void makeConfig() throws Exception {
+        dir = FileUtil.makeTempDir("ceylon-config-tool-test");
+        file = new File(dir, "config");
+        write("[repositories]\n" +
+                "lookup=./first\n" +
+                "lookup=./second\n" +
+                "\n" +
+                "[defaults]\n" +
+                "encoding=UTF-8\n" +
+                "offline=true\n");
+    }
+
+    @After
+    public void deleteConfig() {
+        FileUtil.delete(dir);
+    }
+
+    private void write(String contents) throws Exception {
+        Files.write(file.toPath(), contents.getBytes("UTF-8"));
+    }
+
+    private String read() throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+    private CeylonConfig config() throws Exception {
+        return CeylonConfigFinder.loadConfigFromFile(file);
+    }
+
+    private void batch(String... operations) throws Exception {
+        ToolModel<CeylonConfigTool> model = loader.loadToolModel("config");
+        java.util.List<String> args = new java.util.ArrayList<String>();
+        args.add("--file=" + file.getAbsolutePath());
+        args.add("batch");
+        args.add("--");
+        args.addAll(Arrays.asList(operations));
+        CeylonConfigTool tool = factory.bindArguments(model, null, args);
+        tool.run();
+    }
+
+    @Test
+    public void testBatchSetAndRemove() throws Exception {
+        batch("defaults.encoding=ISO-8859-1", "-defaults.offline", "defaults.pass=javascript");
+        CeylonConfig config = config();
+        Assert.assertEquals("ISO-8859-1", config.getOption("defaults.encoding"));
+        Assert.assertFalse(config.isOptionDefined("defaults.offline"));
+        Assert.assertEquals("javascript", config.getOption("defaults.pass"));
+        Assert.assertEquals(2, config.getOptionValues("repositories.lookup").length);
+    }
+
+    @Test
+    public void testBatchTrimsKeysAndValues() throws Exception {
+        batch(" defaults.encoding = ISO-8859-1 ", "- defaults.offline ");
+        CeylonConfig config = config();
+        Assert.assertEquals("ISO-8859-1", config.getOption("defaults.encoding"));
+        Assert.assertFalse(config.isOptionDefined("defaults.offline"));
+    }
+
+    @Test
+    public void testBatchRepeatedSetAppends() throws Exception {
+        batch("repositories.lookup=./third", "repositories.lookup=./fourth");
+        // The first set replaces the old values, the second adds to them
+        Assert.assertEquals(Arrays.asList("./third", "./fourth"),
+                Arrays.asList(config().getOptionValues("repositories.lookup")));
+    }
+
+    @Test
+    public void testBatchSetAfterRemove() throws Exception {
+        batch("-repositories.lookup", "repositories.lookup=./third");
+        Assert.assertEquals(Arrays.asList("./third"),
+                Arrays.asList(config().getOptionValues("repositories.lookup")));
+    }
+
+    @Test
+    public void testBatchInvalidOperationWritesNothing() throws Exception {
+        String before = read();
+        try {
+            batch("defaults.encoding=ISO-8859-1", "no-equals-sign");
+            Assert.fail();
+        } catch (ConfigException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("'no-equals-sign'"));
+        }
+        Assert.assertEquals(before, read());
+    }
+
+    @Test
+    public void testBatchFromStandardInput() throws Exception {
+        InputStream in = System.in;
+        System.setIn(new ByteArrayInputStream((
+                "# Comments and empty lines are ignored\n" +
+                "\n" +
+                "  defaults.encoding = ISO-8859-1\n" +
+                "  -defaults.offline\n" +
+                "repositories.lookup=./third\n").getBytes("UTF-8")));
+        try {
+            batch();
+        } finally {
+            System.setIn(in);
+        }
+        CeylonConfig config = config();
+        Assert.assertEquals("ISO-8859-1", config.getOption("defaults.encoding"));
+        Assert.assertFalse(config.isOptionDefined("defaults.offline"));
+        Assert.assertEquals(Arrays.asList("./third"),
+                Arrays.asList(config.getOptionValues("repositories.lookup")));
+    }
+
+    @Test
+    public void testBatchFromStandardInputReportsLine() throws Exception {
+        String before = read();
+        InputStream in = System.in;
+        System.setIn(new ByteArrayInputStream((
+                "defaults.encoding=ISO-8859-1\n" +
+                "\n" +
+                "=nokey\n").getBytes("UTF-8")));
+        try {
+            batch();
+            Assert.fail();
+        } catch (ConfigException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("line 3"));
+        } finally {
+            System.setIn(in);
+        }
+        Assert.assertEquals(before, read());
+    }
+}
@@ -0,0 +1,231 @@
+package com.redhat.ceylon.common.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.tool.TestingToolLoader;
+import com.redhat.ceylon.common.tool.ToolFactory;
+
+public class CeylonDaemonTest {
+
+    private static final String NL = System.lineSeparator();
+    
+    // The test tools, with CeylonTool as the top level tool
+    static class TestingCeylonToolLoader extends TestingToolLoader {
+        @Override
+        protected String getToolClassName(String toolName) {
+            if (toolName == null || toolName.isEmpty()) {
+                return CeylonTool.class.getName();
+            } else {
+                return super.getToolClassName(toolName);
+            }
+        }
+    }
+    
+    private File dir;
+    private File daemonFile;
+    private CeylonDaemon daemon;
+    private Thread thread;
+    
+    @Before
+    public void startDaemon() throws InterruptedException {
+        dir = FileUtil.makeTempDir("ceylon-daemon-test");
+        daemonFile = new File(dir, "daemon");
+        daemon = new CeylonDaemon(new TestingCeylonToolLoader(), new ToolFactory(), daemonFile);
+        thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        // Port and secret
+        for (int i = 0; i < 1000 && daemonFile.length() < 20; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(20, daemonFile.length());
+    }
+    
+    @After
+    public void stopDaemon() throws Exception {
+        daemon.stop();
+        thread.join(10000);
+        FileUtil.delete(dir);
+    }
+    
+    private static InputStream noInput() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+    
+    @Test
+    public void testOutputPerClient() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[8];
+            final ByteArrayOutputStream[] outs = new ByteArrayOutputStream[futures.length];
+            for (int i = 0; i < futures.length; i++) {
+                final int n = i;
+                outs[n] = new ByteArrayOutputStream();
+                futures[n] = executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return CeylonDaemon.forward(daemonFile, new String[] { "echo", "client" + n }, 
+                                noInput(), new PrintStream(outs[n], true), System.err);
+                    }
+                });
+            }
+            String cwd = new File("").getAbsolutePath();
+            for (int i = 0; i < futures.length; i++) {
+                Assert.assertEquals(CeylonTool.SC_OK, futures[i].get());
+                Assert.assertEquals(cwd + NL + "[client" + i + "]" + NL, outs[i].toString("UTF-8"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testWrongSecretIsRejected() throws Exception {
+        byte[] contents = Files.readAllBytes(daemonFile.toPath());
+        contents[contents.length - 1] ^= 1;
+        File wrongFile = new File(dir, "wrong");
+        Files.write(wrongFile.toPath(), contents);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            CeylonDaemon.forward(wrongFile, new String[] { "echo", "hello" }, 
+                    noInput(), new PrintStream(out, true), new PrintStream(out, true));
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected, the daemon hung up on us
+        }
+        Assert.assertEquals(0, out.size());
+        // And the daemon is still there for the others
+        Assert.assertEquals(CeylonTool.SC_OK, (int)CeylonDaemon.forward(daemonFile, new String[] { "echo" }, 
+                noInput(), new PrintStream(out, true), System.err));
+    }
+    
+    @Test
+    public void testInputIsForwarded() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        InputStream in = new ByteArrayInputStream(("hello" + NL + "world" + NL).getBytes("UTF-8"));
+        int exit = CeylonDaemon.forward(daemonFile, new String[] { "echo", "--read" }, 
+                in, new PrintStream(new ByteArrayOutputStream(), true), new PrintStream(err, true));
+        Assert.assertEquals(CeylonTool.SC_OK, exit);
+        Assert.assertEquals("hello" + NL, err.toString("UTF-8"));
+    }
+    
+    @Test
+    public void testExitCode() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exit = CeylonDaemon.forward(daemonFile, new String[] { "no-such-tool" }, 
+                noInput(), new PrintStream(new ByteArrayOutputStream(), true), new PrintStream(err, true));
+        Assert.assertEquals(CeylonTool.SC_NO_SUCH_TOOL, exit);
+        Assert.assertTrue(err.size() > 0);
+    }
+    
+    @Test
+    public void testDefaultCwd() throws Exception {
+        Assert.assertEquals(dir.getPath() + NL + "[a]" + NL, runWithDefaultCwd("echo", "a"));
+        Assert.assertEquals("other" + NL + "[a]" + NL, runWithDefaultCwd("echo", "--cwd=other", "a"));
+        Assert.assertEquals("other" + NL + "null" + NL, runWithDefaultCwd("echo", "--cwd", "other"));
+        Assert.assertEquals(dir.getPath() + NL + "[--cwd=x]" + NL, runWithDefaultCwd("echo", "--", "--cwd=x"));
+    }
+    
+    private String runWithDefaultCwd(String... args) throws Exception {
+        CeylonTool tool = new CeylonTool();
+        tool.setToolLoader(new TestingCeylonToolLoader());
+        tool.setDefaultCwd(dir);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PerThreadPrintStream stdout = PerThreadPrintStream.installOut();
+        PrintStream old = stdout.redirect(new PrintStream(out, true));
+        try {
+            Assert.assertEquals(CeylonTool.SC_OK, tool.bootstrap(args));
+        } finally {
+            stdout.redirect(old);
+        }
+        return out.toString("UTF-8");
+    }
+    
+    @Test
+    public void testPerThreadPrintStream() throws Exception {
+        final PerThreadPrintStream stdout = PerThreadPrintStream.installOut();
+        Assert.assertSame(stdout, System.out);
+        Assert.assertSame(stdout, PerThreadPrintStream.installOut());
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        PrintStream old = stdout.redirect(new PrintStream(a, true));
+        try {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    stdout.redirect(new PrintStream(b, true));
+                    System.out.print("b");
+                    // Inherited by the threads it starts
+                    Thread child = new Thread() {
+                        @Override
+                        public void run() {
+                            System.out.print("child");
+                        }
+                    };
+                    child.start();
+                    try {
+                        child.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            thread.start();
+            System.out.print("a");
+            thread.join();
+        } finally {
+            stdout.redirect(old);
+        }
+        Assert.assertEquals("a", a.toString("UTF-8"));
+        Assert.assertEquals("bchild", b.toString("UTF-8"));
+    }
+    
+    @Test
+    public void testDetachCurrentThread() throws Exception {
+        final PerThreadPrintStream stdout = PerThreadPrintStream.installOut();
+        final PrintStream redirected = new PrintStream(new ByteArrayOutputStream(), true);
+        final PrintStream[] seen = new PrintStream[2];
+        PrintStream old = stdout.redirect(redirected);
+        try {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    seen[0] = stdout.redirect(redirected);
+                    PerThreadPrintStream.detachCurrentThread();
+                    seen[1] = stdout.redirect(null);
+                }
+            };
+            thread.start();
+            thread.join();
+        } finally {
+            stdout.redirect(old);
+        }
+        Assert.assertSame(redirected, seen[0]);
+        Assert.assertNull(seen[1]);
+    }
+}
@@ -0,0 +1,63 @@
+package com.redhat.ceylon.common.tools;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class CommandLineTest {
+
+    private static void assertTokens(String line, String... expected) throws Exception {
+        Assert.assertEquals(Arrays.asList(expected), Arrays.asList(CommandLine.tokenize(line)));
+    }
+    
+    @Test
+    public void testTokenizeWords() throws Exception {
+        assertTokens("compile --rep=foo  com.example.foo", "compile", "--rep=foo", "com.example.foo");
+        assertTokens("\tcompile\t com.example.foo ", "compile", "com.example.foo");
+    }
+    
+    @Test
+    public void testTokenizeQuoting() throws Exception {
+        assertTokens("echo 'one two' \"three four\"", "echo", "one two", "three four");
+        assertTokens("echo \"it's\" 'say \"hi\"'", "echo", "it's", "say \"hi\"");
+        assertTokens("echo ''", "echo", "");
+        // The quote only ends the word, it doesn't join it to the next
+        assertTokens("echo --rep='a b'", "echo", "--rep=", "a b");
+    }
+    
+    @Test
+    public void testTokenizeComments() throws Exception {
+        assertTokens("# compile com.example.foo");
+        assertTokens("compile com.example.foo # the foo module", "compile", "com.example.foo");
+        assertTokens("echo '# not a comment'", "echo", "# not a comment");
+    }
+    
+    @Test
+    public void testTokenizeEmpty() throws Exception {
+        assertTokens("");
+        assertTokens("   \t ");
+    }
+    
+    @Test
+    public void testTokenizeLeavesCommandFiles() throws Exception {
+        assertTokens("compile @args @@literal", "compile", "@args", "@@literal");
+    }
+    
+    @Test
+    public void testParseCommandFiles() throws Exception {
+        File file = File.createTempFile("args", ".txt");
+        try {
+            Files.write(file.toPath(), "--rep 'a b'\n# comment\ncom.example.foo\n".getBytes("UTF-8"));
+            Assert.assertEquals(Arrays.asList("compile", "--rep", "a b", "com.example.foo", "@literal"),
+                    Arrays.asList(CommandLine.parse(new String[] { "compile", "@" + file.getPath(), "@@literal" })));
+        } finally {
+            file.delete();
+        }
+        Assert.assertEquals(Collections.emptyList(), Arrays.asList(CommandLine.parse(new String[0])));
+    }
+}